@@ -0,0 +1,79 @@
+package dutils;
+
+/**
+ * 4-bit codes of nucleotides and IUPAC ambiguity codes, for packing two bases per byte.
+ * Code 0 is reserved for a missing value; lower-case input is encoded as upper case,
+ * and any other character (e.g. the gap "-") is encoded as missing.
+ * <pre>
+ * 0 missing
+ * 1 A, 2 C, 3 G, 4 T, 5 N
+ * 6 R, 7 Y, 8 S, 9 W, 10 K, 11 M, 12 B, 13 D, 14 H, 15 V
+ * </pre>
+ */
+public final class BaseCode {
+
+    public static final byte MISSING = 0;
+    public static final byte A = 1;
+    public static final byte C = 2;
+    public static final byte G = 3;
+    public static final byte T = 4;
+    public static final byte N = 5;
+
+    /** ASCII of each code, '.' for missing */
+    private static final byte[] CODE_TO_ASCII = ".ACGTNRYSWKMBDHV".getBytes();
+    private static final byte[] ASCII_TO_CODE = new byte[256];
+
+    static {
+        for (int code = 1; code < CODE_TO_ASCII.length; code++) {
+            ASCII_TO_CODE[CODE_TO_ASCII[code]] = (byte) code;
+            ASCII_TO_CODE[CODE_TO_ASCII[code] + 32] = (byte) code;
+        }
+    }
+
+    private BaseCode() {
+    }
+
+    /**
+     * Returns the 4-bit code of an ASCII base.
+     *
+     * @param ascii the base, e.g. 'A' or 'a'
+     * @return the code, {@link #MISSING} for characters that are not nucleotides or IUPAC codes
+     */
+    public static byte encode(byte ascii) {
+        return ASCII_TO_CODE[ascii & 0xFF];
+    }
+
+    /**
+     * Returns the upper-case ASCII base of a 4-bit code.
+     *
+     * @param code the code, 0-15
+     * @return the base, '.' for {@link #MISSING}
+     */
+    public static byte decode(int code) {
+        return CODE_TO_ASCII[code & 0xF];
+    }
+
+    /**
+     * Returns the code stored in a nibble-packed array, two codes per byte, low nibble first.
+     *
+     * @param packed the packed codes
+     * @param index  index of the code
+     * @return the code at index
+     */
+    public static int getPacked(byte[] packed, int index) {
+        return (packed[index >>> 1] >>> ((index & 1) << 2)) & 0xF;
+    }
+
+    /**
+     * Stores a code in a nibble-packed array, two codes per byte, low nibble first.
+     *
+     * @param packed the packed codes
+     * @param index  index of the code
+     * @param code   the code, 0-15
+     */
+    public static void setPacked(byte[] packed, int index, int code) {
+        int i = index >>> 1;
+        int shift = (index & 1) << 2;
+        packed[i] = (byte) ((packed[i] & ~(0xF << shift)) | ((code & 0xF) << shift));
+    }
+}
@@ -0,0 +1,285 @@
+package maf;
+
+import dutils.BaseCode;
+import utils.IOTool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Memory-mapped reader of the binary ancestral allele format written by {@link AncestralAlleleBinaryWriter}.
+ * Only the directory is read up front; each column is mapped when it is first used.
+ * Alleles are read straight from the mapped 4-bit columns, positions and chromosomes are decoded on demand.
+ * Species are addressed by their index in {@link #getSpeciesList()}, index 0 being the reference.
+ */
+public class AncestralAlleleBinaryReader implements Closeable {
+
+    private final FileChannel channel;
+    private final List<MAF.Species> speciesList;
+    private final List<String> chrNames;
+    private final Map<String, Section> sections = new LinkedHashMap<>();
+
+    public AncestralAlleleBinaryReader(String binaryFile) {
+        try {
+            this.channel = FileChannel.open(Paths.get(binaryFile), StandardOpenOption.READ);
+            long fileSize = channel.size();
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, fileSize - Long.BYTES, Long.BYTES);
+            long directoryOffset = footer.getLong();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile), 65536));
+            try (dis) {
+                if (dis.readInt() != AncestralAlleleBinaryWriter.MAGIC) {
+                    throw new IllegalArgumentException(binaryFile + " is not a binary ancestral allele file");
+                }
+                int version = dis.readInt();
+                if (version != AncestralAlleleBinaryWriter.VERSION) {
+                    throw new IllegalArgumentException("Unsupported binary ancestral allele version: " + version);
+                }
+                int speciesNum = dis.readInt();
+                MAF.Species[] species = MAF.Species.values();
+                List<MAF.Species> speciesList = new ArrayList<>(speciesNum);
+                for (int i = 0; i < speciesNum; i++) {
+                    speciesList.add(species[dis.readByte()]);
+                }
+                int chrNum = dis.readInt();
+                List<String> chrNames = new ArrayList<>(chrNum);
+                long headerSize = 20 + speciesNum;
+                for (int i = 0; i < chrNum; i++) {
+                    String chrName = dis.readUTF();
+                    chrNames.add(chrName);
+                    headerSize += 2 + chrName.getBytes(StandardCharsets.UTF_8).length;
+                }
+                int sectionNum = dis.readInt();
+                this.speciesList = Collections.unmodifiableList(speciesList);
+                this.chrNames = chrNames;
+                ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, fileSize - Long.BYTES - directoryOffset);
+                long columnStart = headerSize;
+                for (int i = 0; i < sectionNum; i++) {
+                    String refChr = chrNames.get(directory.getInt());
+                    int siteCount = directory.getInt();
+                    int columnNum = directory.getInt();
+                    long[] columnOffsets = new long[columnNum + 1];
+                    columnOffsets[0] = columnStart;
+                    for (int j = 1; j <= columnNum; j++) {
+                        columnOffsets[j] = directory.getLong();
+                    }
+                    columnStart = columnOffsets[columnNum];
+                    sections.put(refChr, new Section(refChr, siteCount, columnOffsets));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public List<MAF.Species> getSpeciesList() {
+        return speciesList;
+    }
+
+    /**
+     * Returns the reference chromosomes present in the file, in file order.
+     * @return reference chromosome names
+     */
+    public List<String> getReferenceChromosomes() {
+        return new ArrayList<>(sections.keySet());
+    }
+
+    public String getChrName(int chrID) {
+        return chrNames.get(chrID);
+    }
+
+    public int getSiteCount(String refChr) {
+        Section section = sections.get(refChr);
+        return section == null ? 0 : section.siteCount;
+    }
+
+    /**
+     * Decodes the 1-based positions of one species at all sites of a reference chromosome, in site order.
+     * @param refChr       reference chromosome
+     * @param speciesIndex index of the species in {@link #getSpeciesList()}
+     * @return positions of the species
+     */
+    public int[] getPositions(String refChr, int speciesIndex) {
+        Section section = getSection(refChr);
+        if (speciesIndex == 0) return section.getReferencePositions().clone();
+        ByteBuffer column = section.mapColumn(2 * speciesIndex);
+        int[] positions = new int[section.siteCount];
+        int previous = 0, zigzag;
+        for (int i = 0; i < positions.length; i++) {
+            zigzag = readVarint(column);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            positions[i] = previous;
+        }
+        return positions;
+    }
+
+    /**
+     * Decodes the chromosome ids of one species at all sites of a reference chromosome, in site order.
+     * @param refChr       reference chromosome
+     * @param speciesIndex index of the species in {@link #getSpeciesList()}
+     * @return chromosome ids, see {@link #getChrName(int)}
+     */
+    public int[] getChrIDs(String refChr, int speciesIndex) {
+        Section section = getSection(refChr);
+        int[] chrIDs = new int[section.siteCount];
+        if (speciesIndex == 0) {
+            Arrays.fill(chrIDs, chrNames.indexOf(refChr));
+            return chrIDs;
+        }
+        ByteBuffer column = section.mapColumn(2 * speciesIndex - 1);
+        int i = 0;
+        while (i < chrIDs.length) {
+            int runLength = readVarint(column);
+            int chrID = readVarint(column);
+            Arrays.fill(chrIDs, i, i + runLength, chrID);
+            i += runLength;
+        }
+        return chrIDs;
+    }
+
+    /**
+     * Reads one allele straight from the mapped column.
+     * @param refChr       reference chromosome
+     * @param speciesIndex index of the species in {@link #getSpeciesList()}
+     * @param siteIndex    index of the site in the reference chromosome
+     * @return the upper-case ASCII base
+     */
+    public byte getAllele(String refChr, int speciesIndex, int siteIndex) {
+        Section section = getSection(refChr);
+        ByteBuffer column = section.getAlleleColumn(speciesIndex, speciesList.size());
+        return BaseCode.decode(column.get(siteIndex >>> 1) >>> ((siteIndex & 1) << 2));
+    }
+
+    /**
+     * Finds the site at a reference position by binary search.
+     * @param refChr reference chromosome
+     * @param refPos 1-based reference position
+     * @return index of the first site at that position, or -1 if there is none
+     */
+    public int indexOf(String refChr, int refPos) {
+        Section section = sections.get(refChr);
+        if (section == null) return -1;
+        int[] refPositions = section.getReferencePositions();
+        int low = 0, high = refPositions.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (refPositions[mid] < refPos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low < refPositions.length && refPositions[low] == refPos ? low : -1;
+    }
+
+    /**
+     * Converts the binary file back to the TSV format of {@link MAF#callAncestralAllele(List, String)},
+     * sorted by reference chromosome and position.
+     * @param outputFile output TSV file
+     */
+    public void writeTSV(String outputFile) {
+        int speciesNum = speciesList.size();
+        try (BufferedWriter bw = IOTool.getBufferedWriter(outputFile)) {
+            bw.write(MAF.getAncestralAlleleHeader(speciesList));
+            bw.newLine();
+            StringBuilder sb = new StringBuilder();
+            for (String refChr : sections.keySet()) {
+                int[][] positions = new int[speciesNum][];
+                int[][] chrIDs = new int[speciesNum][];
+                for (int j = 0; j < speciesNum; j++) {
+                    positions[j] = getPositions(refChr, j);
+                    chrIDs[j] = getChrIDs(refChr, j);
+                }
+                for (int i = 0; i < getSiteCount(refChr); i++) {
+                    sb.setLength(0);
+                    for (int j = 0; j < speciesNum; j++) {
+                        sb.append(chrNames.get(chrIDs[j][i])).append("\t");
+                        sb.append(positions[j][i]).append("\t");
+                        sb.append((char) getAllele(refChr, j, i)).append("\t");
+                    }
+                    sb.setCharAt(sb.length() - 1, '\n');
+                    bw.write(sb.toString());
+                }
+            }
+            bw.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Section getSection(String refChr) {
+        Section section = sections.get(refChr);
+        if (section == null) throw new IllegalArgumentException("No sites on reference chromosome " + refChr);
+        return section;
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0, shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private class Section {
+
+        final String refChr;
+        final int siteCount;
+        /** column i spans [columnOffsets[i], columnOffsets[i+1]) */
+        final long[] columnOffsets;
+        int[] referencePositions;
+        MappedByteBuffer[] alleleColumns;
+
+        Section(String refChr, int siteCount, long[] columnOffsets) {
+            this.refChr = refChr;
+            this.siteCount = siteCount;
+            this.columnOffsets = columnOffsets;
+        }
+
+        MappedByteBuffer mapColumn(int column) {
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, columnOffsets[column], columnOffsets[column + 1] - columnOffsets[column]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        synchronized int[] getReferencePositions() {
+            if (referencePositions == null) {
+                ByteBuffer column = mapColumn(0);
+                referencePositions = new int[siteCount];
+                int previous = 0;
+                for (int i = 0; i < siteCount; i++) {
+                    previous += readVarint(column);
+                    referencePositions[i] = previous;
+                }
+            }
+            return referencePositions;
+        }
+
+        synchronized ByteBuffer getAlleleColumn(int speciesIndex, int speciesNum) {
+            if (alleleColumns == null) alleleColumns = new MappedByteBuffer[speciesNum];
+            if (alleleColumns[speciesIndex] == null) {
+                alleleColumns[speciesIndex] = mapColumn(2 * speciesNum - 1 + speciesIndex);
+            }
+            return alleleColumns[speciesIndex];
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package maf;
+
+import dutils.BaseCode;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Writes the gap-free columns found by the ancestral allele caller in a compact, column-oriented binary format,
+ * an alternative to the TSV written by {@link MAF#callAncestralAllele(List, String)}.
+ * Sites are grouped by the chromosome of the first species in speciesList (the reference) and sorted by its position.
+ * <p>
+ * Sites are buffered up to runSiteNum at a time; a full buffer is sorted and spilled to a temporary run file,
+ * so memory does not grow with the MAF. {@link #write(String)} merges the runs, as {@link AncestralAlleleSorter} does,
+ * and encodes each column of a section into its own temporary file before appending it to the output.
+ * <pre>
+ * header     magic, version, species ordinals, chromosome name table, section count
+ * sections   one per reference chromosome, each made of the columns
+ *              reference positions        unsigned varint deltas
+ *              per other species          chromosome ids as (run length, id) varint pairs,
+ *                                         positions as zigzag varint deltas
+ *              per species                alleles as 4-bit {@link BaseCode}s, two per byte
+ * directory  per section: reference chromosome id, site count, column end offsets
+ * footer     directory offset
+ * </pre>
+ * Positions are 1-based, as in the TSV. Read the file with {@link AncestralAlleleBinaryReader}.
+ */
+public class AncestralAlleleBinaryWriter {
+
+    static final int MAGIC = 0x41414C42; // "AALB"
+    static final int VERSION = 1;
+    /** Default number of sites sorted in memory before they are spilled, about 200 MB for five species */
+    private static final int RUN_SITE_NUM = 1 << 22;
+
+    private final List<MAF.Species> speciesList;
+    private final int runSiteNum;
+    private final Path tmpDir;
+    private final List<String> chrNames = new ArrayList<>();
+    private final Map<String, Integer> chrIDMap = new HashMap<>();
+    private final SiteBuffer buffer;
+    /** reference chromosomes with at least one site, one section each */
+    private final BitSet refChrIDs = new BitSet();
+    private final List<Path> runs = new ArrayList<>();
+
+    /**
+     * Spills runs of {@link #RUN_SITE_NUM} sites to the default temporary directory.
+     * @param speciesList ordered list of species, the first one is the reference
+     */
+    public AncestralAlleleBinaryWriter(List<MAF.Species> speciesList) {
+        this(speciesList, RUN_SITE_NUM, System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * @param speciesList ordered list of species, the first one is the reference
+     * @param runSiteNum  number of sites sorted in memory before they are spilled to a run file
+     * @param tmpDir      directory of the temporary run and column files
+     */
+    public AncestralAlleleBinaryWriter(List<MAF.Species> speciesList, int runSiteNum, String tmpDir) {
+        assert new HashSet<>(speciesList).size() == speciesList.size() : "speciesList contains duplicate species";
+        assert speciesList.size() <= 16 : "at most 16 species are supported";
+        assert runSiteNum > 0 : "runSiteNum must be positive";
+        this.speciesList = new ArrayList<>(speciesList);
+        this.runSiteNum = runSiteNum;
+        this.tmpDir = Paths.get(tmpDir);
+        this.buffer = new SiteBuffer(speciesList.size());
+    }
+
+    /**
+     * Adds every gap-free column of the block; blocks missing any species are ignored.
+     * @param mafBlock alignment block
+     */
+    public void add(MAF.MAFBlock mafBlock) {
+        MAF.forEachGapFreeColumn(mafBlock, speciesList, (records, column, positions) -> {
+            long alleleCodes = 0;
+            for (int j = 0; j < records.size(); j++) {
+                alleleCodes |= (long) BaseCode.encode(records.get(j).getBase(column)) << (j << 2);
+                int chrID = getChrID(records.get(j).strandRange.getChr());
+                if (j == 0) refChrIDs.set(chrID);
+                buffer.chrIDs[j].add(chrID);
+                buffer.positions[j].add(positions[j] + 1);
+            }
+            buffer.alleleCodes.add(alleleCodes);
+            if (buffer.size() == runSiteNum) spill();
+        });
+    }
+
+    private int getChrID(String chr) {
+        Integer chrID = chrIDMap.get(chr);
+        if (chrID == null) {
+            chrID = chrNames.size();
+            chrIDMap.put(chr, chrID);
+            chrNames.add(chr);
+        }
+        return chrID;
+    }
+
+    /**
+     * Sorts the buffered sites by reference chromosome name and position, writes them to a run file and clears the buffer.
+     */
+    private void spill() {
+        int size = buffer.size();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+        int[] chrIDs = buffer.chrIDs[0].elements();
+        int[] refPositions = buffer.positions[0].elements();
+        IntArrays.mergeSort(order, (a, b) -> compare(chrIDs[a], refPositions[a], chrIDs[b], refPositions[b]));
+        try {
+            Path run = Files.createTempFile(tmpDir, "ancestralAllele", ".run");
+            runs.add(run);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 20))) {
+                for (int index : order) {
+                    for (int j = 0; j < speciesList.size(); j++) {
+                        dos.writeInt(buffer.chrIDs[j].getInt(index));
+                        dos.writeInt(buffer.positions[j].getInt(index));
+                    }
+                    dos.writeLong(buffer.alleleCodes.getLong(index));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buffer.clear();
+    }
+
+    private int compare(int chrID1, int pos1, int chrID2, int pos2) {
+        if (chrID1 != chrID2) return chrNames.get(chrID1).compareTo(chrNames.get(chrID2));
+        return Integer.compare(pos1, pos2);
+    }
+
+    /**
+     * Merges the sorted runs and writes the binary file; the temporary files are deleted.
+     * Sites at the same reference position keep block order.
+     * @param outputFile output file
+     */
+    public void write(String outputFile) {
+        if (buffer.size() > 0) spill();
+        int speciesNum = speciesList.size();
+        int columnNum = 1 + 2 * (speciesNum - 1) + speciesNum;
+        IntArrayList sectionChrIDs = new IntArrayList();
+        List<long[]> columnEnds = new ArrayList<>();
+        IntArrayList siteCounts = new IntArrayList();
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>();
+        SectionColumns section = null;
+        try (CountingOutputStream cos = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 20));
+             DataOutputStream dos = new DataOutputStream(cos)) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(speciesNum);
+            for (MAF.Species species : speciesList) {
+                dos.writeByte(species.ordinal());
+            }
+            dos.writeInt(chrNames.size());
+            for (String chrName : chrNames) {
+                dos.writeUTF(chrName);
+            }
+            dos.writeInt(refChrIDs.cardinality());
+            for (int i = 0; i < runs.size(); i++) {
+                RunCursor cursor = new RunCursor(i, runs.get(i), speciesNum);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                } else {
+                    cursor.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                if (section == null || section.refChrID != cursor.chrIDs[0]) {
+                    if (section != null) {
+                        siteCounts.add(section.siteCount);
+                        columnEnds.add(section.appendTo(dos, cos));
+                    }
+                    section = new SectionColumns(cursor.chrIDs[0], columnNum);
+                    sectionChrIDs.add(section.refChrID);
+                }
+                section.add(cursor.chrIDs, cursor.positions, cursor.alleleCodes);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                } else {
+                    cursor.close();
+                }
+            }
+            if (section != null) {
+                siteCounts.add(section.siteCount);
+                columnEnds.add(section.appendTo(dos, cos));
+            }
+            dos.flush();
+            long directoryOffset = cos.count;
+            for (int i = 0; i < sectionChrIDs.size(); i++) {
+                dos.writeInt(sectionChrIDs.getInt(i));
+                dos.writeInt(siteCounts.getInt(i));
+                dos.writeInt(columnNum);
+                for (long columnEnd : columnEnds.get(i)) {
+                    dos.writeLong(columnEnd);
+                }
+            }
+            dos.writeLong(directoryOffset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (RunCursor cursor : queue) {
+                cursor.close();
+            }
+            if (section != null) section.deleteFiles();
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            runs.clear();
+        }
+    }
+
+    static void writeVarint(DataOutputStream dos, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            dos.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dos.writeByte(value);
+    }
+
+    /**
+     * Sites added since the last spill, in block order.
+     */
+    private static class SiteBuffer {
+
+        /** chromosome ids and 1-based positions of species j, the reference at j = 0 */
+        final IntArrayList[] chrIDs;
+        final IntArrayList[] positions;
+        /** 4-bit allele code of species j at bits [4j, 4j+4) */
+        final LongArrayList alleleCodes = new LongArrayList();
+
+        SiteBuffer(int speciesNum) {
+            chrIDs = new IntArrayList[speciesNum];
+            positions = new IntArrayList[speciesNum];
+            for (int j = 0; j < speciesNum; j++) {
+                chrIDs[j] = new IntArrayList();
+                positions[j] = new IntArrayList();
+            }
+        }
+
+        int size() {
+            return alleleCodes.size();
+        }
+
+        void clear() {
+            for (int j = 0; j < chrIDs.length; j++) {
+                chrIDs[j].clear();
+                positions[j].clear();
+            }
+            alleleCodes.clear();
+        }
+    }
+
+    /**
+     * Reads the sites of one run file in order.
+     */
+    private class RunCursor implements Comparable<RunCursor>, Closeable {
+
+        final int runIndex;
+        final DataInputStream dis;
+        final int[] chrIDs;
+        final int[] positions;
+        long alleleCodes;
+
+        RunCursor(int runIndex, Path run, int speciesNum) throws IOException {
+            this.runIndex = runIndex;
+            this.dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+            this.chrIDs = new int[speciesNum];
+            this.positions = new int[speciesNum];
+        }
+
+        boolean advance() throws IOException {
+            try {
+                chrIDs[0] = dis.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            positions[0] = dis.readInt();
+            for (int j = 1; j < chrIDs.length; j++) {
+                chrIDs[j] = dis.readInt();
+                positions[j] = dis.readInt();
+            }
+            alleleCodes = dis.readLong();
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            int c = compare(chrIDs[0], positions[0], o.chrIDs[0], o.positions[0]);
+            return c != 0 ? c : Integer.compare(runIndex, o.runIndex);
+        }
+
+        @Override
+        public void close() {
+            try {
+                dis.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Encodes the columns of one reference chromosome, each into its own temporary file, as its sites arrive in order.
+     */
+    private class SectionColumns {
+
+        final int refChrID;
+        final Path[] files;
+        final DataOutputStream[] columns;
+        int siteCount;
+        /** previous position of each species, the previous chromosome id and its run length of each other species */
+        final int[] previousPositions;
+        final int[] runChrIDs;
+        final int[] runLengths;
+        /** alleles of an odd site, waiting for the high nibble */
+        final byte[] pendingAlleles;
+
+        SectionColumns(int refChrID, int columnNum) throws IOException {
+            int speciesNum = speciesList.size();
+            this.refChrID = refChrID;
+            this.files = new Path[columnNum];
+            this.columns = new DataOutputStream[columnNum];
+            for (int i = 0; i < columnNum; i++) {
+                files[i] = Files.createTempFile(tmpDir, "ancestralAllele", ".column");
+                columns[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[i]), 1 << 16));
+            }
+            this.previousPositions = new int[speciesNum];
+            this.runChrIDs = new int[speciesNum];
+            this.runLengths = new int[speciesNum];
+            this.pendingAlleles = new byte[speciesNum];
+        }
+
+        void add(int[] chrIDs, int[] positions, long alleleCodes) throws IOException {
+            int speciesNum = speciesList.size();
+            writeVarint(columns[0], positions[0] - previousPositions[0]);
+            previousPositions[0] = positions[0];
+            for (int j = 1; j < speciesNum; j++) {
+                if (runLengths[j] > 0 && runChrIDs[j] != chrIDs[j]) {
+                    writeVarint(columns[2 * j - 1], runLengths[j]);
+                    writeVarint(columns[2 * j - 1], runChrIDs[j]);
+                    runLengths[j] = 0;
+                }
+                runChrIDs[j] = chrIDs[j];
+                runLengths[j]++;
+                int delta = positions[j] - previousPositions[j];
+                writeVarint(columns[2 * j], (delta << 1) ^ (delta >> 31));
+                previousPositions[j] = positions[j];
+            }
+            for (int j = 0; j < speciesNum; j++) {
+                int code = (int) (alleleCodes >>> (j << 2)) & 0xF;
+                if ((siteCount & 1) == 0) {
+                    pendingAlleles[j] = (byte) code;
+                } else {
+                    columns[2 * speciesNum - 1 + j].writeByte(pendingAlleles[j] | (code << 4));
+                }
+            }
+            siteCount++;
+        }
+
+        /**
+         * Finishes the columns, appends them to the output and deletes their files.
+         * @return end offset of each column in the output
+         */
+        long[] appendTo(DataOutputStream dos, CountingOutputStream cos) throws IOException {
+            int speciesNum = speciesList.size();
+            for (int j = 1; j < speciesNum; j++) {
+                if (runLengths[j] == 0) continue;
+                writeVarint(columns[2 * j - 1], runLengths[j]);
+                writeVarint(columns[2 * j - 1], runChrIDs[j]);
+            }
+            if ((siteCount & 1) == 1) {
+                for (int j = 0; j < speciesNum; j++) {
+                    columns[2 * speciesNum - 1 + j].writeByte(pendingAlleles[j]);
+                }
+            }
+            long[] columnEnds = new long[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].close();
+                Files.copy(files[i], dos);
+                columnEnds[i] = cos.count;
+            }
+            deleteFiles();
+            return columnEnds;
+        }
+
+        void deleteFiles() {
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    columns[i].close();
+                    Files.deleteIfExists(files[i]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
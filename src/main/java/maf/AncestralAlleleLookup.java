@@ -0,0 +1,16 @@
+package maf;
+
+/**
+ * Ancestral allele by reference position, as used by {@link vcf.OutgroupSampleAdder}.
+ * Implemented in memory by {@link AncestralAlleleTable} and memory-mapped by {@link AncestralAlleleStore}.
+ */
+public interface AncestralAlleleLookup {
+
+    /**
+     * Returns the ancestral allele at a reference position. Safe to call from several threads.
+     * @param chr reference chromosome, e.g. "1A"
+     * @param pos 1-based reference position
+     * @return the upper-case ASCII base, '.' if the position has no ancestral allele
+     */
+    byte ancestralAt(String chr, int pos);
+}
@@ -0,0 +1,249 @@
+package maf;
+
+import dutils.Chromosome;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.apache.commons.lang3.StringUtils;
+import utils.IOTool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * External merge sort of the ancestral allele TSV written by {@link MAF#callAncestralAllele(List, String)},
+ * by the chromosome and position of the first species (the first two columns).
+ * <p>
+ * Lines are read into runs that fit in a memory budget; each run is sorted on a worker thread and spilled
+ * to a temporary file while the next run is read. The runs are then merged with a k-way merge.
+ * The sort is stable: rows at the same position keep their input order, so the first block covering
+ * a position stays first. The header line, if present, is kept as the first line.
+ * <p>
+ * The TSV is not an ancestral allele file of {@link vcf.OutgroupSampleAdder#addOutgroupSample(String, String, String, String)}:
+ * its fourth column is the chromosome of the second species, not the ancestral allele.
+ */
+public class AncestralAlleleSorter {
+
+    /** Maximum number of runs merged at once; more runs are merged in several passes */
+    private static final int MAX_FAN_IN = 128;
+    /** Approximate heap used by a line besides its characters: String, array and key entries */
+    private static final int LINE_OVERHEAD = 80;
+
+    public enum ChromosomeOrder {
+        /** String.compareTo of chromosome names, e.g. 1A, 1B, 1D, 2A, ... */
+        LEXICOGRAPHIC,
+        /** Declaration order of {@link Chromosome}, e.g. 1A, ..., 7A, 1B, ...; other names follow lexicographically */
+        CHROMOSOME_ENUM
+    }
+
+    private final ChromosomeOrder chromosomeOrder;
+    private final long memoryBudget;
+    private final int threadsNum;
+    private final Path tmpDir;
+    private final Map<String, Integer> chrRanks = new HashMap<>();
+
+    /**
+     * @param chromosomeOrder order of chromosomes in the output
+     * @param memoryBudget    approximate heap, in bytes, used by the runs in memory at the same time
+     * @param threadsNum      number of threads sorting and spilling runs
+     * @param tmpDir          directory of the temporary run files
+     */
+    public AncestralAlleleSorter(ChromosomeOrder chromosomeOrder, long memoryBudget, int threadsNum, String tmpDir) {
+        assert memoryBudget > 0 : "memoryBudget must be positive";
+        assert threadsNum > 0 : "threadsNum must be positive";
+        this.chromosomeOrder = chromosomeOrder;
+        this.memoryBudget = memoryBudget;
+        this.threadsNum = threadsNum;
+        this.tmpDir = Paths.get(tmpDir);
+        for (Chromosome chromosome : Chromosome.values()) {
+            chrRanks.put(chromosome.getName(), chromosome.ordinal());
+        }
+    }
+
+    /**
+     * Sorts an ancestral allele table.
+     * @param inputFile  ancestral allele TSV, optionally gzipped
+     * @param outputFile sorted TSV, gzipped if the name ends with .gz
+     */
+    public void sort(String inputFile, String outputFile) {
+        List<Path> runs = new ArrayList<>();
+        String header = null;
+        // at most threadsNum runs are being sorted while the next one is read
+        long runBudget = Math.max(1, memoryBudget / (threadsNum + 1));
+        ExecutorService executorService = Executors.newFixedThreadPool(threadsNum);
+        try (BufferedReader br = IOTool.getBufferedReader(inputFile)) {
+            Deque<Future<Path>> pending = new ArrayDeque<>();
+            String line = br.readLine();
+            if (line != null && line.startsWith("Chr_")) {
+                header = line;
+                line = br.readLine();
+            }
+            while (line != null) {
+                List<String> lines = new ArrayList<>();
+                long runSize = 0;
+                while (line != null && (runSize < runBudget || lines.isEmpty())) {
+                    lines.add(line);
+                    runSize += line.length() + LINE_OVERHEAD;
+                    line = br.readLine();
+                }
+                if (pending.size() == threadsNum) {
+                    runs.add(pending.removeFirst().get());
+                }
+                pending.addLast(executorService.submit(() -> sortRun(lines)));
+            }
+            while (!pending.isEmpty()) {
+                runs.add(pending.removeFirst().get());
+            }
+            while (runs.size() > MAX_FAN_IN) {
+                runs = mergePass(runs, executorService);
+            }
+            try (BufferedWriter bw = IOTool.getBufferedWriter(outputFile)) {
+                if (header != null) {
+                    bw.write(header);
+                    bw.newLine();
+                }
+                merge(runs, bw);
+                bw.flush();
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executorService.shutdownNow();
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stable sort of one run, written to a temporary file.
+     */
+    private Path sortRun(List<String> lines) throws IOException {
+        int size = lines.size();
+        String[] chrs = new String[size];
+        int[] ranks = new int[size];
+        int[] positions = new int[size];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            String line = lines.get(i);
+            int tab = line.indexOf('\t');
+            int nextTab = line.indexOf('\t', tab + 1);
+            chrs[i] = line.substring(0, tab);
+            ranks[i] = getChrRank(chrs[i]);
+            positions[i] = Integer.parseInt(nextTab < 0 ? line.substring(tab + 1) : line.substring(tab + 1, nextTab));
+            order[i] = i;
+        }
+        IntArrays.mergeSort(order, (a, b) -> compare(ranks[a], chrs[a], positions[a], ranks[b], chrs[b], positions[b]));
+        Path run = Files.createTempFile(tmpDir, "ancestralAllele", ".run");
+        try (BufferedWriter bw = Files.newBufferedWriter(run)) {
+            for (int index : order) {
+                bw.write(lines.get(index));
+                bw.newLine();
+            }
+        }
+        return run;
+    }
+
+    private List<Path> mergePass(List<Path> runs, ExecutorService executorService) throws InterruptedException, ExecutionException {
+        List<Future<Path>> futures = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+            List<Path> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+            futures.add(executorService.submit(() -> {
+                Path merged = Files.createTempFile(tmpDir, "ancestralAllele", ".run");
+                try (BufferedWriter bw = Files.newBufferedWriter(merged)) {
+                    merge(group, bw);
+                }
+                for (Path run : group) {
+                    Files.delete(run);
+                }
+                return merged;
+            }));
+        }
+        List<Path> merged = new ArrayList<>();
+        for (Future<Path> future : futures) {
+            merged.add(future.get());
+        }
+        return merged;
+    }
+
+    /**
+     * k-way merge of sorted runs; rows with equal keys are taken from the earlier run first.
+     */
+    private void merge(List<Path> runs, BufferedWriter bw) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        try {
+            PriorityQueue<RunCursor> queue = new PriorityQueue<>();
+            for (int i = 0; i < runs.size(); i++) {
+                BufferedReader br = Files.newBufferedReader(runs.get(i));
+                readers.add(br);
+                RunCursor cursor = new RunCursor(i, br);
+                if (cursor.advance()) queue.add(cursor);
+            }
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                bw.write(cursor.line);
+                bw.newLine();
+                if (cursor.advance()) queue.add(cursor);
+            }
+        } finally {
+            for (BufferedReader br : readers) {
+                br.close();
+            }
+        }
+    }
+
+    private int getChrRank(String chr) {
+        if (chromosomeOrder == ChromosomeOrder.LEXICOGRAPHIC) return 0;
+        return chrRanks.getOrDefault(chr, Integer.MAX_VALUE);
+    }
+
+    private static int compare(int rank1, String chr1, int pos1, int rank2, String chr2, int pos2) {
+        int c = Integer.compare(rank1, rank2);
+        if (c != 0) return c;
+        c = chr1.compareTo(chr2);
+        if (c != 0) return c;
+        return Integer.compare(pos1, pos2);
+    }
+
+    private class RunCursor implements Comparable<RunCursor> {
+
+        final int runIndex;
+        final BufferedReader br;
+        String line;
+        String chr;
+        int rank;
+        int pos;
+
+        RunCursor(int runIndex, BufferedReader br) {
+            this.runIndex = runIndex;
+            this.br = br;
+        }
+
+        boolean advance() throws IOException {
+            line = br.readLine();
+            if (line == null) return false;
+            String[] temp = StringUtils.split(line, "\t", 3);
+            chr = temp[0];
+            rank = getChrRank(chr);
+            pos = Integer.parseInt(temp[1]);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            int c = compare(rank, chr, pos, o.rank, o.chr, o.pos);
+            return c != 0 ? c : Integer.compare(runIndex, o.runIndex);
+        }
+    }
+}
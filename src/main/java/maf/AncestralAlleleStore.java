@@ -0,0 +1,269 @@
+package maf;
+
+import dutils.BaseCode;
+import utils.ByteLineReader;
+import utils.IOTool;
+
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Memory-mapped ancestral alleles indexed by reference position, for O(1) lookups without loading or scanning
+ * the ancestral allele file. Each reference chromosome is one array of 4-bit {@link BaseCode}s, two positions
+ * per byte, low nibble first, index pos - 1; positions without an ancestral allele are {@link BaseCode#MISSING}.
+ * <pre>
+ * header     magic, version
+ * sections   one per reference chromosome, nibble-packed codes
+ * directory  chromosome count, then per chromosome: name, length in positions, section offset
+ * footer     directory offset
+ * </pre>
+ * The file is written by {@link #build(String, String)} from the ancestral allele file used by
+ * {@link vcf.OutgroupSampleAdder#addOutgroupSample(String, String, String, String)},
+ * or by {@link #write(AncestralAlleleTable, String)}, and mapped as a whole when opened.
+ */
+public class AncestralAlleleStore implements AncestralAlleleLookup, AutoCloseable {
+
+    static final int MAGIC = 0x41415053; // "AAPS"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    /** byte order of DataOutputStream */
+    private static final ValueLayout.OfInt INT_LAYOUT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LAYOUT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment segment;
+    private final Map<String, Section> sections = new LinkedHashMap<>();
+
+    /**
+     * Maps a file written by {@link #build(String, String)} or {@link #write(AncestralAlleleTable, String)}.
+     * @param storeFile binary file
+     */
+    public AncestralAlleleStore(String storeFile) {
+        try (FileChannel channel = FileChannel.open(Paths.get(storeFile), StandardOpenOption.READ)) {
+            this.segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (segment.byteSize() < HEADER_SIZE + Long.BYTES || segment.get(INT_LAYOUT, 0) != MAGIC) {
+                throw new IllegalArgumentException(storeFile + " is not an ancestral allele store");
+            }
+            int version = segment.get(INT_LAYOUT, Integer.BYTES);
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported ancestral allele store version: " + version);
+            }
+            long directoryOffset = segment.get(LONG_LAYOUT, segment.byteSize() - Long.BYTES);
+            byte[] directory = segment.asSlice(directoryOffset, segment.byteSize() - Long.BYTES - directoryOffset)
+                    .toArray(ValueLayout.JAVA_BYTE);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(directory));
+            int chrNum = dis.readInt();
+            for (int i = 0; i < chrNum; i++) {
+                String chr = dis.readUTF();
+                int length = dis.readInt();
+                long offset = dis.readLong();
+                sections.put(chr, new Section(length, offset));
+            }
+        } catch (IOException e) {
+            arena.close();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param file any file
+     * @return true if the file starts like a store
+     */
+    public static boolean isStore(String file) {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+            return dis.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts an ancestral allele file to a store in one pass, holding one chromosome in memory at a time.
+     * Lines are chromosome, position and ancestral allele in the first, second and fourth columns; a "Chr_" header
+     * line is skipped. Lines of a chromosome must be consecutive, as in the sorted file. Where several lines have
+     * the same position, the first one wins, as in the merge; alleles that are not a single base are stored as missing.
+     * @param ancFilePath ancestral allele file, optionally gzipped
+     * @param outputFile  binary file
+     */
+    public static void build(String ancFilePath, String outputFile) {
+        try (ByteLineReader reader = new ByteLineReader(IOTool.getInputStream(ancFilePath));
+             StoreWriter writer = new StoreWriter(outputFile)) {
+            int[] fieldStarts = new int[4];
+            int[] fieldEnds = new int[4];
+            String chr = null;
+            byte[] chrBytes = new byte[0];
+            byte[] codes = new byte[1 << 16];
+            int length = 0;
+            Set<String> writtenChromosomes = new HashSet<>();
+            while (reader.readLine()) {
+                byte[] buffer = reader.getBuffer();
+                int start = reader.getLineStart();
+                int end = reader.getLineEnd();
+                if (reader.isBlankLine() || (chr == null && startsWith(buffer, start, end, "Chr_"))) continue;
+                int i = start;
+                for (int f = 0; f < fieldStarts.length; f++) {
+                    while (i < end && buffer[i] == '\t') i++;
+                    if (i == end) {
+                        throw new IllegalArgumentException("Ancestral allele line with fewer than 4 fields: "
+                                + new String(buffer, start, end - start, StandardCharsets.UTF_8));
+                    }
+                    fieldStarts[f] = i;
+                    while (i < end && buffer[i] != '\t') i++;
+                    fieldEnds[f] = i;
+                }
+                if (chr == null || !Arrays.equals(buffer, fieldStarts[0], fieldEnds[0], chrBytes, 0, chrBytes.length)) {
+                    if (chr != null) {
+                        writer.writeSection(chr, codes, length);
+                        writtenChromosomes.add(chr);
+                    }
+                    chrBytes = Arrays.copyOfRange(buffer, fieldStarts[0], fieldEnds[0]);
+                    chr = new String(chrBytes, StandardCharsets.UTF_8);
+                    if (writtenChromosomes.contains(chr)) {
+                        throw new IllegalArgumentException("Lines of chromosome " + chr + " are not consecutive in " + ancFilePath);
+                    }
+                    Arrays.fill(codes, 0, (length + 1) >>> 1, (byte) 0);
+                    length = 0;
+                }
+                int pos = ByteLineReader.parseInt(buffer, fieldStarts[1], fieldEnds[1]);
+                if (pos < 1) throw new IllegalArgumentException("Invalid position " + pos + " on chromosome " + chr);
+                if (pos > codes.length << 1) {
+                    codes = Arrays.copyOf(codes, Math.max(codes.length << 1, (pos + 1) >>> 1));
+                }
+                length = Math.max(length, pos);
+                if (BaseCode.getPacked(codes, pos - 1) == BaseCode.MISSING && fieldEnds[3] - fieldStarts[3] == 1) {
+                    BaseCode.setPacked(codes, pos - 1, BaseCode.encode(buffer[fieldStarts[3]]));
+                }
+            }
+            if (chr != null) writer.writeSection(chr, codes, length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Saves an in-memory table as a store, chromosomes sorted by name.
+     * @param table      ancestral alleles built from a MAF file
+     * @param outputFile binary file
+     */
+    public static void write(AncestralAlleleTable table, String outputFile) {
+        try (StoreWriter writer = new StoreWriter(outputFile)) {
+            for (String chr : table.getChromosomes()) {
+                byte[] codes = table.getCodes(chr);
+                writer.writeSection(chr, codes, codes.length << 1);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int end, String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[start + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the reference chromosomes of the store, in file order.
+     * @return chromosome names
+     */
+    public List<String> getChromosomes() {
+        return new ArrayList<>(sections.keySet());
+    }
+
+    /**
+     * @param chr reference chromosome
+     * @return the last position with an ancestral allele line or a table entry, 0 if the chromosome is absent
+     */
+    public int getLength(String chr) {
+        Section section = sections.get(chr);
+        return section == null ? 0 : section.length;
+    }
+
+    @Override
+    public byte ancestralAt(String chr, int pos) {
+        Section section = sections.get(chr);
+        if (section == null || pos < 1 || pos > section.length) return BaseCode.decode(BaseCode.MISSING);
+        int index = pos - 1;
+        byte packed = segment.get(ValueLayout.JAVA_BYTE, section.offset + (index >>> 1));
+        return BaseCode.decode(packed >>> ((index & 1) << 2));
+    }
+
+    /**
+     * Unmaps the file; lookups fail afterwards.
+     */
+    @Override
+    public void close() {
+        if (arena.scope().isAlive()) arena.close();
+    }
+
+    private static class Section {
+
+        final int length;
+        final long offset;
+
+        Section(int length, long offset) {
+            this.length = length;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Writes the sections one after the other, then the directory on close.
+     */
+    private static class StoreWriter implements Closeable {
+
+        private final DataOutputStream dos;
+        private final List<String> chromosomes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private long offset;
+
+        StoreWriter(String outputFile) throws IOException {
+            this.dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 20));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            offset = HEADER_SIZE;
+        }
+
+        /**
+         * @param codes  nibble-packed codes, index pos - 1
+         * @param length number of positions written
+         */
+        void writeSection(String chr, byte[] codes, int length) throws IOException {
+            int byteNum = (length + 1) >>> 1;
+            dos.write(codes, 0, byteNum);
+            chromosomes.add(chr);
+            lengths.add(length);
+            offsets.add(offset);
+            offset += byteNum;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (dos) {
+                dos.writeInt(chromosomes.size());
+                for (int i = 0; i < chromosomes.size(); i++) {
+                    dos.writeUTF(chromosomes.get(i));
+                    dos.writeInt(lengths.get(i));
+                    dos.writeLong(offsets.get(i));
+                }
+                dos.writeLong(offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package maf;
+
+import dutils.BaseCode;
+
+import java.util.*;
+
+/**
+ * In-memory ancestral allele lookup indexed by reference chromosome and position,
+ * built straight from a MAF file instead of going through the TSV of {@link MAF#callAncestralAllele(List, String)}.
+ * The ancestral allele of a reference position is the base of the outgroup species aligned to it
+ * in a column without gaps in either species.
+ * Each reference chromosome is one array of 4-bit {@link BaseCode}s, two positions per byte, sized from
+ * the chromosome size in the MAF records; positions never aligned to the outgroup are missing.
+ * Where several blocks cover the same reference position, the first block in the file wins.
+ * {@link AncestralAlleleStore#write(AncestralAlleleTable, String)} saves it as a memory-mapped file.
+ */
+public class AncestralAlleleTable implements AncestralAlleleLookup {
+
+    private final MAF.Species reference;
+    private final MAF.Species outgroup;
+    private final List<MAF.Species> speciesList;
+    /** reference chromosome -> nibble-packed codes, index pos - 1 */
+    private final Map<String, byte[]> codesByChr = new HashMap<>();
+
+    public AncestralAlleleTable(MAF.Species reference, MAF.Species outgroup) {
+        assert reference != outgroup : "reference and outgroup must be different species";
+        this.reference = reference;
+        this.outgroup = outgroup;
+        this.speciesList = List.of(reference, outgroup);
+    }
+
+    /**
+     * Builds the table by streaming the blocks of a MAF file.
+     * @param mafFile   MAF file, optionally gzipped
+     * @param reference species whose coordinates index the table, e.g. the species of the VCF
+     * @param outgroup  species providing the ancestral allele
+     * @return the table
+     */
+    public static AncestralAlleleTable build(String mafFile, MAF.Species reference, MAF.Species outgroup) {
+        AncestralAlleleTable table = new AncestralAlleleTable(reference, outgroup);
+        try (MAFBlockParser parser = new MAFBlockParser(mafFile)) {
+            while (parser.hasNext()) {
+                table.add(parser.next());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Adds the gap-free columns of a block; blocks missing the reference or the outgroup are ignored.
+     * @param mafBlock alignment block
+     */
+    public void add(MAF.MAFBlock mafBlock) {
+        MAF.forEachGapFreeColumn(mafBlock, speciesList, (records, column, positions) -> {
+            MAF.Record refRecord = records.get(0);
+            MAF.Record outgroupRecord = records.get(1);
+            int refPos = positions[0];
+            byte[] codes = codesByChr.computeIfAbsent(refRecord.strandRange.getChr(),
+                    k -> new byte[(refRecord.strandRange.getChromSize() + 1) >>> 1]);
+            if (BaseCode.getPacked(codes, refPos) == BaseCode.MISSING) {
+                BaseCode.setPacked(codes, refPos, BaseCode.encode(outgroupRecord.getBase(column)));
+            }
+        });
+    }
+
+    public MAF.Species getReference() {
+        return reference;
+    }
+
+    public MAF.Species getOutgroup() {
+        return outgroup;
+    }
+
+    /**
+     * Returns the reference chromosomes with at least one aligned block.
+     * @return chromosome names, sorted
+     */
+    public List<String> getChromosomes() {
+        List<String> chromosomes = new ArrayList<>(codesByChr.keySet());
+        Collections.sort(chromosomes);
+        return chromosomes;
+    }
+
+    /**
+     * Returns the ancestral allele at a reference position.
+     * @param chr reference chromosome, as in the MAF records, e.g. "1A"
+     * @param pos 1-based reference position
+     * @return the upper-case ASCII base, '.' if the position has no ancestral allele
+     */
+    public byte getAncestralAllele(String chr, int pos) {
+        byte[] codes = codesByChr.get(chr);
+        if (codes == null || pos < 1 || pos > codes.length << 1) return BaseCode.decode(BaseCode.MISSING);
+        return BaseCode.decode(BaseCode.getPacked(codes, pos - 1));
+    }
+
+    @Override
+    public byte ancestralAt(String chr, int pos) {
+        return getAncestralAllele(chr, pos);
+    }
+
+    /**
+     * @return nibble-packed codes of a reference chromosome, index pos - 1, null if it has no aligned block
+     */
+    byte[] getCodes(String chr) {
+        return codesByChr.get(chr);
+    }
+}
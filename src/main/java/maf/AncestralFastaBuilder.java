@@ -0,0 +1,200 @@
+package maf;
+
+import utils.IOTool;
+import utils.OrderedParallelWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes the ancestral sequence of each reference chromosome as a FASTA file, straight from MAF blocks.
+ * <p>
+ * The FASTA file of a chromosome, outputDir/chr.fa, is created when the chromosome is first seen,
+ * sized from the chromosome size in the MAF records, memory-mapped and filled with N.
+ * Calls are then written in place at the offset of their reference position, so blocks can come in any order
+ * and nothing is sorted. A reference position is claimed by the first block in which the reference has a base and
+ * at least one outgroup is aligned to it; the ancestral base is called by an {@link AncestralInference}, by default
+ * the base of the outgroups if they all have the same A, C, G or T, N otherwise. Chromosomes never aligned are not written.
+ * <p>
+ * {@link #close()} flushes the files and writes the .fai index of each one if requested.
+ */
+public class AncestralFastaBuilder implements AutoCloseable {
+
+    private static final int LINE_LENGTH = 80;
+
+    private final MAF.Species reference;
+    private final AncestralInference inference;
+    private final Path outputDir;
+    private final boolean writeFai;
+    private final Arena arena = Arena.ofShared();
+    private final Map<String, ChromosomeFasta> fastaByChr = new HashMap<>();
+    private final ReferenceCoverage coverage = new ReferenceCoverage();
+
+    /**
+     * @param reference species whose chromosomes are written
+     * @param outgroups species whose agreeing bases give the ancestral base
+     * @param outputDir directory of the FASTA files
+     * @param writeFai  true to write a samtools .fai index next to each FASTA file
+     */
+    public AncestralFastaBuilder(MAF.Species reference, List<MAF.Species> outgroups, String outputDir, boolean writeFai) {
+        this(reference, AncestralInference.minAgreeing(outgroups, outgroups.size()), outputDir, writeFai);
+    }
+
+    /**
+     * @param reference species whose chromosomes are written
+     * @param inference outgroups and rule calling the ancestral base
+     * @param outputDir directory of the FASTA files
+     * @param writeFai  true to write a samtools .fai index next to each FASTA file
+     */
+    public AncestralFastaBuilder(MAF.Species reference, AncestralInference inference, String outputDir, boolean writeFai) {
+        assert !inference.getOutgroups().contains(reference) : "outgroups must not contain the reference";
+        this.reference = reference;
+        this.inference = inference;
+        this.outputDir = Paths.get(outputDir);
+        this.writeFai = writeFai;
+    }
+
+    /**
+     * Writes the ancestral FASTA files of a MAF file in one pass.
+     * Blocks are called on worker threads and written in file order, so the output does not depend on threadsNum.
+     * @param mafFile    MAF file, optionally gzipped
+     * @param reference  species whose chromosomes are written
+     * @param outgroups  species whose agreeing bases give the ancestral base
+     * @param outputDir  directory of the FASTA files
+     * @param writeFai   true to write a samtools .fai index next to each FASTA file
+     * @param threadsNum number of calling threads
+     */
+    public static void build(String mafFile, MAF.Species reference, List<MAF.Species> outgroups, String outputDir,
+                             boolean writeFai, int threadsNum) {
+        build(mafFile, reference, AncestralInference.minAgreeing(outgroups, outgroups.size()), outputDir, writeFai, threadsNum);
+    }
+
+    /**
+     * Same as {@link #build(String, MAF.Species, List, String, boolean, int)}, with ancestral bases called by inference.
+     * @param mafFile    MAF file, optionally gzipped
+     * @param reference  species whose chromosomes are written
+     * @param inference  outgroups and rule calling the ancestral base
+     * @param outputDir  directory of the FASTA files
+     * @param writeFai   true to write a samtools .fai index next to each FASTA file
+     * @param threadsNum number of calling threads
+     */
+    public static void build(String mafFile, MAF.Species reference, AncestralInference inference, String outputDir,
+                             boolean writeFai, int threadsNum) {
+        try (AncestralFastaBuilder builder = new AncestralFastaBuilder(reference, inference, outputDir, writeFai);
+             MAFBlockParser parser = new MAFBlockParser(mafFile)) {
+            OrderedParallelWriter.forEachOrdered(parser, mafBlock -> inference.infer(mafBlock, reference), builder::apply, threadsNum);
+        }
+    }
+
+    /**
+     * Calls the reference positions of a block and writes them.
+     * @param mafBlock alignment block
+     */
+    public void add(MAF.MAFBlock mafBlock) {
+        apply(inference.infer(mafBlock, reference));
+    }
+
+    private void apply(AncestralInference.BlockCalls blockCalls) {
+        if (blockCalls == null) return;
+        MAF.StrandRange strandRange = blockCalls.strandRange;
+        String chr = strandRange.getChr();
+        ChromosomeFasta fasta = fastaByChr.get(chr);
+        if (fasta == null) {
+            fasta = new ChromosomeFasta(chr, strandRange.getChromSize());
+            fastaByChr.put(chr, fasta);
+        }
+        for (int k = 0; k < blockCalls.calls.length; k++) {
+            byte call = blockCalls.calls[k];
+            if (call == AncestralInference.UNCLAIMED) continue;
+            int pos = blockCalls.getPosition(k);
+            if (coverage.mark(chr, strandRange.getChromSize(), pos) && call != 'N') {
+                fasta.set(pos, call);
+            }
+        }
+    }
+
+    /**
+     * @return reference positions claimed by a block, see {@link ReferenceCoverage#getDuplicatedBaseNum(String)}
+     * for those aligned by more than one block
+     */
+    public ReferenceCoverage getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Flushes the FASTA files to disk, writes their .fai index if requested and unmaps them.
+     */
+    @Override
+    public void close() {
+        if (!arena.scope().isAlive()) return;
+        try {
+            for (ChromosomeFasta fasta : fastaByChr.values()) {
+                fasta.sequence.force();
+                if (writeFai) fasta.writeFai();
+            }
+        } finally {
+            arena.close();
+        }
+    }
+
+    /**
+     * Memory-mapped FASTA file of one chromosome: a header line then lines of LINE_LENGTH bases.
+     */
+    private class ChromosomeFasta {
+
+        final String chr;
+        final int length;
+        final Path path;
+        final long headerLength;
+        final MemorySegment sequence;
+
+        ChromosomeFasta(String chr, int length) {
+            this.chr = chr;
+            this.length = length;
+            this.path = outputDir.resolve(chr + ".fa");
+            byte[] header = (">" + chr + "\n").getBytes(StandardCharsets.US_ASCII);
+            this.headerLength = header.length;
+            long lineNum = (length + LINE_LENGTH - 1) / LINE_LENGTH;
+            long fileSize = headerLength + length + lineNum;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                this.sequence = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize, arena);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            MemorySegment.copy(header, 0, sequence, ValueLayout.JAVA_BYTE, 0, header.length);
+            sequence.asSlice(headerLength).fill((byte) 'N');
+            for (long line = 1; line <= lineNum; line++) {
+                long end = Math.min(line * LINE_LENGTH, length);
+                sequence.set(ValueLayout.JAVA_BYTE, headerLength + end + line - 1, (byte) '\n');
+            }
+        }
+
+        /**
+         * @param pos  0-based position
+         * @param base upper-case ASCII base
+         */
+        void set(int pos, byte base) {
+            sequence.set(ValueLayout.JAVA_BYTE, headerLength + pos + pos / LINE_LENGTH, base);
+        }
+
+        void writeFai() {
+            try (BufferedWriter bw = IOTool.getBufferedWriter(path + ".fai")) {
+                bw.write(chr + "\t" + length + "\t" + headerLength + "\t" + LINE_LENGTH + "\t" + (LINE_LENGTH + 1));
+                bw.newLine();
+                bw.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
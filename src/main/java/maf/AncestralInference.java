@@ -0,0 +1,438 @@
+package maf;
+
+import dutils.Strand;
+import utils.IOTool;
+import utils.OrderedParallelWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Infers the ancestral base of reference positions from the bases of several outgroups in a MAF column.
+ * <p>
+ * Outgroups are given in order of preference, usually the closest first; where a rule needs a tie-breaker,
+ * the first outgroup with one of the tied bases decides. Three rules are available:
+ * <ul>
+ *     <li>{@link Rule#MAJORITY}: the most frequent base among the outgroups</li>
+ *     <li>{@link Rule#PARSIMONY}: Fitch parsimony over a fixed topology of the outgroups, the base of the root</li>
+ *     <li>{@link Rule#MIN_AGREEING}: the most frequent base, only if at least minAgreeing outgroups have it
+ *     and no other base is as frequent</li>
+ * </ul>
+ * Each outgroup base is reduced to one of six states: A, C, G, T, other (N, IUPAC codes) or gap (gaps and
+ * outgroups missing from the block); only A, C, G and T count as evidence. The rule is evaluated once for every
+ * combination of states when the engine is built, and stored in tables indexed by the states packed 3 bits
+ * per outgroup. A column then costs one table lookup, and the index of a whole block is built row by row
+ * in a loop without branches.
+ * <p>
+ * Every call comes with a {@link Confidence}. Reference positions where all outgroups are gaps are unclaimed.
+ */
+public class AncestralInference {
+
+    /** Table size is 8^outgroups */
+    private static final int MAX_OUTGROUPS = 7;
+    private static final int STATE_BITS = 3;
+    private static final byte STATE_OTHER = 4;
+    private static final byte STATE_GAP = 5;
+    private static final byte[] STATE_TO_BASE = {'A', 'C', 'G', 'T'};
+    private static final byte[] BASE_TO_STATE = new byte[256];
+    /** Call of a reference position no outgroup is aligned to */
+    static final byte UNCLAIMED = 0;
+
+    static {
+        Arrays.fill(BASE_TO_STATE, STATE_OTHER);
+        BASE_TO_STATE['-'] = STATE_GAP;
+        for (byte state = 0; state < STATE_TO_BASE.length; state++) {
+            BASE_TO_STATE[STATE_TO_BASE[state]] = state;
+        }
+    }
+
+    public enum Rule {
+        MAJORITY,
+        PARSIMONY,
+        MIN_AGREEING
+    }
+
+    /**
+     * Support of a call, from none to all outgroups agreeing.
+     */
+    public enum Confidence {
+        /** no call, the ancestral base is N */
+        NONE,
+        /** the rule was tied and the outgroup order decided */
+        TIE_BREAK,
+        /** some outgroups have another base */
+        CONFLICT,
+        /** all outgroups with a base agree, some have none */
+        PARTIAL,
+        /** all outgroups have the same base */
+        FULL
+    }
+
+    private static final Confidence[] CONFIDENCES = Confidence.values();
+
+    private final List<MAF.Species> outgroups;
+    private final Rule rule;
+    /** ASCII call of each state combination: a base, N, or UNCLAIMED */
+    private final byte[] callTable;
+    /** Confidence ordinal of each state combination */
+    private final byte[] confidenceTable;
+    private final ThreadLocal<int[]> indexBuffer = ThreadLocal.withInitial(() -> new int[0]);
+
+    private AncestralInference(List<MAF.Species> outgroups, Rule rule, int minAgreeing, Node topology) {
+        assert !outgroups.isEmpty() && outgroups.size() <= MAX_OUTGROUPS : "1 to " + MAX_OUTGROUPS + " outgroups are supported";
+        assert new HashSet<>(outgroups).size() == outgroups.size() : "outgroups contains duplicate species";
+        this.outgroups = new ArrayList<>(outgroups);
+        this.rule = rule;
+        int outgroupNum = outgroups.size();
+        int tableSize = 1 << (STATE_BITS * outgroupNum);
+        this.callTable = new byte[tableSize];
+        this.confidenceTable = new byte[tableSize];
+        byte[] states = new byte[outgroupNum];
+        for (int index = 0; index < tableSize; index++) {
+            boolean valid = true;
+            for (int j = 0; j < outgroupNum; j++) {
+                // the first outgroup takes the highest bits
+                states[j] = (byte) ((index >>> (STATE_BITS * (outgroupNum - 1 - j))) & 7);
+                valid &= states[j] <= STATE_GAP;
+            }
+            if (valid) evaluate(index, states, minAgreeing, topology);
+        }
+    }
+
+    /**
+     * @param outgroups outgroups in order of preference, at most 7
+     * @return an engine calling the most frequent outgroup base
+     */
+    public static AncestralInference majority(List<MAF.Species> outgroups) {
+        return new AncestralInference(outgroups, Rule.MAJORITY, 1, null);
+    }
+
+    /**
+     * @param outgroups   outgroups in order of preference, at most 7
+     * @param minAgreeing minimum number of outgroups with the called base
+     * @return an engine calling the most frequent outgroup base if enough outgroups have it
+     */
+    public static AncestralInference minAgreeing(List<MAF.Species> outgroups, int minAgreeing) {
+        assert minAgreeing >= 1 && minAgreeing <= outgroups.size() : "minAgreeing must be between 1 and the number of outgroups";
+        return new AncestralInference(outgroups, Rule.MIN_AGREEING, minAgreeing, null);
+    }
+
+    /**
+     * @param outgroups outgroups in order of preference, at most 7
+     * @param newick    rooted topology of the outgroups, e.g. "((At,Hv),Bd);", with species IDs as leaf names;
+     *                  branch lengths are ignored
+     * @return an engine calling the Fitch parsimony base of the root
+     */
+    public static AncestralInference parsimony(List<MAF.Species> outgroups, String newick) {
+        Node topology = new NewickParser(newick, outgroups).parse();
+        return new AncestralInference(outgroups, Rule.PARSIMONY, 1, topology);
+    }
+
+    public List<MAF.Species> getOutgroups() {
+        return Collections.unmodifiableList(outgroups);
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * Fills the tables for one combination of outgroup states.
+     */
+    private void evaluate(int index, byte[] states, int minAgreeing, Node topology) {
+        int[] counts = new int[4];
+        int presentNum = 0, alignedNum = 0;
+        for (byte state : states) {
+            if (state != STATE_GAP) alignedNum++;
+            if (state < 4) {
+                counts[state]++;
+                presentNum++;
+            }
+        }
+        if (alignedNum == 0) {
+            callTable[index] = UNCLAIMED;
+            confidenceTable[index] = (byte) Confidence.NONE.ordinal();
+            return;
+        }
+        int max = 0, maxNum = 0;
+        for (int count : counts) {
+            if (count > max) {
+                max = count;
+                maxNum = 1;
+            } else if (count == max && count > 0) {
+                maxNum++;
+            }
+        }
+        // bases the rule cannot tell apart, one bit per state
+        int candidates = 0;
+        switch (rule) {
+            case MAJORITY -> {
+                for (int s = 0; s < 4 && max > 0; s++) {
+                    if (counts[s] == max) candidates |= 1 << s;
+                }
+            }
+            case MIN_AGREEING -> {
+                if (max >= minAgreeing && maxNum == 1) {
+                    for (int s = 0; s < 4; s++) {
+                        if (counts[s] == max) candidates = 1 << s;
+                    }
+                }
+            }
+            case PARSIMONY -> candidates = presentNum == 0 ? 0 : topology.fitch(states);
+        }
+        int call = -1;
+        boolean tieBroken = false;
+        if (Integer.bitCount(candidates) == 1) {
+            call = Integer.numberOfTrailingZeros(candidates);
+        } else if (candidates != 0) {
+            for (byte state : states) {
+                if (state < 4 && (candidates & (1 << state)) != 0) {
+                    call = state;
+                    tieBroken = true;
+                    break;
+                }
+            }
+        }
+        Confidence confidence;
+        if (call < 0) {
+            confidence = Confidence.NONE;
+        } else if (tieBroken) {
+            confidence = Confidence.TIE_BREAK;
+        } else if (counts[call] < presentNum) {
+            confidence = Confidence.CONFLICT;
+        } else if (counts[call] < states.length) {
+            confidence = Confidence.PARTIAL;
+        } else {
+            confidence = Confidence.FULL;
+        }
+        callTable[index] = call < 0 ? (byte) 'N' : STATE_TO_BASE[call];
+        confidenceTable[index] = (byte) confidence.ordinal();
+    }
+
+    /**
+     * Infers the ancestral base of every reference base of a block. Thread-safe.
+     * @param mafBlock  alignment block
+     * @param reference species whose bases are called
+     * @return calls in reference column order, null if the block misses the reference or every outgroup
+     */
+    BlockCalls infer(MAF.MAFBlock mafBlock, MAF.Species reference) {
+        MAF.Record refRecord = mafBlock.getRecord(reference);
+        if (refRecord == null) return null;
+        int alignmentSize = mafBlock.alignmentSize;
+        int[] indices = indexBuffer.get();
+        if (indices.length < alignmentSize) {
+            indices = new int[Math.max(alignmentSize, indices.length << 1)];
+            indexBuffer.set(indices);
+        }
+        Arrays.fill(indices, 0, alignmentSize, 0);
+        boolean aligned = false;
+        for (MAF.Species outgroup : outgroups) {
+            MAF.Record record = mafBlock.getRecord(outgroup);
+            if (record == null) {
+                for (int i = 0; i < alignmentSize; i++) {
+                    indices[i] = indices[i] << STATE_BITS | STATE_GAP;
+                }
+                continue;
+            }
+            aligned = true;
+            byte[] row = record.baseAscIIArray;
+            if (row != null) {
+                for (int i = 0; i < alignmentSize; i++) {
+                    indices[i] = indices[i] << STATE_BITS | BASE_TO_STATE[row[i] & 0xFF];
+                }
+            } else {
+                for (int i = 0; i < alignmentSize; i++) {
+                    indices[i] = indices[i] << STATE_BITS | BASE_TO_STATE[record.getBase(i) & 0xFF];
+                }
+            }
+        }
+        if (!aligned) return null;
+        int len = refRecord.strandRange.getLen();
+        byte[] refBases = new byte[len];
+        byte[] calls = new byte[len];
+        byte[] confidences = new byte[len];
+        int k = 0;
+        for (int i = 0; i < alignmentSize && k < len; i++) {
+            byte refBase = refRecord.getBase(i);
+            if (refBase == '-') continue;
+            refBases[k] = refBase;
+            calls[k] = callTable[indices[i]];
+            confidences[k] = confidenceTable[indices[i]];
+            k++;
+        }
+        if (k < len) {
+            refBases = Arrays.copyOf(refBases, k);
+            calls = Arrays.copyOf(calls, k);
+            confidences = Arrays.copyOf(confidences, k);
+        }
+        return new BlockCalls(refRecord.strandRange, refBases, calls, confidences);
+    }
+
+    /**
+     * Writes the inferred ancestral base of every claimed reference position of a MAF file, block by block in
+     * file order. Columns: Chr, Pos (1-based), Ref, Ancestral (N if no call), Confidence.
+     * Positions aligned by several blocks get one row per block.
+     * @param mafFile    MAF file, optionally gzipped
+     * @param reference  species whose positions are called
+     * @param outputFile output TSV file, gzipped if the name ends with .gz
+     * @param threadsNum number of inference threads
+     */
+    public void write(String mafFile, MAF.Species reference, String outputFile, int threadsNum) {
+        assert !outgroups.contains(reference) : "outgroups must not contain the reference";
+        ThreadLocal<StringBuilder> stringBuilder = ThreadLocal.withInitial(StringBuilder::new);
+        try (MAFBlockParser parser = new MAFBlockParser(mafFile);
+             BufferedOutputStream bos = IOTool.getBufferedOutputStream(outputFile)) {
+            bos.write(("Chr\tPos\tRef\tAncestral\tConfidence" + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+            OrderedParallelWriter.write(parser, mafBlock -> {
+                BlockCalls blockCalls = infer(mafBlock, reference);
+                if (blockCalls == null) return new byte[0];
+                StringBuilder sb = stringBuilder.get();
+                sb.setLength(0);
+                String chr = blockCalls.strandRange.getChr();
+                for (int k = 0; k < blockCalls.calls.length; k++) {
+                    if (blockCalls.calls[k] == UNCLAIMED) continue;
+                    sb.append(chr).append('\t').append(blockCalls.getPosition(k) + 1).append('\t');
+                    sb.append((char) blockCalls.refBases[k]).append('\t').append((char) blockCalls.calls[k]).append('\t');
+                    sb.append(CONFIDENCES[blockCalls.confidences[k]]).append('\n');
+                }
+                return sb.toString().getBytes(StandardCharsets.US_ASCII);
+            }, bos, threadsNum);
+            bos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Calls of the reference bases of one block, in column order.
+     */
+    static class BlockCalls {
+
+        final MAF.StrandRange strandRange;
+        final byte[] refBases;
+        /** ancestral base, N, or {@link #UNCLAIMED} */
+        final byte[] calls;
+        /** {@link Confidence} ordinals */
+        final byte[] confidences;
+
+        BlockCalls(MAF.StrandRange strandRange, byte[] refBases, byte[] calls, byte[] confidences) {
+            this.strandRange = strandRange;
+            this.refBases = refBases;
+            this.calls = calls;
+            this.confidences = confidences;
+        }
+
+        /**
+         * @return 0-based forward-strand position of the k-th reference base
+         */
+        int getPosition(int k) {
+            if (strandRange.getStrand() == Strand.PLUS) return strandRange.getStart() + k;
+            return strandRange.getChromSize() - 1 - strandRange.getStart() - k;
+        }
+    }
+
+    /**
+     * Node of the outgroup topology; leaves refer to an outgroup by index.
+     */
+    private static class Node {
+
+        final int outgroupIndex;
+        final List<Node> children;
+
+        Node(int outgroupIndex, List<Node> children) {
+            this.outgroupIndex = outgroupIndex;
+            this.children = children;
+        }
+
+        /**
+         * Fitch set of the node, one bit per base; outgroups without A, C, G or T allow every base.
+         */
+        int fitch(byte[] states) {
+            if (children.isEmpty()) {
+                byte state = states[outgroupIndex];
+                return state < 4 ? 1 << state : 0xF;
+            }
+            int intersection = 0xF, union = 0;
+            for (Node child : children) {
+                int set = child.fitch(states);
+                intersection &= set;
+                union |= set;
+            }
+            return intersection != 0 ? intersection : union;
+        }
+    }
+
+    /**
+     * Recursive descent parser of a Newick topology over the outgroups.
+     */
+    private static class NewickParser {
+
+        private final String newick;
+        private final List<MAF.Species> outgroups;
+        private final boolean[] seen;
+        private int i;
+
+        NewickParser(String newick, List<MAF.Species> outgroups) {
+            this.newick = newick.trim();
+            this.outgroups = outgroups;
+            this.seen = new boolean[outgroups.size()];
+        }
+
+        Node parse() {
+            Node root = parseNode();
+            skipBranchLength();
+            if (i < newick.length() && newick.charAt(i) == ';') i++;
+            if (i != newick.length()) throw new IllegalArgumentException("Unexpected characters in topology: " + newick);
+            for (int j = 0; j < seen.length; j++) {
+                if (!seen[j]) throw new IllegalArgumentException("Outgroup missing from topology: " + outgroups.get(j).getSpeciesNameID());
+            }
+            return root;
+        }
+
+        private Node parseNode() {
+            skipWhitespace();
+            if (i < newick.length() && newick.charAt(i) == '(') {
+                i++;
+                List<Node> children = new ArrayList<>();
+                while (true) {
+                    children.add(parseNode());
+                    skipBranchLength();
+                    skipWhitespace();
+                    if (i >= newick.length()) throw new IllegalArgumentException("Unbalanced topology: " + newick);
+                    char c = newick.charAt(i++);
+                    if (c == ')') break;
+                    if (c != ',') throw new IllegalArgumentException("Unexpected '" + c + "' in topology: " + newick);
+                }
+                // internal node labels are ignored
+                while (i < newick.length() && isNameChar(newick.charAt(i))) i++;
+                return new Node(-1, children);
+            }
+            int start = i;
+            while (i < newick.length() && isNameChar(newick.charAt(i))) i++;
+            String name = newick.substring(start, i);
+            int index = outgroups.indexOf(MAF.Species.getInstanceFromStr(name));
+            if (index < 0) throw new IllegalArgumentException("Not an outgroup: " + name);
+            if (seen[index]) throw new IllegalArgumentException("Outgroup repeated in topology: " + name);
+            seen[index] = true;
+            return new Node(index, List.of());
+        }
+
+        private void skipBranchLength() {
+            skipWhitespace();
+            if (i < newick.length() && newick.charAt(i) == ':') {
+                i++;
+                while (i < newick.length() && (Character.isDigit(newick.charAt(i)) || "+-.eE".indexOf(newick.charAt(i)) >= 0)) i++;
+            }
+        }
+
+        private void skipWhitespace() {
+            while (i < newick.length() && Character.isWhitespace(newick.charAt(i))) i++;
+        }
+
+        private static boolean isNameChar(char c) {
+            return c != '(' && c != ')' && c != ',' && c != ':' && c != ';' && !Character.isWhitespace(c);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package maf;
+
+import dutils.Strand;
+import utils.IOTool;
+import utils.OrderedParallelWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Per-base conservation of a reference species against other species, computed from MAF blocks.
+ * For every reference base aligned in a block, each other species either has the same base (a match),
+ * a different base, or no base (a gap in its record, or no record in the block).
+ * Both counts are stored in one byte per reference position: match count in the high nibble, gap count in the low
+ * nibble, 0xFF for positions not covered by any block. Where blocks overlap, the first block in the file wins.
+ * Blocks are scored on worker threads and applied in file order, so results do not depend on threadsNum.
+ * <p>
+ * The codes of a reference chromosome are kept in a file scoreDir/chr.cons, created when the chromosome is first
+ * seen, sized from the chromosome size in the MAF records and memory-mapped, so whole genomes do not fill the heap.
+ * {@link #close()} unmaps the files; they are left in scoreDir.
+ */
+public class ConservationEngine implements AutoCloseable {
+
+    private static final byte UNCOVERED = (byte) 0xFF;
+
+    public enum Metric {
+        /** number of other species with the reference base */
+        MATCH_COUNT,
+        /** fraction of other species with the reference base */
+        IDENTITY,
+        /** fraction of other species without a base aligned to the reference base */
+        GAP_FRACTION
+    }
+
+    private final MAF.Species reference;
+    private final List<MAF.Species> others;
+    private final Path scoreDir;
+    private final Arena arena = Arena.ofShared();
+    private final Map<String, MemorySegment> codesByChr = new HashMap<>();
+    /** chromosome of the last applied block and its codes */
+    private String lastChr;
+    private MemorySegment lastCodes;
+
+    /**
+     * @param reference species whose coordinates the scores are projected on
+     * @param others    species compared with the reference, at most 14
+     * @param scoreDir  directory of the per-chromosome score files
+     */
+    public ConservationEngine(MAF.Species reference, List<MAF.Species> others, String scoreDir) {
+        assert !others.contains(reference) : "others must not contain the reference";
+        assert others.size() < 15 : "at most 14 other species are supported";
+        this.reference = reference;
+        this.others = new ArrayList<>(others);
+        this.scoreDir = Paths.get(scoreDir);
+    }
+
+    /**
+     * Scores every block of a MAF file.
+     * @param mafFile    MAF file, optionally gzipped
+     * @param reference  species whose coordinates the scores are projected on
+     * @param others     species compared with the reference
+     * @param scoreDir   directory of the per-chromosome score files
+     * @param threadsNum number of scoring threads
+     * @return the scores, to be closed
+     */
+    public static ConservationEngine compute(String mafFile, MAF.Species reference, List<MAF.Species> others,
+                                             String scoreDir, int threadsNum) {
+        ConservationEngine engine = new ConservationEngine(reference, others, scoreDir);
+        try (MAFBlockParser parser = new MAFBlockParser(mafFile)) {
+            OrderedParallelWriter.forEachOrdered(parser, engine::score, engine::apply, threadsNum);
+        } catch (RuntimeException e) {
+            engine.close();
+            throw e;
+        }
+        return engine;
+    }
+
+    /**
+     * Scores a block and stores its scores.
+     * @param mafBlock alignment block
+     */
+    public void add(MAF.MAFBlock mafBlock) {
+        apply(score(mafBlock));
+    }
+
+    /**
+     * Computes the codes of the reference bases of a block, in column order. Thread-safe.
+     */
+    private BlockScores score(MAF.MAFBlock mafBlock) {
+        MAF.Record refRecord = mafBlock.getRecord(reference);
+        if (refRecord == null) return null;
+        MAF.Record[] otherRecords = new MAF.Record[others.size()];
+        for (int j = 0; j < otherRecords.length; j++) {
+            otherRecords[j] = mafBlock.getRecord(others.get(j));
+        }
+        byte[] codes = new byte[refRecord.strandRange.getLen()];
+        int k = 0;
+        for (int i = 0; i < mafBlock.alignmentSize && k < codes.length; i++) {
+            byte refBase = refRecord.getBase(i);
+            if (refBase == '-') continue;
+            boolean comparable = refBase == 'A' || refBase == 'C' || refBase == 'G' || refBase == 'T';
+            int matchCount = 0, gapCount = 0;
+            for (MAF.Record otherRecord : otherRecords) {
+                if (otherRecord == null) {
+                    gapCount++;
+                    continue;
+                }
+                byte base = otherRecord.getBase(i);
+                if (base == '-') {
+                    gapCount++;
+                } else if (comparable && base == refBase) {
+                    matchCount++;
+                }
+            }
+            codes[k++] = (byte) (matchCount << 4 | gapCount);
+        }
+        MAF.StrandRange strandRange = refRecord.strandRange;
+        return new BlockScores(strandRange, k < codes.length ? Arrays.copyOf(codes, k) : codes);
+    }
+
+    private void apply(BlockScores blockScores) {
+        if (blockScores == null) return;
+        MAF.StrandRange strandRange = blockScores.strandRange;
+        if (!strandRange.getChr().equals(lastChr)) {
+            lastChr = strandRange.getChr();
+            lastCodes = codesByChr.computeIfAbsent(lastChr, chr -> mapCodes(chr, strandRange.getChromSize()));
+        }
+        MemorySegment chrCodes = lastCodes;
+        boolean plus = strandRange.getStrand() == Strand.PLUS;
+        long start = plus ? strandRange.getStart() : strandRange.getChromSize() - 1 - strandRange.getStart();
+        for (int k = 0; k < blockScores.codes.length; k++) {
+            long pos = plus ? start + k : start - k;
+            if (chrCodes.get(ValueLayout.JAVA_BYTE, pos) == UNCOVERED) chrCodes.set(ValueLayout.JAVA_BYTE, pos, blockScores.codes[k]);
+        }
+    }
+
+    /**
+     * Creates the score file of a chromosome, all positions uncovered, and maps it.
+     */
+    private MemorySegment mapCodes(String chr, int chromSize) {
+        try (FileChannel channel = FileChannel.open(scoreDir.resolve(chr + ".cons"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MemorySegment codes = channel.map(FileChannel.MapMode.READ_WRITE, 0, chromSize, arena);
+            codes.fill(UNCOVERED);
+            return codes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public MAF.Species getReference() {
+        return reference;
+    }
+
+    public List<MAF.Species> getOthers() {
+        return Collections.unmodifiableList(others);
+    }
+
+    /**
+     * @param chr reference chromosome
+     * @param pos 1-based reference position
+     * @return true if the position is aligned in at least one block
+     */
+    public boolean isCovered(String chr, int pos) {
+        return getCode(chr, pos) != UNCOVERED;
+    }
+
+    /**
+     * @param chr reference chromosome
+     * @param pos 1-based reference position
+     * @return the number of other species with the reference base, -1 if the position is not covered
+     */
+    public int getMatchCount(String chr, int pos) {
+        byte code = getCode(chr, pos);
+        return code == UNCOVERED ? -1 : (code >>> 4) & 0xF;
+    }
+
+    /**
+     * @param chr reference chromosome
+     * @param pos 1-based reference position
+     * @return the number of other species without a base, -1 if the position is not covered
+     */
+    public int getGapCount(String chr, int pos) {
+        byte code = getCode(chr, pos);
+        return code == UNCOVERED ? -1 : code & 0xF;
+    }
+
+    private byte getCode(String chr, int pos) {
+        MemorySegment chrCodes = codesByChr.get(chr);
+        if (chrCodes == null || pos < 1 || pos > chrCodes.byteSize()) return UNCOVERED;
+        return chrCodes.get(ValueLayout.JAVA_BYTE, pos - 1);
+    }
+
+    /**
+     * Writes one metric as a bedGraph (0-based, half-open), chromosomes sorted by name.
+     * Consecutive positions with the same value are merged, uncovered positions are left out.
+     * @param outputFile output file, gzipped if the name ends with .gz
+     * @param metric     metric to write
+     */
+    public void writeBedGraph(String outputFile, Metric metric) {
+        String[] values = new String[256];
+        // codes with the same printed value share an id, so runs are found without comparing Strings
+        int[] valueIDs = new int[256];
+        Map<String, Integer> valueIDMap = new HashMap<>();
+        for (int code = 0; code < 256; code++) {
+            int matchCount = code >>> 4, gapCount = code & 0xF;
+            values[code] = switch (metric) {
+                case MATCH_COUNT -> String.valueOf(matchCount);
+                case IDENTITY -> formatFraction(matchCount, others.size());
+                case GAP_FRACTION -> formatFraction(gapCount, others.size());
+            };
+            valueIDs[code] = valueIDMap.computeIfAbsent(values[code], k -> valueIDMap.size());
+        }
+        valueIDs[UNCOVERED & 0xFF] = -1;
+        List<String> chromosomes = new ArrayList<>(codesByChr.keySet());
+        Collections.sort(chromosomes);
+        try (BufferedWriter bw = IOTool.getBufferedWriter(outputFile)) {
+            StringBuilder sb = new StringBuilder();
+            for (String chr : chromosomes) {
+                MemorySegment chrCodes = codesByChr.get(chr);
+                long length = chrCodes.byteSize();
+                long i = 0;
+                while (i < length) {
+                    int code = chrCodes.get(ValueLayout.JAVA_BYTE, i) & 0xFF;
+                    int valueID = valueIDs[code];
+                    if (valueID < 0) {
+                        i++;
+                        continue;
+                    }
+                    long runStart = i;
+                    do {
+                        i++;
+                    } while (i < length && valueIDs[chrCodes.get(ValueLayout.JAVA_BYTE, i) & 0xFF] == valueID);
+                    sb.setLength(0);
+                    sb.append(chr).append('\t').append(runStart).append('\t').append(i).append('\t').append(values[code]);
+                    bw.write(sb.toString());
+                    bw.newLine();
+                }
+            }
+            bw.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Flushes the score files and unmaps them; scores cannot be read afterwards.
+     */
+    @Override
+    public void close() {
+        if (!arena.scope().isAlive()) return;
+        try {
+            for (MemorySegment chrCodes : codesByChr.values()) {
+                chrCodes.force();
+            }
+        } finally {
+            arena.close();
+        }
+    }
+
+    private static String formatFraction(int numerator, int denominator) {
+        if (denominator == 0) return "0";
+        return String.format(Locale.ROOT, "%.4f", (double) numerator / denominator);
+    }
+
+    /**
+     * Codes of the reference bases of one block, in column order.
+     */
+    private static class BlockScores {
+
+        final MAF.StrandRange strandRange;
+        final byte[] codes;
+
+        BlockScores(MAF.StrandRange strandRange, byte[] codes) {
+            this.strandRange = strandRange;
+            this.codes = codes;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package maf;
+
+import dutils.Strand;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable per-thread kernel behind {@link MAF#forEachGapFreeColumn}.
+ * A block is viewed as a species x column byte matrix whose rows are the aligned sequences of the requested
+ * species (null for packed and off-heap records, which mark their own gaps), looked up by
+ * {@link MAF.Species#ordinal()} in the order of speciesList. The start position and the
+ * direction of each row are computed once per block, and all buffers are kept between blocks, so the column
+ * loop allocates nothing. Gaps are found for the whole block at once, with the Vector API when it is available.
+ * If a species has several records in a block, only the first one is used.
+ */
+final class GapFreeColumnKernel {
+
+    private static final ThreadLocal<GapFreeColumnKernel> KERNEL = new ThreadLocal<>();
+    /** true if the Vector API module is present, see {@link VectorGapScanner} */
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private final MAF.Species[] species;
+    private final MAF.Record[] records;
+    /** the list passed to consumers, a view of records */
+    private final List<MAF.Record> recordView;
+    private final byte[][] rows;
+    /** forward-strand position of the first base of each row */
+    private final int[] starts;
+    /** +1 on the plus strand, -1 on the minus strand */
+    private final int[] directions;
+    private final int[] positions;
+    /** bit i of gapWords[j] is set if row j has a gap at column i */
+    private final long[][] gapWords;
+    /** gaps of row j before word w */
+    private final int[][] gapPrefixCounts;
+    /** union of the gap bits of all rows */
+    private long[] gapMask = new long[0];
+
+    private GapFreeColumnKernel(List<MAF.Species> speciesList) {
+        int speciesNum = speciesList.size();
+        this.species = speciesList.toArray(new MAF.Species[0]);
+        this.records = new MAF.Record[speciesNum];
+        this.recordView = Arrays.asList(records);
+        this.rows = new byte[speciesNum][];
+        this.starts = new int[speciesNum];
+        this.directions = new int[speciesNum];
+        this.positions = new int[speciesNum];
+        this.gapWords = new long[speciesNum][0];
+        this.gapPrefixCounts = new int[speciesNum][0];
+    }
+
+    /**
+     * Returns the kernel of the calling thread, rebuilt only when the species list changes.
+     */
+    static GapFreeColumnKernel get(List<MAF.Species> speciesList) {
+        GapFreeColumnKernel kernel = KERNEL.get();
+        if (kernel == null || !kernel.hasSpecies(speciesList)) {
+            kernel = new GapFreeColumnKernel(speciesList);
+            KERNEL.set(kernel);
+        }
+        return kernel;
+    }
+
+    private boolean hasSpecies(List<MAF.Species> speciesList) {
+        if (speciesList.size() != species.length) return false;
+        for (int j = 0; j < species.length; j++) {
+            if (speciesList.get(j) != species[j]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads the rows of a block.
+     * @return false if the block misses one of the species
+     */
+    private boolean load(MAF.MAFBlock mafBlock) {
+        for (int j = 0; j < species.length; j++) {
+            MAF.Record record = mafBlock.getRecord(species[j]);
+            if (record == null) {
+                Arrays.fill(records, null);
+                return false;
+            }
+            MAF.StrandRange strandRange = record.strandRange;
+            records[j] = record;
+            rows[j] = record.baseAscIIArray;
+            if (strandRange.getStrand() == Strand.PLUS) {
+                starts[j] = strandRange.getStart();
+                directions[j] = 1;
+            } else {
+                starts[j] = strandRange.getChromSize() - 1 - strandRange.getStart();
+                directions[j] = -1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Marks the gaps of each row in a bitmask, one bit per column, and their running counts per 64-column word.
+     * The union of the row masks gives all gapped columns at once, so gapped columns are skipped
+     * 64 at a time and only gap-free columns reach the consumer.
+     */
+    void run(MAF.MAFBlock mafBlock, MAF.GapFreeColumnConsumer consumer) {
+        if (!load(mafBlock)) return;
+        int speciesNum = species.length;
+        int alignmentSize = mafBlock.alignmentSize;
+        int wordNum = (alignmentSize + 63) >>> 6;
+        ensureCapacity(wordNum);
+        Arrays.fill(gapMask, 0, wordNum, 0L);
+        for (int j = 0; j < speciesNum; j++) {
+            long[] words = gapWords[j];
+            Arrays.fill(words, 0, wordNum, 0L);
+            if (rows[j] != null) {
+                markGaps(rows[j], 0, alignmentSize, words);
+            } else {
+                records[j].markGaps(words);
+            }
+            int[] prefix = gapPrefixCounts[j];
+            int count = 0;
+            for (int w = 0; w < wordNum; w++) {
+                prefix[w] = count;
+                count += Long.bitCount(words[w]);
+                gapMask[w] |= words[w];
+            }
+        }
+        for (int w = 0; w < wordNum; w++) {
+            long gapFree = ~gapMask[w];
+            if (w == wordNum - 1 && (alignmentSize & 63) != 0) gapFree &= (1L << (alignmentSize & 63)) - 1;
+            while (gapFree != 0) {
+                int bit = Long.numberOfTrailingZeros(gapFree);
+                gapFree &= gapFree - 1;
+                int i = (w << 6) | bit;
+                long below = (1L << bit) - 1;
+                // bases already aligned in this row: i - gaps before i, counted away from the start on the minus strand
+                for (int j = 0; j < speciesNum; j++) {
+                    int dashCount = gapPrefixCounts[j][w] + Long.bitCount(gapWords[j][w] & below);
+                    positions[j] = starts[j] + directions[j] * (i - dashCount);
+                }
+                consumer.accept(recordView, i, positions);
+            }
+        }
+        // do not keep the sequences of the last block alive
+        Arrays.fill(records, null);
+        Arrays.fill(rows, null);
+    }
+
+    /**
+     * Sets bit i of words for every gap row[offset + i], i < length; words must be cleared by the caller.
+     */
+    static void markGaps(byte[] row, int offset, int length, long[] words) {
+        if (VECTORIZED) {
+            VectorGapScanner.markGaps(row, offset, length, words);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            if (row[offset + i] == '-') words[i >>> 6] |= 1L << (i & 63);
+        }
+    }
+
+    /**
+     * Sets bit i of words for every gap at byte i of an off-heap row; words must be cleared by the caller.
+     */
+    static void markGaps(MemorySegment row, long[] words) {
+        int length = (int) row.byteSize();
+        if (VECTORIZED) {
+            VectorGapScanner.markGaps(row, length, words);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            if (row.get(ValueLayout.JAVA_BYTE, i) == '-') words[i >>> 6] |= 1L << (i & 63);
+        }
+    }
+
+    private void ensureCapacity(int wordNum) {
+        if (gapMask.length >= wordNum) return;
+        int capacity = Math.max(wordNum, gapMask.length << 1);
+        gapMask = new long[capacity];
+        for (int j = 0; j < species.length; j++) {
+            gapWords[j] = new long[capacity];
+            gapPrefixCounts[j] = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package maf;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * Static collection of half-open intervals [start, end), each carrying an int value,
+ * answering overlap queries in O(log n + k).
+ * Intervals are sorted by start; a prefix maximum of the ends lets a query skip, by binary search,
+ * every interval that ends before the query starts.
+ * Call {@link #build()} after the last {@link #add(int, int, int)} and before querying.
+ */
+class IntervalList {
+
+    private IntArrayList starts = new IntArrayList();
+    private IntArrayList ends = new IntArrayList();
+    private IntArrayList values = new IntArrayList();
+    private int[] startArray;
+    private int[] endArray;
+    private int[] valueArray;
+    private int[] maxEnds;
+
+    void add(int start, int end, int value) {
+        assert startArray == null : "IntervalList is already built";
+        starts.add(start);
+        ends.add(end);
+        values.add(value);
+    }
+
+    void build() {
+        int size = starts.size();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+        int[] s = starts.elements();
+        IntArrays.quickSort(order, (a, b) -> Integer.compare(s[a], s[b]));
+        startArray = new int[size];
+        endArray = new int[size];
+        valueArray = new int[size];
+        maxEnds = new int[size];
+        int maxEnd = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            startArray[i] = starts.getInt(order[i]);
+            endArray[i] = ends.getInt(order[i]);
+            valueArray[i] = values.getInt(order[i]);
+            maxEnd = Math.max(maxEnd, endArray[i]);
+            maxEnds[i] = maxEnd;
+        }
+        starts = null;
+        ends = null;
+        values = null;
+    }
+
+    int size() {
+        return startArray.length;
+    }
+
+    int getStart(int index) {
+        return startArray[index];
+    }
+
+    int getEnd(int index) {
+        return endArray[index];
+    }
+
+    int getValue(int index) {
+        return valueArray[index];
+    }
+
+    /**
+     * Returns the indices, in start order, of the intervals overlapping [queryStart, queryEnd).
+     */
+    IntArrayList query(int queryStart, int queryEnd) {
+        IntArrayList result = new IntArrayList();
+        // first interval whose prefix max end exceeds queryStart
+        int low = 0, high = maxEnds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (maxEnds[mid] > queryStart) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        for (int i = low; i < startArray.length && startArray[i] < queryEnd; i++) {
+            if (endArray[i] > queryStart) result.add(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the smallest value among the intervals containing position, or -1 if there is none.
+     * Unlike {@link #query(int, int)}, nothing is allocated.
+     */
+    int minValueAt(int position) {
+        int low = 0, high = maxEnds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (maxEnds[mid] > position) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        int minValue = -1;
+        for (int i = low; i < startArray.length && startArray[i] <= position; i++) {
+            if (endArray[i] > position && (minValue < 0 || valueArray[i] < minValue)) minValue = valueArray[i];
+        }
+        return minValue;
+    }
+}
@@ -1,14 +1,24 @@
 package maf;
 
 import dutils.Strand;
-import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
+import utils.Benchmark;
+import utils.CommandUtils;
 import utils.IOTool;
-import java.io.BufferedReader;
+import utils.OrderedParallelWriter;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Parser and processor for Multi-Alignment Format (MAF) files.
@@ -18,99 +28,456 @@ import java.util.stream.Collectors;
  * @version 1.0
  * @since 2025-11-10
  */
-public class MAF {
+public class MAF implements AutoCloseable {
+
+    static final int SPECIES_NUM = Species.values().length;
 
     List<MAFBlock> mafBlockList;
 
     public MAF(String mafFile){
         List<MAFBlock> mafBlockList = new ArrayList<>();
-        MAFBlock mafBlock;
-        List<String> linesPerAlignment= new ArrayList<>();
-        String line;
-        try (BufferedReader br = IOTool.getBufferedReader(mafFile)) {
-            while ((line = br.readLine()) != null && line.startsWith("#")) {}
-            while (line!=null){
-                if (StringUtils.isBlank(line)){
-                    mafBlock = new MAFBlock(linesPerAlignment);
-                    mafBlockList.add(mafBlock);
-                    linesPerAlignment.clear();
-                }else {
-                    linesPerAlignment.add(line);
-                }
-                line = br.readLine();
+        try (MAFBlockParser reader = new MAFBlockParser(mafFile)) {
+            while (reader.hasNext()){
+                mafBlockList.add(reader.next());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
         this.mafBlockList = mafBlockList;
     }
 
+    /**
+     * Read a MAF file on several threads, see {@link ParallelMAFParser}.
+     * Plain text and BGZF files are split into ranges parsed in parallel; plain gzip files are read serially.
+     * @param mafFile MAF file
+     * @param threadsNum number of parsing threads
+     */
+    public MAF(String mafFile, int threadsNum){
+        this.mafBlockList = ParallelMAFParser.parse(mafFile, threadsNum);
+    }
+
+    /**
+     * Read a MAF file on several threads, optionally keeping long aligned sequences off-heap in one arena per block,
+     * see {@link MAFBlockParser}. Off-heap sequences stay out of the Java heap,
+     * so very long blocks do not turn into humongous arrays; they are freed by {@link #close()}.
+     * @param mafFile MAF file
+     * @param threadsNum number of parsing threads
+     * @param offHeap true to keep sequences off-heap
+     */
+    public MAF(String mafFile, int threadsNum, boolean offHeap){
+        this.mafBlockList = ParallelMAFParser.parse(mafFile, threadsNum, offHeap);
+    }
+
+    /**
+     * Free the off-heap sequences of all blocks, see {@link MAFBlock#close()}.
+     */
+    @Override
+    public void close(){
+        for (MAFBlock mafBlock : mafBlockList) {
+            mafBlock.close();
+        }
+    }
+
+    /**
+     * Pack the sequences of all blocks into 2-bit bases plus gap and N/IUPAC bitmaps, see {@link Record#pack()},
+     * so that a whole alignment can be kept in memory for repeated queries.
+     * @param threadsNum number of threads
+     */
+    public void pack(int threadsNum){
+        List<Callable<Integer>> callableList = new ArrayList<>();
+        int chunkNum = Math.max(1, Math.min(threadsNum * 4, mafBlockList.size()));
+        for (int c = 0; c < chunkNum; c++) {
+            List<MAFBlock> chunk = mafBlockList.subList(mafBlockList.size() * c / chunkNum, mafBlockList.size() * (c + 1) / chunkNum);
+            callableList.add(() -> {
+                for (MAFBlock mafBlock : chunk) {
+                    mafBlock.pack();
+                }
+                return chunk.size();
+            });
+        }
+        if (CommandUtils.run_commands(callableList, threadsNum).size() != chunkNum){
+            throw new IllegalStateException("Failed to pack MAF blocks");
+        }
+    }
+
+    /**
+     * Stream the blocks of a MAF file one at a time, without loading the whole alignment.
+     * The returned stream must be closed to release the underlying file.
+     * @param mafFile MAF file, optionally gzipped
+     * @return a sequential stream of blocks in file order
+     */
+    public static Stream<MAFBlock> streamBlocks(String mafFile){
+        MAFBlockParser reader = new MAFBlockParser(mafFile);
+        Spliterator<MAFBlock> spliterator = Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(reader::close);
+    }
+
+    /**
+     * Compare the line-based parser ({@link MAFBlockReader}, String splitting per record)
+     * with the byte-level parser ({@link MAFBlockParser}) on the same MAF file.
+     * Each parser reads every block of the file; elapsed time and block counts are printed.
+     * @param mafFile MAF file, optionally gzipped
+     */
+    public static void benchmarkParsers(String mafFile){
+        long start = System.nanoTime();
+        long blockCount = 0;
+        try (MAFBlockReader reader = new MAFBlockReader(mafFile)) {
+            while (reader.hasNext()){
+                reader.next();
+                blockCount++;
+            }
+        }
+        double lineParserSeconds = Benchmark.calculateTimeSpanSeconds(start);
+        System.out.println("Line parser: "+blockCount+" blocks in "+lineParserSeconds+" s");
+        start = System.nanoTime();
+        blockCount = 0;
+        try (MAFBlockParser parser = new MAFBlockParser(mafFile)) {
+            while (parser.hasNext()){
+                parser.next();
+                blockCount++;
+            }
+        }
+        double byteParserSeconds = Benchmark.calculateTimeSpanSeconds(start);
+        System.out.println("Byte parser: "+blockCount+" blocks in "+byteParserSeconds+" s");
+        System.out.printf("Speedup: %.2fx%n", lineParserSeconds/byteParserSeconds);
+    }
+
     /**
      * Call ancestral alleles at aligned genomic positions for specified species.
      * Only positions without gaps across species will be output.
+     * Positions are on the forward strand: along a minus-strand record they decrease by one per base, gaps not counted.
+     * TSVs written before this was fixed have the minus-strand positions after a gap lowered by twice the number of
+     * gaps of the record up to that column; plus-strand positions are unchanged.
      * @param speciesList  Ordered list of species to extract
      * @param outputFile   Output TSV file, in which pos is 1-based
      */
     public void callAncestralAllele(List<Species> speciesList, String outputFile){
+        callAncestralAllele(mafBlockList.iterator(), speciesList, outputFile);
+    }
+
+    /**
+     * Streaming version of {@link #callAncestralAllele(List, String)}.
+     * Blocks are read from the MAF file and processed one at a time, so memory usage
+     * does not depend on the size of the alignment.
+     * @param mafFile      MAF file, optionally gzipped
+     * @param speciesList  Ordered list of species to extract
+     * @param outputFile   Output TSV file, in which pos is 1-based
+     */
+    public static void callAncestralAllele(String mafFile, List<Species> speciesList, String outputFile){
+        try (MAFBlockParser reader = new MAFBlockParser(mafFile)) {
+            callAncestralAllele(reader, speciesList, outputFile);
+        }
+    }
+
+    /**
+     * Call ancestral alleles only in the blocks overlapping a region, using a block index
+     * to seek straight to those blocks instead of scanning the whole MAF.
+     * All gap-free columns of each overlapping block are output, including those outside the region.
+     * @param mafBlockIndex index of the MAF file
+     * @param species      species of the region coordinates
+     * @param chr          chromosome name as stored in the MAF records, e.g. "1A"
+     * @param start        forward-strand start of the region, 0-based inclusive
+     * @param end          forward-strand end of the region, 0-based exclusive
+     * @param speciesList  Ordered list of species to extract
+     * @param outputFile   Output TSV file, in which pos is 1-based
+     */
+    public static void callAncestralAllele(MAFBlockIndex mafBlockIndex, Species species, String chr, int start, int end,
+                                           List<Species> speciesList, String outputFile){
+        callAncestralAllele(mafBlockIndex.query(species, chr, start, end).iterator(), speciesList, outputFile);
+    }
+
+    /**
+     * Parallel version of {@link #callAncestralAllele(List, String)}.
+     * Blocks are formatted on threadsNum worker threads and written in their original order,
+     * so the output is byte-identical to the serial method.
+     * @param speciesList  Ordered list of species to extract
+     * @param outputFile   Output TSV file, in which pos is 1-based
+     * @param threadsNum   number of worker threads
+     */
+    public void callAncestralAllele(List<Species> speciesList, String outputFile, int threadsNum){
+        callAncestralAllele(mafBlockList.iterator(), speciesList, outputFile, threadsNum);
+    }
+
+    /**
+     * Streaming and parallel version of {@link #callAncestralAllele(List, String)}.
+     * Blocks are read on the calling thread, formatted on threadsNum worker threads
+     * and written in their original order, so the output is byte-identical to the serial method.
+     * @param mafFile      MAF file, optionally gzipped
+     * @param speciesList  Ordered list of species to extract
+     * @param outputFile   Output TSV file, in which pos is 1-based
+     * @param threadsNum   number of worker threads
+     */
+    public static void callAncestralAllele(String mafFile, List<Species> speciesList, String outputFile, int threadsNum){
+        try (MAFBlockParser reader = new MAFBlockParser(mafFile)) {
+            callAncestralAllele(reader, speciesList, outputFile, threadsNum);
+        }
+    }
+
+    /**
+     * Same as {@link #callAncestralAllele(String, List, String, int)}, optionally with the long sequences of each block
+     * kept off-heap and freed as soon as the block is formatted, so the heap only holds the records and the output.
+     * @param mafFile      MAF file, optionally gzipped
+     * @param speciesList  Ordered list of species to extract
+     * @param outputFile   Output TSV file, in which pos is 1-based
+     * @param threadsNum   number of worker threads
+     * @param offHeap      true to keep sequences off-heap
+     */
+    public static void callAncestralAllele(String mafFile, List<Species> speciesList, String outputFile, int threadsNum,
+                                           boolean offHeap){
+        try (MAFBlockParser reader = new MAFBlockParser(mafFile, offHeap)) {
+            callAncestralAllele(reader, speciesList, outputFile, threadsNum, offHeap);
+        }
+    }
+
+    private static void callAncestralAllele(Iterator<MAFBlock> mafBlockIterator, List<Species> speciesList, String outputFile,
+                                            int threadsNum){
+        callAncestralAllele(mafBlockIterator, speciesList, outputFile, threadsNum, false);
+    }
+
+    /**
+     * @param closeBlocks true to close each block once formatted
+     */
+    private static void callAncestralAllele(Iterator<MAFBlock> mafBlockIterator, List<Species> speciesList, String outputFile,
+                                            int threadsNum, boolean closeBlocks){
+        if (threadsNum <= 1){
+            callAncestralAllele(mafBlockIterator, speciesList, outputFile, closeBlocks);
+            return;
+        }
         Set<Species> speciesSet = new HashSet<>(speciesList);
         assert speciesSet.size() == speciesList.size() : "speciesList contains duplicate species";
-        StringBuilder sb=new StringBuilder();
-        for (Species species : speciesList) {
-            sb.append("Chr_").append(species.getSpeciesNameID()).append("\t");
-            sb.append("Pos_").append(species.getSpeciesNameID()).append("\t");
-            sb.append("Allele_").append(species.getSpeciesNameID()).append("\t");
+        ThreadLocal<StringBuilder> stringBuilder = ThreadLocal.withInitial(StringBuilder::new);
+        try (BufferedOutputStream bos = IOTool.getBufferedOutputStream(outputFile)) {
+            bos.write((getAncestralAlleleHeader(speciesList)+System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+            OrderedParallelWriter.write(mafBlockIterator, mafBlock -> {
+                StringBuilder sb = stringBuilder.get();
+                sb.setLength(0);
+                appendAncestralAllele(mafBlock, speciesList, sb);
+                if (closeBlocks){
+                    mafBlock.close();
+                }
+                return sb.toString().getBytes(StandardCharsets.US_ASCII);
+            }, bos, threadsNum);
+            bos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        sb.deleteCharAt(sb.length()-1);
+    }
+
+    private static void callAncestralAllele(Iterator<MAFBlock> mafBlockIterator, List<Species> speciesList, String outputFile){
+        callAncestralAllele(mafBlockIterator, speciesList, outputFile, false);
+    }
+
+    private static void callAncestralAllele(Iterator<MAFBlock> mafBlockIterator, List<Species> speciesList, String outputFile,
+                                            boolean closeBlocks){
+        Set<Species> speciesSet = new HashSet<>(speciesList);
+        assert speciesSet.size() == speciesList.size() : "speciesList contains duplicate species";
         try (BufferedWriter bw = IOTool.getBufferedWriter(outputFile)) {
-            bw.write(sb.toString());
+            bw.write(getAncestralAlleleHeader(speciesList));
             bw.newLine();
-            int[] dashCountArray;
-            byte baseAscII;
-            int[] alignmentBlockStartPos;
-            int currentPos;
-            List<Record> subRecords = new ArrayList<>();
-            boolean[] haveDash;
-            for (MAFBlock mafBlock : mafBlockList) {
-                subRecords.clear();
-                subRecords = mafBlock.getSubRecords(speciesList);
-                if (subRecords.size() < speciesList.size()) continue;
-                alignmentBlockStartPos = new int[speciesList.size()];
-                for (int i = 0; i < speciesList.size(); i++) {
-                    if (subRecords.get(i).strandRange.getStrand().equals(Strand.PLUS)){
-                        alignmentBlockStartPos[i] = subRecords.get(i).strandRange.getStart();
-                    }else {
-                        alignmentBlockStartPos[i] = subRecords.get(i).strandRange.getChromSize()-1-subRecords.get(i).strandRange.getStart();
-                    }
+            StringBuilder sb = new StringBuilder();
+            while (mafBlockIterator.hasNext()) {
+                sb.setLength(0);
+                MAFBlock mafBlock = mafBlockIterator.next();
+                appendAncestralAllele(mafBlock, speciesList, sb);
+                if (closeBlocks){
+                    mafBlock.close();
                 }
-                dashCountArray = new int[speciesList.size()];
-                for (int i = 0; i < mafBlock.alignmentSize; i++) {
-                    sb.setLength(0);
-                    haveDash = new boolean[speciesList.size()];
-                    for (int j = 0; j < subRecords.size(); j++) {
-                        if (subRecords.get(j).isDash(i)){
-                            dashCountArray[j]++;
-                            haveDash[j] = true;
-                        }
-                        if (subRecords.get(j).strandRange.getStrand().equals(Strand.PLUS)){
-                            currentPos = alignmentBlockStartPos[j]+i-dashCountArray[j];
-                        }else {
-                            currentPos = alignmentBlockStartPos[j]-i-dashCountArray[j];
-                        }
-                        sb.append(subRecords.get(j).strandRange.getChr()).append("\t");
-                        sb.append(currentPos+1).append("\t");
-                        baseAscII=subRecords.get(j).baseAscIIArray[i];
-                        sb.append((char)baseAscII).append("\t");
+                bw.write(sb.toString());
+            }
+            bw.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Call ancestral alleles like {@link #callAncestralAllele(List, String)}, with at most one row per position of
+     * the first species, the reference. Positions called by several blocks are resolved by overlapPolicy.
+     * @param speciesList   Ordered list of species to extract, the first one is the reference
+     * @param outputFile    Output TSV file, in which pos is 1-based
+     * @param overlapPolicy row kept where blocks overlap on the reference
+     * @return covered and duplicated reference positions of all blocks, before resolution
+     */
+    public ReferenceCoverage callAncestralAllele(List<Species> speciesList, String outputFile,
+                                                 ReferenceCoverage.OverlapPolicy overlapPolicy){
+        return callAncestralAllele(mafBlockList::forEach, speciesList, outputFile, overlapPolicy);
+    }
+
+    /**
+     * Streaming version of {@link #callAncestralAllele(List, String, ReferenceCoverage.OverlapPolicy)}.
+     * The MAF file is read once with FIRST_BLOCK, twice with DROP_CONFLICT and three times with HIGHEST_SCORE.
+     * @param mafFile       MAF file, optionally gzipped
+     * @param speciesList   Ordered list of species to extract, the first one is the reference
+     * @param outputFile    Output TSV file, in which pos is 1-based
+     * @param overlapPolicy row kept where blocks overlap on the reference
+     * @return covered and duplicated reference positions of all blocks, before resolution
+     */
+    public static ReferenceCoverage callAncestralAllele(String mafFile, List<Species> speciesList, String outputFile,
+                                                        ReferenceCoverage.OverlapPolicy overlapPolicy){
+        return callAncestralAllele(blockConsumer -> {
+            try (MAFBlockParser reader = new MAFBlockParser(mafFile)) {
+                while (reader.hasNext()){
+                    blockConsumer.accept(reader.next());
+                }
+            }
+        }, speciesList, outputFile, overlapPolicy);
+    }
+
+    /**
+     * @param blockSource passes every block, in file order, to the consumer it is given; called once per pass
+     */
+    private static ReferenceCoverage callAncestralAllele(Consumer<Consumer<MAFBlock>> blockSource, List<Species> speciesList,
+                                                         String outputFile, ReferenceCoverage.OverlapPolicy overlapPolicy){
+        Set<Species> speciesSet = new HashSet<>(speciesList);
+        assert speciesSet.size() == speciesList.size() : "speciesList contains duplicate species";
+        ReferenceCoverage coverage = new ReferenceCoverage();
+        if (overlapPolicy != ReferenceCoverage.OverlapPolicy.FIRST_BLOCK){
+            blockSource.accept(mafBlock -> forEachGapFreeColumn(mafBlock, speciesList, (records, column, positions) -> {
+                StrandRange strandRange = records.get(0).strandRange;
+                coverage.mark(strandRange.getChr(), strandRange.getChromSize(), positions[0]);
+            }));
+        }
+        // index and score of the best block at each duplicated position, by rank among the duplicated positions
+        Map<String, int[]> bestBlocksByChr = new HashMap<>();
+        if (overlapPolicy == ReferenceCoverage.OverlapPolicy.HIGHEST_SCORE){
+            Map<String, double[]> bestScoresByChr = new HashMap<>();
+            int[] blockIndex = {0};
+            blockSource.accept(mafBlock -> {
+                int index = blockIndex[0]++;
+                forEachGapFreeColumn(mafBlock, speciesList, (records, column, positions) -> {
+                    String chr = records.get(0).strandRange.getChr();
+                    if (!coverage.isDuplicated(chr, positions[0])) return;
+                    int rank = coverage.getDuplicatedRank(chr, positions[0]);
+                    int[] bestBlocks = bestBlocksByChr.computeIfAbsent(chr, k -> {
+                        int[] array = new int[(int) coverage.getDuplicatedBaseNum(k)];
+                        Arrays.fill(array, -1);
+                        return array;
+                    });
+                    double[] bestScores = bestScoresByChr.computeIfAbsent(chr, k -> new double[bestBlocks.length]);
+                    if (bestBlocks[rank] < 0 || mafBlock.score > bestScores[rank]){
+                        bestBlocks[rank] = index;
+                        bestScores[rank] = mafBlock.score;
+                    }
+                });
+            });
+        }
+        try (BufferedWriter bw = IOTool.getBufferedWriter(outputFile)) {
+            bw.write(getAncestralAlleleHeader(speciesList));
+            bw.newLine();
+            StringBuilder sb = new StringBuilder();
+            int[] blockIndex = {0};
+            blockSource.accept(mafBlock -> {
+                int index = blockIndex[0]++;
+                sb.setLength(0);
+                forEachGapFreeColumn(mafBlock, speciesList, (records, column, positions) -> {
+                    StrandRange strandRange = records.get(0).strandRange;
+                    String chr = strandRange.getChr();
+                    int pos = positions[0];
+                    boolean kept = switch (overlapPolicy) {
+                        case FIRST_BLOCK -> coverage.mark(chr, strandRange.getChromSize(), pos);
+                        case HIGHEST_SCORE -> !coverage.isDuplicated(chr, pos)
+                                || bestBlocksByChr.get(chr)[coverage.getDuplicatedRank(chr, pos)] == index;
+                        case DROP_CONFLICT -> !coverage.isDuplicated(chr, pos);
+                    };
+                    if (kept){
+                        appendAncestralAlleleRow(records, column, positions, sb);
                     }
-                    if (BooleanUtils.or(haveDash)) continue;
-                    sb.deleteCharAt(sb.length()-1);
+                });
+                try {
                     bw.write(sb.toString());
-                    bw.newLine();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
-            }
+            });
             bw.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return coverage;
+    }
+
+    /**
+     * Same calls as {@link #callAncestralAllele(List, String)}, written in the compact binary format of
+     * {@link AncestralAlleleBinaryWriter}: sites grouped by the chromosome of the first species and sorted by its position.
+     * @param speciesList  Ordered list of species to extract, the first one is the reference
+     * @param binaryFile   Output binary file
+     */
+    public void callAncestralAlleleBinary(List<Species> speciesList, String binaryFile){
+        AncestralAlleleBinaryWriter writer = new AncestralAlleleBinaryWriter(speciesList);
+        for (MAFBlock mafBlock : mafBlockList) {
+            writer.add(mafBlock);
+        }
+        writer.write(binaryFile);
+    }
+
+    /**
+     * Streaming version of {@link #callAncestralAlleleBinary(List, String)}.
+     * @param mafFile      MAF file, optionally gzipped
+     * @param speciesList  Ordered list of species to extract, the first one is the reference
+     * @param binaryFile   Output binary file
+     */
+    public static void callAncestralAlleleBinary(String mafFile, List<Species> speciesList, String binaryFile){
+        AncestralAlleleBinaryWriter writer = new AncestralAlleleBinaryWriter(speciesList);
+        try (MAFBlockParser reader = new MAFBlockParser(mafFile)) {
+            while (reader.hasNext()){
+                writer.add(reader.next());
+            }
+        }
+        writer.write(binaryFile);
+    }
+
+    /**
+     * Header of the ancestral allele table: Chr, Pos and Allele columns for each species.
+     */
+    static String getAncestralAlleleHeader(List<Species> speciesList){
+        StringBuilder sb=new StringBuilder();
+        for (Species species : speciesList) {
+            sb.append("Chr_").append(species.getSpeciesNameID()).append("\t");
+            sb.append("Pos_").append(species.getSpeciesNameID()).append("\t");
+            sb.append("Allele_").append(species.getSpeciesNameID()).append("\t");
+        }
+        sb.deleteCharAt(sb.length()-1);
+        return sb.toString();
+    }
+
+    /**
+     * Append one row per gap-free alignment column of the block to sb, each terminated by a new line.
+     * Blocks missing any of the requested species produce no rows.
+     */
+    static void appendAncestralAllele(MAFBlock mafBlock, List<Species> speciesList, StringBuilder sb){
+        forEachGapFreeColumn(mafBlock, speciesList, (records, column, positions) ->
+                appendAncestralAlleleRow(records, column, positions, sb));
+    }
+
+    private static void appendAncestralAlleleRow(List<Record> records, int column, int[] positions, StringBuilder sb){
+        for (int j = 0; j < records.size(); j++) {
+            sb.append(records.get(j).strandRange.getChr()).append("\t");
+            sb.append(positions[j]+1).append("\t");
+            sb.append((char)records.get(j).getBase(column)).append("\t");
+        }
+        sb.setCharAt(sb.length()-1, '\n');
+    }
+
+    /**
+     * Receives the gap-free alignment columns of a block, see {@link #forEachGapFreeColumn}.
+     */
+    interface GapFreeColumnConsumer {
+
+        /**
+         * records and positions are reused for the next column, consumers must copy what they keep.
+         * @param records   records of the requested species, in the order of speciesList
+         * @param column    column index in the block
+         * @param positions 0-based forward-strand genomic position of each record at this column
+         */
+        void accept(List<Record> records, int column, int[] positions);
+    }
+
+    /**
+     * Walk the columns of a block and pass every column without gaps in the requested species to the consumer.
+     * Blocks missing any of the requested species produce no columns.
+     * Positions on the minus strand are mapped back to forward-strand coordinates with chromSize.
+     * Uses a {@link GapFreeColumnKernel} reused by the calling thread, so nothing is allocated per column.
+     */
+    static void forEachGapFreeColumn(MAFBlock mafBlock, List<Species> speciesList, GapFreeColumnConsumer consumer){
+        GapFreeColumnKernel.get(speciesList).run(mafBlock, consumer);
     }
 
 
@@ -121,7 +488,9 @@ public class MAF {
     public static class Record {
         Species species;
         StrandRange strandRange;
-        byte[] baseAscIIArray; // Aligned sequence including gaps
+        byte[] baseAscIIArray; // Aligned sequence including gaps, null once packed or off-heap
+        PackedSequence packedSequence; // Compact aligned sequence, null until packed
+        MemorySegment sequenceSegment; // Off-heap aligned sequence, null unless parsed off-heap
 
         Record(Species species, String chr, int start, int size, Strand strand, int chromSize, byte[] ascIIArray){
             this.species=species;
@@ -129,9 +498,83 @@ public class MAF {
             this.baseAscIIArray =ascIIArray;
         }
 
+        /**
+         * Record whose aligned sequence lives in a segment of the block's arena, see {@link MAFBlockParser}.
+         */
+        Record(Species species, String chr, int start, int size, Strand strand, int chromSize, MemorySegment sequenceSegment){
+            this.species=species;
+            this.strandRange = new StrandRange(strand, chr, start, size, chromSize);
+            this.sequenceSegment=sequenceSegment;
+        }
+
         // Check if aligned base is a gap "-"
         public boolean isDash(int indexInBaseAscIIArray){
-            return baseAscIIArray[indexInBaseAscIIArray]==45;
+            return getBase(indexInBaseAscIIArray)==45;
+        }
+
+        /**
+         * Get the aligned base at a column, whether the record is packed, off-heap or not.
+         * @return upper-case ASCII base, or '-' for a gap
+         */
+        public byte getBase(int column){
+            if (baseAscIIArray != null) return baseAscIIArray[column];
+            if (sequenceSegment != null) return sequenceSegment.get(ValueLayout.JAVA_BYTE, column);
+            return packedSequence.getBase(column);
+        }
+
+        /**
+         * Copy the aligned sequence, including gaps, into dest[0, alignment size).
+         */
+        public void copyBasesTo(byte[] dest){
+            if (baseAscIIArray != null){
+                System.arraycopy(baseAscIIArray, 0, dest, 0, baseAscIIArray.length);
+            }else if (sequenceSegment != null){
+                MemorySegment.copy(sequenceSegment, ValueLayout.JAVA_BYTE, 0, dest, 0, (int) sequenceSegment.byteSize());
+            }else {
+                packedSequence.copyBasesTo(dest);
+            }
+        }
+
+        /**
+         * Number of alignment columns of the record.
+         */
+        int getAlignmentSize(){
+            if (baseAscIIArray != null) return baseAscIIArray.length;
+            if (sequenceSegment != null) return (int) sequenceSegment.byteSize();
+            return packedSequence.length();
+        }
+
+        /**
+         * Set bit i of words (bit i & 63 of word i >>> 6) for every gap at column i; words must be cleared by the caller.
+         */
+        void markGaps(long[] words){
+            if (baseAscIIArray != null){
+                GapFreeColumnKernel.markGaps(baseAscIIArray, 0, baseAscIIArray.length, words);
+            }else if (sequenceSegment != null){
+                GapFreeColumnKernel.markGaps(sequenceSegment, words);
+            }else {
+                packedSequence.markGaps(words);
+            }
+        }
+
+        /**
+         * Replace the byte-per-column sequence with a {@link PackedSequence}:
+         * 2-bit A/C/G/T plus bitmaps for gaps and other characters (N, IUPAC codes).
+         * Off-heap records are left as they are.
+         * Not thread-safe: do not pack a record while other threads read it.
+         */
+        public void pack(){
+            if (baseAscIIArray == null) return;
+            packedSequence = PackedSequence.pack(baseAscIIArray);
+            baseAscIIArray = null;
+        }
+
+        public boolean isPacked(){
+            return packedSequence != null;
+        }
+
+        public boolean isOffHeap(){
+            return sequenceSegment != null;
         }
 
     }
@@ -190,12 +633,29 @@ public class MAF {
      * Represents one alignment block in the MAF.
      * Each block has a score and multiple species records.
      */
-    public static class MAFBlock {
+    public static class MAFBlock implements AutoCloseable {
         double score;
         int alignmentSize; // Alignment column length
         List<Record> recordList = new ArrayList<>();
+        /** First record of each species, indexed by Species.ordinal() */
+        final Record[] recordsBySpecies = new Record[SPECIES_NUM];
+        /** Arena of the off-heap sequences, null if the sequences are on the heap */
+        private final Arena arena;
+
+        MAFBlock(double score, int alignmentSize, List<Record> recordList){
+            this(score, alignmentSize, recordList, null);
+        }
+
+        MAFBlock(double score, int alignmentSize, List<Record> recordList, Arena arena){
+            this.score=score;
+            this.alignmentSize=alignmentSize;
+            this.recordList=recordList;
+            this.arena=arena;
+            this.indexRecords();
+        }
 
         MAFBlock(List<String> linesPerAlignment){
+            this.arena=null;
             String[] temp, tem;
             score=Double.parseDouble(StringUtils.split(linesPerAlignment.get(0), "=")[1]);
             String refChr;
@@ -219,21 +679,62 @@ public class MAF {
                 recordList.add(record);
             }
             this.alignmentSize=alignmentSize;
+            this.indexRecords();
         }
 
         /**
          * Extract only the records belonging to the requested species (in input order).
          */
         public List<Record> getSubRecords(List<Species> speciesList){
+            boolean[] selected = new boolean[SPECIES_NUM];
+            for (Species species : speciesList) {
+                selected[species.ordinal()] = true;
+            }
             List<Record> subRecords = new ArrayList<>();
             for (Record record : recordList){
-                if (speciesList.contains(record.species)){
+                if (selected[record.species.ordinal()]){
                     subRecords.add(record);
                 }
             }
             return subRecords;
         }
 
+        /**
+         * Get the record of a species in constant time.
+         * @return the first record of the species in the block, null if the species is not aligned in this block
+         */
+        public Record getRecord(Species species){
+            return recordsBySpecies[species.ordinal()];
+        }
+
+        /**
+         * Pack the sequences of all records, see {@link Record#pack()}.
+         */
+        public void pack(){
+            for (Record record : recordList){
+                record.pack();
+            }
+        }
+
+        /**
+         * Free the off-heap sequences of the block, if any. The records of a closed block must not be read again.
+         * Does nothing for blocks kept on the heap, and for blocks already closed.
+         */
+        @Override
+        public void close(){
+            if (arena != null && arena.scope().isAlive()){
+                arena.close();
+            }
+        }
+
+        private void indexRecords(){
+            for (Record record : recordList){
+                if (recordsBySpecies[record.species.ordinal()] == null){
+                    recordsBySpecies[record.species.ordinal()] = record;
+                }
+            }
+        }
+
     }
 
     /**
@@ -0,0 +1,399 @@
+package maf;
+
+import dutils.Strand;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.IOUtil;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * On-disk index of the blocks of a MAF file, for random access by species, chromosome and position.
+ * For every block the index stores the offset of its "a" line and the StrandRange of each record.
+ * Offsets are plain byte offsets for uncompressed MAFs and htsjdk virtual file offsets for BGZF-compressed MAFs;
+ * ordinary gzip files cannot be indexed because they are not seekable.
+ * Queries use forward-strand, 0-based half-open coordinates; records on the minus strand are converted with chromSize.
+ */
+public class MAFBlockIndex {
+
+    private static final int MAGIC = 0x4D414649; // "MAFI"
+    private static final int VERSION = 1;
+
+    private final String mafFile;
+    private final boolean blockCompressed;
+    private final long[] blockOffsets;
+    private final List<String> chrNames;
+    /** Per block record metadata, flattened: records of block i are [recordIndex[i], recordIndex[i+1]) */
+    private final int[] recordIndex;
+    private final byte[] recordSpecies;
+    private final int[] recordChr;
+    private final byte[] recordStrand;
+    private final int[] recordStart;
+    private final int[] recordLen;
+    private final int[] recordChromSize;
+    private final EnumMap<MAF.Species, Map<String, IntervalList>> intervals = new EnumMap<>(MAF.Species.class);
+
+    private MAFBlockIndex(String mafFile, boolean blockCompressed, long[] blockOffsets, List<String> chrNames,
+                          int[] recordIndex, byte[] recordSpecies, int[] recordChr, byte[] recordStrand,
+                          int[] recordStart, int[] recordLen, int[] recordChromSize) {
+        this.mafFile = mafFile;
+        this.blockCompressed = blockCompressed;
+        this.blockOffsets = blockOffsets;
+        this.chrNames = chrNames;
+        this.recordIndex = recordIndex;
+        this.recordSpecies = recordSpecies;
+        this.recordChr = recordChr;
+        this.recordStrand = recordStrand;
+        this.recordStart = recordStart;
+        this.recordLen = recordLen;
+        this.recordChromSize = recordChromSize;
+        MAF.Species[] species = MAF.Species.values();
+        for (int i = 0; i < blockOffsets.length; i++) {
+            for (int j = recordIndex[i]; j < recordIndex[i + 1]; j++) {
+                intervals.computeIfAbsent(species[recordSpecies[j]], k -> new HashMap<>())
+                        .computeIfAbsent(chrNames.get(recordChr[j]), k -> new IntervalList())
+                        .add(getForwardStart(j), getForwardStart(j) + recordLen[j], i);
+            }
+        }
+        for (Map<String, IntervalList> chrIntervals : intervals.values()) {
+            chrIntervals.values().forEach(IntervalList::build);
+        }
+    }
+
+    /**
+     * Default index file of a MAF file.
+     * @param mafFile MAF file
+     * @return mafFile with the ".mafidx" suffix
+     */
+    public static String getIndexFile(String mafFile) {
+        return mafFile + ".mafidx";
+    }
+
+    /**
+     * Reads the default index of mafFile if it exists and is not older than mafFile;
+     * otherwise builds the index and writes it next to mafFile.
+     * @param mafFile plain or BGZF-compressed MAF file
+     * @return the index
+     */
+    public static MAFBlockIndex loadOrBuild(String mafFile) {
+        String indexFile = getIndexFile(mafFile);
+        File file = new File(indexFile);
+        if (file.exists()) {
+            if (file.lastModified() >= new File(mafFile).lastModified()) {
+                return read(mafFile, indexFile);
+            }
+            System.out.println(indexFile + " is older than " + mafFile + ", rebuilding it");
+        }
+        MAFBlockIndex index = build(mafFile);
+        index.write(indexFile);
+        return index;
+    }
+
+    /**
+     * Scans a MAF file once and records the offset and records of every block.
+     * @param mafFile plain or BGZF-compressed MAF file
+     * @return the index
+     */
+    public static MAFBlockIndex build(String mafFile) {
+        boolean blockCompressed = isBlockCompressed(mafFile);
+        if (!blockCompressed && mafFile.endsWith(".gz")) {
+            throw new IllegalArgumentException(mafFile + " is gzip but not BGZF compressed, recompress it with bgzip to index it");
+        }
+        LongArrayList blockOffsets = new LongArrayList();
+        List<String> chrNames = new ArrayList<>();
+        Map<String, Integer> chrIDMap = new HashMap<>();
+        IntArrayList recordIndex = new IntArrayList();
+        ByteArrayOutputStream recordSpecies = new ByteArrayOutputStream();
+        ByteArrayOutputStream recordStrand = new ByteArrayOutputStream();
+        IntArrayList recordChr = new IntArrayList();
+        IntArrayList recordStart = new IntArrayList();
+        IntArrayList recordLen = new IntArrayList();
+        IntArrayList recordChromSize = new IntArrayList();
+        recordIndex.add(0);
+        try {
+            VirtualOffsetInputStream virtualOffsetInputStream = null;
+            InputStream inputStream;
+            if (blockCompressed) {
+                virtualOffsetInputStream = new VirtualOffsetInputStream(new File(mafFile));
+                inputStream = virtualOffsetInputStream;
+            } else {
+                inputStream = new FileInputStream(mafFile);
+            }
+            try (MAFBlockParser parser = new MAFBlockParser(inputStream)) {
+                MAF.MAFBlock mafBlock;
+                while (parser.hasNext()) {
+                    mafBlock = parser.next();
+                    long offset = parser.getBlockOffset();
+                    blockOffsets.add(blockCompressed ? virtualOffsetInputStream.toVirtualOffset(offset) : offset);
+                    for (MAF.Record record : mafBlock.recordList) {
+                        MAF.StrandRange strandRange = record.strandRange;
+                        Integer chrID = chrIDMap.get(strandRange.getChr());
+                        if (chrID == null) {
+                            chrID = chrNames.size();
+                            chrIDMap.put(strandRange.getChr(), chrID);
+                            chrNames.add(strandRange.getChr());
+                        }
+                        recordSpecies.write(record.species.ordinal());
+                        recordStrand.write(strandRange.getStrand().ordinal());
+                        recordChr.add(chrID.intValue());
+                        recordStart.add(strandRange.getStart());
+                        recordLen.add(strandRange.getLen());
+                        recordChromSize.add(strandRange.getChromSize());
+                    }
+                    recordIndex.add(recordChr.size());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new MAFBlockIndex(mafFile, blockCompressed, blockOffsets.toLongArray(), chrNames,
+                recordIndex.toIntArray(), recordSpecies.toByteArray(), recordChr.toIntArray(), recordStrand.toByteArray(),
+                recordStart.toIntArray(), recordLen.toIntArray(), recordChromSize.toIntArray());
+    }
+
+    private static boolean isBlockCompressed(String mafFile) {
+        try {
+            return IOUtil.isBlockCompressed(Paths.get(mafFile));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the index in a compact binary format.
+     * @param indexFile output index file
+     */
+    public void write(String indexFile) {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 65536))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeBoolean(blockCompressed);
+            dos.writeInt(chrNames.size());
+            for (String chrName : chrNames) {
+                dos.writeUTF(chrName);
+            }
+            dos.writeInt(blockOffsets.length);
+            for (int i = 0; i < blockOffsets.length; i++) {
+                dos.writeLong(blockOffsets[i]);
+                dos.writeInt(recordIndex[i + 1] - recordIndex[i]);
+                for (int j = recordIndex[i]; j < recordIndex[i + 1]; j++) {
+                    dos.writeByte(recordSpecies[j]);
+                    dos.writeInt(recordChr[j]);
+                    dos.writeByte(recordStrand[j]);
+                    dos.writeInt(recordStart[j]);
+                    dos.writeInt(recordLen[j]);
+                    dos.writeInt(recordChromSize[j]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(String)}.
+     * @param mafFile   the indexed MAF file, used by queries
+     * @param indexFile index file
+     * @return the index
+     */
+    public static MAFBlockIndex read(String mafFile, String indexFile) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536))) {
+            if (dis.readInt() != MAGIC) throw new IllegalArgumentException(indexFile + " is not a MAF block index");
+            int version = dis.readInt();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported MAF block index version: " + version);
+            boolean blockCompressed = dis.readBoolean();
+            int chrNum = dis.readInt();
+            List<String> chrNames = new ArrayList<>(chrNum);
+            for (int i = 0; i < chrNum; i++) {
+                chrNames.add(dis.readUTF());
+            }
+            int blockNum = dis.readInt();
+            long[] blockOffsets = new long[blockNum];
+            int[] recordIndex = new int[blockNum + 1];
+            ByteArrayOutputStream recordSpecies = new ByteArrayOutputStream();
+            ByteArrayOutputStream recordStrand = new ByteArrayOutputStream();
+            IntArrayList recordChr = new IntArrayList();
+            IntArrayList recordStart = new IntArrayList();
+            IntArrayList recordLen = new IntArrayList();
+            IntArrayList recordChromSize = new IntArrayList();
+            for (int i = 0; i < blockNum; i++) {
+                blockOffsets[i] = dis.readLong();
+                int recordNum = dis.readInt();
+                for (int j = 0; j < recordNum; j++) {
+                    recordSpecies.write(dis.readByte());
+                    recordChr.add(dis.readInt());
+                    recordStrand.write(dis.readByte());
+                    recordStart.add(dis.readInt());
+                    recordLen.add(dis.readInt());
+                    recordChromSize.add(dis.readInt());
+                }
+                recordIndex[i + 1] = recordChr.size();
+            }
+            return new MAFBlockIndex(mafFile, blockCompressed, blockOffsets, chrNames, recordIndex,
+                    recordSpecies.toByteArray(), recordChr.toIntArray(), recordStrand.toByteArray(),
+                    recordStart.toIntArray(), recordLen.toIntArray(), recordChromSize.toIntArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getBlockNum() {
+        return blockOffsets.length;
+    }
+
+    /**
+     * Returns the StrandRanges of the records of one block, in file order.
+     * @param blockIndex index of the block in the MAF file
+     * @return the StrandRange of each record
+     */
+    public List<MAF.StrandRange> getStrandRanges(int blockIndex) {
+        List<MAF.StrandRange> strandRanges = new ArrayList<>();
+        Strand[] strands = Strand.values();
+        for (int j = recordIndex[blockIndex]; j < recordIndex[blockIndex + 1]; j++) {
+            strandRanges.add(new MAF.StrandRange(strands[recordStrand[j]], chrNames.get(recordChr[j]), recordStart[j],
+                    recordLen[j], recordChromSize[j]));
+        }
+        return strandRanges;
+    }
+
+    private int getForwardStart(int record) {
+        if (recordStrand[record] == Strand.PLUS.ordinal()) return recordStart[record];
+        return recordChromSize[record] - recordStart[record] - recordLen[record];
+    }
+
+    /**
+     * Finds the blocks in which the species has a record overlapping the query range.
+     * @param species species of the query coordinates
+     * @param chr     chromosome name as stored in the MAF records, e.g. "1A"
+     * @param start   forward-strand start, 0-based inclusive
+     * @param end     forward-strand end, 0-based exclusive
+     * @return indices of the overlapping blocks, in file order
+     */
+    public int[] queryBlockIndices(MAF.Species species, String chr, int start, int end) {
+        Map<String, IntervalList> chrIntervals = intervals.get(species);
+        if (chrIntervals == null || !chrIntervals.containsKey(chr)) return new int[0];
+        IntervalList intervalList = chrIntervals.get(chr);
+        IntArrayList hits = intervalList.query(start, end);
+        int[] blockIndices = new int[hits.size()];
+        for (int i = 0; i < hits.size(); i++) {
+            blockIndices[i] = intervalList.getValue(hits.getInt(i));
+        }
+        return Arrays.stream(blockIndices).sorted().distinct().toArray();
+    }
+
+    /**
+     * Seeks to and parses only the blocks in which the species has a record overlapping the query range.
+     * @param species species of the query coordinates
+     * @param chr     chromosome name as stored in the MAF records, e.g. "1A"
+     * @param start   forward-strand start, 0-based inclusive
+     * @param end     forward-strand end, 0-based exclusive
+     * @return the overlapping blocks, in file order
+     */
+    public List<MAF.MAFBlock> query(MAF.Species species, String chr, int start, int end) {
+        int[] blockIndices = queryBlockIndices(species, chr, start, end);
+        List<MAF.MAFBlock> mafBlocks = new ArrayList<>(blockIndices.length);
+        if (blockIndices.length == 0) return mafBlocks;
+        try {
+            if (blockCompressed) {
+                VirtualOffsetInputStream inputStream = new VirtualOffsetInputStream(new File(mafFile));
+                try (MAFBlockParser parser = new MAFBlockParser(inputStream)) {
+                    for (int blockIndex : blockIndices) {
+                        inputStream.seek(blockOffsets[blockIndex]);
+                        parser.discardBuffer();
+                        mafBlocks.add(parser.next());
+                    }
+                }
+            } else {
+                FileChannel channel = FileChannel.open(Paths.get(mafFile));
+                try (MAFBlockParser parser = new MAFBlockParser(Channels.newInputStream(channel))) {
+                    for (int blockIndex : blockIndices) {
+                        channel.position(blockOffsets[blockIndex]);
+                        parser.discardBuffer();
+                        mafBlocks.add(parser.next());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return mafBlocks;
+    }
+
+    /**
+     * Wraps a BlockCompressedInputStream so that offsets in the decompressed stream can be
+     * mapped back to virtual file offsets. Every read stays within one BGZF block, and the
+     * virtual offset of the first byte of each read is recorded. Empty BGZF blocks are skipped.
+     */
+    private static class VirtualOffsetInputStream extends InputStream {
+
+        private final BlockCompressedInputStream in;
+        private final long fileLength;
+        private final LongArrayList chunkStreamOffsets = new LongArrayList();
+        private final LongArrayList chunkVirtualOffsets = new LongArrayList();
+        private long streamOffset;
+
+        VirtualOffsetInputStream(File file) throws IOException {
+            this.in = new BlockCompressedInputStream(file);
+            this.fileLength = file.length();
+        }
+
+        /**
+         * Moves to a virtual file offset, which becomes offset 0 of the decompressed stream.
+         */
+        void seek(long virtualOffset) throws IOException {
+            in.seek(virtualOffset);
+            chunkStreamOffsets.clear();
+            chunkVirtualOffsets.clear();
+            streamOffset = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int available = in.available();
+            // htsjdk reports an empty BGZF block in the middle of the file like EOF, so read on until the end of the file
+            while (available == 0) {
+                if ((in.getFilePointer() >>> 16) >= fileLength) return -1;
+                available = in.available();
+            }
+            long virtualOffset = in.getFilePointer();
+            int n = in.read(b, off, Math.min(len, available));
+            chunkStreamOffsets.add(streamOffset);
+            chunkVirtualOffsets.add(virtualOffset);
+            streamOffset += n;
+            return n;
+        }
+
+        /**
+         * Maps an offset in the decompressed stream to the virtual file offset of that byte.
+         */
+        long toVirtualOffset(long offset) {
+            int low = 0, high = chunkStreamOffsets.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (chunkStreamOffsets.getLong(mid) <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return chunkVirtualOffsets.getLong(low) + (offset - chunkStreamOffsets.getLong(low));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package maf;
+
+import dutils.Strand;
+import utils.ByteLineReader;
+import utils.IOTool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Byte-level streaming parser for MAF files, a faster alternative to {@link MAFBlockReader}.
+ * Lines are read into one reusable buffer and the fields of each "s" line are parsed in place,
+ * so the only per-record allocations are the Record itself and its sequence array.
+ * The aligned sequence is uppercased in a single pass straight from the line buffer,
+ * and chromosome names are interned, so all records of a chromosome share one String.
+ * Lines other than "a" and "s" lines (e.g. "i", "e", "q") are skipped.
+ * <p>
+ * With offHeap, sequences of at least {@link #OFF_HEAP_MIN_LENGTH} columns are copied from the line buffer into
+ * {@link MemorySegment}s of one shared {@link Arena} per block instead of byte arrays, so long blocks do not fill the
+ * heap with humongous arrays. Shorter sequences stay on the heap, and a block without long sequences has no arena:
+ * closing a shared arena synchronizes with every thread, which would cost more than the millions of small blocks
+ * of a whole-genome MAF save. The memory is released by {@link MAF.MAFBlock#close()}.
+ */
+public class MAFBlockParser implements Iterator<MAF.MAFBlock>, Closeable {
+
+    private static final byte[] UPPER_CASE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            UPPER_CASE[i] = (byte) (i >= 'a' && i <= 'z' ? i - 32 : i);
+        }
+    }
+
+    private static final byte[] SCORE = "score=".getBytes(StandardCharsets.US_ASCII);
+
+    /** Half of the smallest G1 region, the length from which a byte array is allocated as a humongous object */
+    static final int OFF_HEAP_MIN_LENGTH = 1 << 19;
+
+    private static final MAF.Species[] SPECIES = MAF.Species.values();
+    private static final byte[][] SPECIES_ID_BYTES = new byte[SPECIES.length][];
+
+    static {
+        for (int i = 0; i < SPECIES.length; i++) {
+            SPECIES_ID_BYTES[i] = SPECIES[i].getSpeciesNameID().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final ByteLineReader reader;
+    private final boolean offHeap;
+    private final NameInterner chrInterner = new NameInterner();
+    private MAF.MAFBlock nextBlock;
+    /** arena of the block being parsed, created for its first long sequence */
+    private Arena blockArena;
+    /** true if the current line of the reader is an "a" line that has not been consumed yet */
+    private boolean pendingALine;
+    private long blockOffset = -1;
+    private long nextBlockOffset = -1;
+
+    public MAFBlockParser(String mafFile) {
+        this(IOTool.getInputStream(mafFile));
+    }
+
+    public MAFBlockParser(InputStream inputStream) {
+        this(inputStream, false);
+    }
+
+    /**
+     * @param mafFile MAF file, optionally gzipped
+     * @param offHeap true to keep sequences off-heap; every block must then be closed once processed
+     */
+    public MAFBlockParser(String mafFile, boolean offHeap) {
+        this(IOTool.getInputStream(mafFile), offHeap);
+    }
+
+    /**
+     * @param inputStream MAF content
+     * @param offHeap     true to keep sequences off-heap; every block must then be closed once processed
+     */
+    public MAFBlockParser(InputStream inputStream, boolean offHeap) {
+        this.reader = new ByteLineReader(inputStream);
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextBlock == null) {
+            try {
+                nextBlock = parseNextBlock();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return nextBlock != null;
+    }
+
+    @Override
+    public MAF.MAFBlock next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        MAF.MAFBlock mafBlock = nextBlock;
+        blockOffset = nextBlockOffset;
+        nextBlock = null;
+        return mafBlock;
+    }
+
+    /**
+     * Returns the offset, in the (decompressed) input stream, of the "a" line of the block
+     * last returned by {@link #next()}.
+     *
+     * @return the stream offset of the last returned block, or -1 before the first block
+     */
+    public long getBlockOffset() {
+        return blockOffset;
+    }
+
+    /**
+     * Drops the buffered input and the block read ahead, so parsing restarts at the current position of
+     * the underlying stream after it has been repositioned, e.g. by a seek to an indexed block.
+     */
+    void discardBuffer() {
+        reader.discardBuffer();
+        nextBlock = null;
+        pendingALine = false;
+        blockOffset = -1;
+        nextBlockOffset = -1;
+    }
+
+    private MAF.MAFBlock parseNextBlock() throws IOException {
+        byte[] line;
+        if (!pendingALine) {
+            while (true) {
+                if (!reader.readLine()) return null;
+                line = reader.getBuffer();
+                if (reader.getLineLength() > 0 && line[reader.getLineStart()] == 'a' && !reader.isBlankLine()) break;
+            }
+        }
+        pendingALine = false;
+        nextBlockOffset = reader.getLineOffset();
+        double score = parseScore(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd());
+        List<MAF.Record> recordList = new ArrayList<>();
+        int alignmentSize = -1;
+        blockArena = null;
+        MAF.Record record;
+        while (reader.readLine()) {
+            if (reader.isBlankLine()) break;
+            line = reader.getBuffer();
+            if (line[reader.getLineStart()] == 'a') {
+                pendingALine = true;
+                break;
+            }
+            if (line[reader.getLineStart()] != 's') continue;
+            record = parseRecord(line, reader.getLineStart(), reader.getLineEnd());
+            alignmentSize = record.getAlignmentSize();
+            recordList.add(record);
+        }
+        return new MAF.MAFBlock(score, alignmentSize, recordList, blockArena);
+    }
+
+    /**
+     * Parses the value of the "score=" field of an "a" line, 0 if the line has no score.
+     */
+    private static double parseScore(byte[] line, int start, int end) {
+        int i = indexOf(line, start, end, SCORE);
+        if (i < 0) return 0;
+        int valueStart = i + SCORE.length;
+        int valueEnd = valueStart;
+        while (valueEnd < end && !isWhitespace(line[valueEnd])) valueEnd++;
+        return Double.parseDouble(new String(line, valueStart, valueEnd - valueStart, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses one "s" line: s src start size strand srcSize text
+     * With offHeap, a sequence of at least {@link #OFF_HEAP_MIN_LENGTH} columns goes to the arena of the block.
+     */
+    private MAF.Record parseRecord(byte[] line, int start, int end) {
+        int fieldStart = skipWhitespace(line, start + 1, end);
+        int fieldEnd = skipNonWhitespace(line, fieldStart, end);
+        // src is species.chrName(.suffix), the first three characters of chrName (e.g. "chr") are dropped
+        int dot = fieldStart;
+        while (dot < fieldEnd && line[dot] != '.') dot++;
+        int chrEnd = dot + 1;
+        while (chrEnd < fieldEnd && line[chrEnd] != '.') chrEnd++;
+        MAF.Species species = getSpecies(line, fieldStart, dot);
+        String chr = chrInterner.intern(line, dot + 4, chrEnd);
+
+        fieldStart = skipWhitespace(line, fieldEnd, end);
+        fieldEnd = skipNonWhitespace(line, fieldStart, end);
+        int recordStart = ByteLineReader.parseInt(line, fieldStart, fieldEnd);
+
+        fieldStart = skipWhitespace(line, fieldEnd, end);
+        fieldEnd = skipNonWhitespace(line, fieldStart, end);
+        int size = ByteLineReader.parseInt(line, fieldStart, fieldEnd);
+
+        fieldStart = skipWhitespace(line, fieldEnd, end);
+        fieldEnd = skipNonWhitespace(line, fieldStart, end);
+        if (fieldEnd - fieldStart != 1 || (line[fieldStart] != '+' && line[fieldStart] != '-')) {
+            throw new IllegalArgumentException("Invalid strand: " + new String(line, fieldStart, fieldEnd - fieldStart));
+        }
+        Strand strand = line[fieldStart] == '+' ? Strand.PLUS : Strand.MINUS;
+
+        fieldStart = skipWhitespace(line, fieldEnd, end);
+        fieldEnd = skipNonWhitespace(line, fieldStart, end);
+        int srcSize = ByteLineReader.parseInt(line, fieldStart, fieldEnd);
+
+        fieldStart = skipWhitespace(line, fieldEnd, end);
+        fieldEnd = skipNonWhitespace(line, fieldStart, end);
+        if (offHeap && fieldEnd - fieldStart >= OFF_HEAP_MIN_LENGTH) {
+            if (blockArena == null) blockArena = Arena.ofShared();
+            // the line is not read again, so it is uppercased in place and copied in bulk
+            for (int i = fieldStart; i < fieldEnd; i++) {
+                line[i] = UPPER_CASE[line[i] & 0xFF];
+            }
+            MemorySegment sequence = blockArena.allocate(fieldEnd - fieldStart);
+            MemorySegment.copy(line, fieldStart, sequence, ValueLayout.JAVA_BYTE, 0, fieldEnd - fieldStart);
+            return new MAF.Record(species, chr, recordStart, size, strand, srcSize, sequence);
+        }
+        byte[] ascIIArray = new byte[fieldEnd - fieldStart];
+        for (int i = 0; i < ascIIArray.length; i++) {
+            ascIIArray[i] = UPPER_CASE[line[fieldStart + i] & 0xFF];
+        }
+        return new MAF.Record(species, chr, recordStart, size, strand, srcSize, ascIIArray);
+    }
+
+    private static MAF.Species getSpecies(byte[] line, int start, int end) {
+        int len = end - start;
+        for (int i = 0; i < SPECIES_ID_BYTES.length; i++) {
+            if (SPECIES_ID_BYTES[i].length == len && regionEquals(line, start, SPECIES_ID_BYTES[i])) {
+                return SPECIES[i];
+            }
+        }
+        throw new IllegalArgumentException("speciesNameID not found: " + new String(line, start, len, StandardCharsets.US_ASCII));
+    }
+
+    private static boolean regionEquals(byte[] line, int start, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            if (line[start + i] != target[i]) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] line, int start, int end, byte[] target) {
+        for (int i = start; i <= end - target.length; i++) {
+            if (regionEquals(line, i, target)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int skipWhitespace(byte[] line, int i, int end) {
+        while (i < end && isWhitespace(line[i])) i++;
+        return i;
+    }
+
+    private static int skipNonWhitespace(byte[] line, int i, int end) {
+        while (i < end && !isWhitespace(line[i])) i++;
+        return i;
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Open-addressing table mapping byte ranges to canonical Strings,
+     * so a chromosome name is only decoded the first time it is seen.
+     */
+    private static class NameInterner {
+
+        private String[] table = new String[64];
+        private int size;
+
+        String intern(byte[] bytes, int start, int end) {
+            if (start > end) start = end;
+            int hash = hash(bytes, start, end);
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            String name;
+            while ((name = table[slot]) != null) {
+                if (matches(name, bytes, start, end)) return name;
+                slot = (slot + 1) & mask;
+            }
+            name = new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+            table[slot] = name;
+            if (++size * 2 > table.length) rehash();
+            return name;
+        }
+
+        private static int hash(byte[] bytes, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + bytes[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(String name, byte[] bytes, int start, int end) {
+            if (name.length() != end - start) return false;
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != bytes[start + i]) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            String[] oldTable = table;
+            table = new String[oldTable.length << 1];
+            int mask = table.length - 1;
+            for (String name : oldTable) {
+                if (name == null) continue;
+                byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+                int slot = hash(bytes, 0, bytes.length) & mask;
+                while (table[slot] != null) slot = (slot + 1) & mask;
+                table[slot] = name;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package maf;
+
+import org.apache.commons.lang3.StringUtils;
+import utils.IOTool;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming reader over the alignment blocks of a MAF file (plain or gzipped).
+ * Only the block being returned is held in memory, so a whole-genome MAF can be
+ * processed block by block with constant heap usage.
+ * Header lines ("#") are skipped, blocks are separated by blank lines, and the last
+ * block does not need to be followed by a blank line.
+ */
+public class MAFBlockReader implements Iterator<MAF.MAFBlock>, Closeable {
+
+    private final BufferedReader br;
+    private final List<String> linesPerAlignment = new ArrayList<>();
+    private MAF.MAFBlock nextBlock;
+
+    public MAFBlockReader(String mafFile) {
+        this.br = IOTool.getBufferedReader(mafFile);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextBlock == null) {
+            nextBlock = readNextBlock();
+        }
+        return nextBlock != null;
+    }
+
+    @Override
+    public MAF.MAFBlock next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        MAF.MAFBlock mafBlock = nextBlock;
+        nextBlock = null;
+        return mafBlock;
+    }
+
+    /**
+     * Read lines up to the next blank line (or end of file) and build one block from them.
+     * @return the next block, or null if the file is exhausted
+     */
+    private MAF.MAFBlock readNextBlock() {
+        linesPerAlignment.clear();
+        String line;
+        try {
+            while ((line = br.readLine()) != null) {
+                if (StringUtils.isBlank(line)) {
+                    if (!linesPerAlignment.isEmpty()) break;
+                    continue;
+                }
+                if (line.startsWith("#")) continue;
+                linesPerAlignment.add(line);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (linesPerAlignment.isEmpty()) return null;
+        return new MAF.MAFBlock(linesPerAlignment);
+    }
+
+    @Override
+    public void close() {
+        try {
+            br.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package maf;
+
+import dutils.Strand;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import utils.CommandUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Coordinate projection from a source species to target species, built once from a MAF file.
+ * Each block is cut into ungapped segments, runs of columns where both the source and a target have a base.
+ * A segment maps source positions [sourceStart, sourceStart + length) on the forward strand to
+ * targetStart + direction * (p - sourceStart) on the forward strand of the target, direction being -1 when
+ * the two records are on opposite strands. Segments are kept per target and source chromosome in an
+ * {@link IntervalList}, so a point query takes O(log n).
+ * A source position covered by several blocks is projected with the first block in the file.
+ * Positions of queries and results are 1-based.
+ */
+public class MAFLiftover {
+
+    private static final int MAGIC = 0x4D41464C; // "MAFL"
+    private static final int VERSION = 1;
+
+    private final MAF.Species source;
+    private final List<MAF.Species> targets;
+    private final List<String> chrNames = new ArrayList<>();
+    private final Map<String, Integer> chrIDMap = new HashMap<>();
+
+    // segments, flattened, in file order
+    private final IntArrayList segmentTargets = new IntArrayList();
+    private final IntArrayList segmentSourceChrIDs = new IntArrayList();
+    private final IntArrayList segmentSourceStarts = new IntArrayList();
+    private final IntArrayList segmentLengths = new IntArrayList();
+    private final IntArrayList segmentTargetChrIDs = new IntArrayList();
+    private final IntArrayList segmentTargetStarts = new IntArrayList();
+    private final IntArrayList segmentDirections = new IntArrayList();
+
+    /** per target index: source chromosome -> segments */
+    private final List<Map<String, IntervalList>> chains = new ArrayList<>();
+
+    private MAFLiftover(MAF.Species source, List<MAF.Species> targets) {
+        assert !targets.contains(source) : "targets must not contain the source species";
+        this.source = source;
+        this.targets = new ArrayList<>(targets);
+    }
+
+    /**
+     * Builds the liftover by streaming the blocks of a MAF file.
+     * @param mafFile MAF file, optionally gzipped
+     * @param source  species of the query coordinates
+     * @param targets species to project to
+     * @return the liftover
+     */
+    public static MAFLiftover build(String mafFile, MAF.Species source, List<MAF.Species> targets) {
+        MAFLiftover liftover = new MAFLiftover(source, targets);
+        try (MAFBlockParser parser = new MAFBlockParser(mafFile)) {
+            while (parser.hasNext()) {
+                liftover.add(parser.next());
+            }
+        }
+        liftover.buildChains();
+        return liftover;
+    }
+
+    private void add(MAF.MAFBlock mafBlock) {
+        MAF.Record sourceRecord = mafBlock.getRecord(source);
+        if (sourceRecord == null) return;
+        for (int t = 0; t < targets.size(); t++) {
+            MAF.Record targetRecord = mafBlock.getRecord(targets.get(t));
+            if (targetRecord == null) continue;
+            addSegments(t, sourceRecord, targetRecord, mafBlock.alignmentSize);
+        }
+    }
+
+    /**
+     * Walks the columns of a record pair and adds one segment per run of columns where both have a base.
+     */
+    private void addSegments(int targetIndex, MAF.Record sourceRecord, MAF.Record targetRecord, int alignmentSize) {
+        int sourceDirection = sourceRecord.strandRange.getStrand() == Strand.PLUS ? 1 : -1;
+        int targetDirection = targetRecord.strandRange.getStrand() == Strand.PLUS ? 1 : -1;
+        int sourceFirst = getForwardStart(sourceRecord.strandRange);
+        int targetFirst = getForwardStart(targetRecord.strandRange);
+        int sourceChrID = getChrID(sourceRecord.strandRange.getChr());
+        int targetChrID = getChrID(targetRecord.strandRange.getChr());
+        int sourceCount = 0, targetCount = 0;
+        int runLength = 0, runSource = 0, runTarget = 0;
+        for (int i = 0; i < alignmentSize; i++) {
+            boolean sourceBase = !sourceRecord.isDash(i);
+            boolean targetBase = !targetRecord.isDash(i);
+            if (sourceBase && targetBase) {
+                if (runLength == 0) {
+                    runSource = sourceFirst + sourceDirection * sourceCount;
+                    runTarget = targetFirst + targetDirection * targetCount;
+                }
+                runLength++;
+            } else if (runLength > 0) {
+                addSegment(targetIndex, sourceChrID, runSource, sourceDirection, targetChrID, runTarget, targetDirection, runLength);
+                runLength = 0;
+            }
+            if (sourceBase) sourceCount++;
+            if (targetBase) targetCount++;
+        }
+        if (runLength > 0) {
+            addSegment(targetIndex, sourceChrID, runSource, sourceDirection, targetChrID, runTarget, targetDirection, runLength);
+        }
+    }
+
+    /**
+     * Adds a run that starts at forward position runSource of the source and runTarget of the target,
+     * normalized so that the segment starts at its lowest source position.
+     */
+    private void addSegment(int targetIndex, int sourceChrID, int runSource, int sourceDirection,
+                            int targetChrID, int runTarget, int targetDirection, int length) {
+        int direction = sourceDirection * targetDirection;
+        int sourceStart = runSource;
+        int targetStart = runTarget;
+        if (sourceDirection < 0) {
+            sourceStart = runSource - length + 1;
+            targetStart = runTarget + targetDirection * (length - 1);
+        }
+        segmentTargets.add(targetIndex);
+        segmentSourceChrIDs.add(sourceChrID);
+        segmentSourceStarts.add(sourceStart);
+        segmentLengths.add(length);
+        segmentTargetChrIDs.add(targetChrID);
+        segmentTargetStarts.add(targetStart);
+        segmentDirections.add(direction);
+    }
+
+    private static int getForwardStart(MAF.StrandRange strandRange) {
+        if (strandRange.getStrand() == Strand.PLUS) return strandRange.getStart();
+        return strandRange.getChromSize() - 1 - strandRange.getStart();
+    }
+
+    private int getChrID(String chr) {
+        Integer chrID = chrIDMap.get(chr);
+        if (chrID == null) {
+            chrID = chrNames.size();
+            chrIDMap.put(chr, chrID);
+            chrNames.add(chr);
+        }
+        return chrID;
+    }
+
+    private void buildChains() {
+        chains.clear();
+        for (int t = 0; t < targets.size(); t++) {
+            chains.add(new HashMap<>());
+        }
+        for (int i = 0; i < segmentTargets.size(); i++) {
+            String sourceChr = chrNames.get(segmentSourceChrIDs.getInt(i));
+            int start = segmentSourceStarts.getInt(i);
+            chains.get(segmentTargets.getInt(i)).computeIfAbsent(sourceChr, k -> new IntervalList())
+                    .add(start, start + segmentLengths.getInt(i), i);
+        }
+        for (Map<String, IntervalList> chain : chains) {
+            for (IntervalList intervalList : chain.values()) {
+                intervalList.build();
+            }
+        }
+    }
+
+    public MAF.Species getSource() {
+        return source;
+    }
+
+    public List<MAF.Species> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    public int getSegmentNum() {
+        return segmentTargets.size();
+    }
+
+    /**
+     * Projects one source position to a target species.
+     * @param target species to project to, one of {@link #getTargets()}
+     * @param chr    source chromosome, as in the MAF records, e.g. "1A"
+     * @param pos    1-based source position
+     * @return the target position, null if the position is not aligned to the target
+     */
+    public Hit lift(MAF.Species target, String chr, int pos) {
+        IntervalList intervalList = chains.get(getTargetIndex(target)).get(chr);
+        if (intervalList == null) return null;
+        int segment = intervalList.minValueAt(pos - 1);
+        if (segment < 0) return null;
+        int targetPos = segmentTargetStarts.getInt(segment) + segmentDirections.getInt(segment) * (pos - 1 - segmentSourceStarts.getInt(segment));
+        return new Hit(chrNames.get(segmentTargetChrIDs.getInt(segment)), targetPos + 1,
+                segmentDirections.getInt(segment) > 0 ? Strand.PLUS : Strand.MINUS);
+    }
+
+    /**
+     * Projects many source positions to a target species, split over threadsNum threads.
+     * @param target     species to project to
+     * @param chrs       source chromosome of each query
+     * @param positions  1-based source position of each query
+     * @param threadsNum number of threads
+     * @return one hit per query, null where the position is not aligned to the target
+     */
+    public Hit[] lift(MAF.Species target, String[] chrs, int[] positions, int threadsNum) {
+        assert chrs.length == positions.length : "chrs and positions must have the same length";
+        Hit[] hits = new Hit[positions.length];
+        int chunkNum = Math.max(1, Math.min(threadsNum * 4, positions.length / 4096));
+        List<Callable<Integer>> callableList = new ArrayList<>();
+        for (int c = 0; c < chunkNum; c++) {
+            int from = (int) ((long) positions.length * c / chunkNum);
+            int to = (int) ((long) positions.length * (c + 1) / chunkNum);
+            callableList.add(() -> {
+                for (int i = from; i < to; i++) {
+                    hits[i] = lift(target, chrs[i], positions[i]);
+                }
+                return to - from;
+            });
+        }
+        if (CommandUtils.run_commands(callableList, threadsNum).size() != chunkNum) {
+            throw new IllegalStateException("Liftover failed");
+        }
+        return hits;
+    }
+
+    private int getTargetIndex(MAF.Species target) {
+        int targetIndex = targets.indexOf(target);
+        if (targetIndex < 0) throw new IllegalArgumentException(target + " is not a target of this liftover");
+        return targetIndex;
+    }
+
+    /**
+     * Writes the segments to a binary file, see {@link #read(String)}.
+     * @param liftoverFile output file
+     */
+    public void write(String liftoverFile) {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(liftoverFile), 65536))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeByte(source.ordinal());
+            dos.writeInt(targets.size());
+            for (MAF.Species target : targets) {
+                dos.writeByte(target.ordinal());
+            }
+            dos.writeInt(chrNames.size());
+            for (String chrName : chrNames) {
+                dos.writeUTF(chrName);
+            }
+            dos.writeInt(segmentTargets.size());
+            for (int i = 0; i < segmentTargets.size(); i++) {
+                dos.writeByte(segmentTargets.getInt(i));
+                dos.writeInt(segmentSourceChrIDs.getInt(i));
+                dos.writeInt(segmentSourceStarts.getInt(i));
+                dos.writeInt(segmentLengths.getInt(i));
+                dos.writeInt(segmentTargetChrIDs.getInt(i));
+                dos.writeInt(segmentTargetStarts.getInt(i));
+                dos.writeByte(segmentDirections.getInt(i));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a liftover written by {@link #write(String)}.
+     * @param liftoverFile binary liftover file
+     * @return the liftover
+     */
+    public static MAFLiftover read(String liftoverFile) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(liftoverFile), 65536))) {
+            if (dis.readInt() != MAGIC) throw new IllegalArgumentException(liftoverFile + " is not a MAF liftover file");
+            int version = dis.readInt();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported MAF liftover version: " + version);
+            MAF.Species[] species = MAF.Species.values();
+            MAF.Species source = species[dis.readByte()];
+            int targetNum = dis.readInt();
+            List<MAF.Species> targets = new ArrayList<>(targetNum);
+            for (int i = 0; i < targetNum; i++) {
+                targets.add(species[dis.readByte()]);
+            }
+            MAFLiftover liftover = new MAFLiftover(source, targets);
+            int chrNum = dis.readInt();
+            for (int i = 0; i < chrNum; i++) {
+                liftover.getChrID(dis.readUTF());
+            }
+            int segmentNum = dis.readInt();
+            for (int i = 0; i < segmentNum; i++) {
+                liftover.segmentTargets.add(dis.readByte());
+                liftover.segmentSourceChrIDs.add(dis.readInt());
+                liftover.segmentSourceStarts.add(dis.readInt());
+                liftover.segmentLengths.add(dis.readInt());
+                liftover.segmentTargetChrIDs.add(dis.readInt());
+                liftover.segmentTargetStarts.add(dis.readInt());
+                liftover.segmentDirections.add(dis.readByte());
+            }
+            liftover.buildChains();
+            return liftover;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A projected position.
+     */
+    public static class Hit {
+
+        private final String chr;
+        private final int pos;
+        private final Strand strand;
+
+        Hit(String chr, int pos, Strand strand) {
+            this.chr = chr;
+            this.pos = pos;
+            this.strand = strand;
+        }
+
+        public String getChr() {
+            return chr;
+        }
+
+        /**
+         * @return 1-based forward-strand position in the target
+         */
+        public int getPos() {
+            return pos;
+        }
+
+        /**
+         * @return PLUS if the source and the target are aligned in the same orientation, MINUS otherwise
+         */
+        public Strand getStrand() {
+            return strand;
+        }
+
+        @Override
+        public String toString() {
+            return chr + ":" + pos + "(" + strand.getStr() + ")";
+        }
+    }
+}
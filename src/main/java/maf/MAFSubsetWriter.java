@@ -0,0 +1,284 @@
+package maf;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import utils.ByteLineReader;
+import utils.IOTool;
+import utils.OrderedParallelWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes a smaller MAF file with only some of the species.
+ * Each block keeps the "s" lines of the selected species, and their "i", "e" and "q" lines.
+ * Columns that are gaps in every kept sequence are removed from the "s" and "q" lines.
+ * Blocks missing a required species, or left without any column, are dropped.
+ * Blocks are handled as raw lines with {@link ByteLineReader} rather than parsed into {@link MAF.MAFBlock}s,
+ * so source names, lower-case (soft-masked) bases and the other lines are written exactly as they were read.
+ * The reader runs on the calling thread and blocks are filtered in parallel by {@link OrderedParallelWriter},
+ * in file order.
+ */
+public class MAFSubsetWriter {
+
+    private final byte[][] speciesIDBytes;
+    /** bit j set if speciesList.get(j) is required */
+    private final long requiredMask;
+    private final ThreadLocal<BlockFilter> blockFilter = ThreadLocal.withInitial(BlockFilter::new);
+
+    /**
+     * @param speciesList     species to keep
+     * @param requiredSpecies species a block must contain to be kept, a subset of speciesList
+     */
+    public MAFSubsetWriter(List<MAF.Species> speciesList, List<MAF.Species> requiredSpecies) {
+        assert new HashSet<>(speciesList).size() == speciesList.size() : "speciesList contains duplicate species";
+        assert speciesList.containsAll(requiredSpecies) : "requiredSpecies must be a subset of speciesList";
+        this.speciesIDBytes = new byte[speciesList.size()][];
+        long requiredMask = 0;
+        for (int j = 0; j < speciesList.size(); j++) {
+            speciesIDBytes[j] = speciesList.get(j).getSpeciesNameID().getBytes(StandardCharsets.US_ASCII);
+            if (requiredSpecies.contains(speciesList.get(j))) requiredMask |= 1L << j;
+        }
+        this.requiredMask = requiredMask;
+    }
+
+    /**
+     * Extracts the species of a MAF file, keeping only blocks that contain all of them.
+     * @param mafFile     input MAF file, optionally gzipped
+     * @param speciesList species to keep
+     * @param outputFile  output MAF file, gzipped if the name ends with .gz
+     * @param threadsNum  number of filtering threads
+     */
+    public static void write(String mafFile, List<MAF.Species> speciesList, String outputFile, int threadsNum) {
+        new MAFSubsetWriter(speciesList, speciesList).write(mafFile, outputFile, threadsNum);
+    }
+
+    /**
+     * @param mafFile    input MAF file, optionally gzipped
+     * @param outputFile output MAF file, gzipped if the name ends with .gz
+     * @param threadsNum number of filtering threads
+     */
+    public void write(String mafFile, String outputFile, int threadsNum) {
+        try (ByteLineReader reader = new ByteLineReader(IOTool.getInputStream(mafFile));
+             BufferedOutputStream bos = IOTool.getBufferedOutputStream(outputFile)) {
+            RawBlockIterator rawBlocks = new RawBlockIterator(reader, bos);
+            OrderedParallelWriter.write(rawBlocks, rawBlock -> blockFilter.get().filter(rawBlock), bos, threadsNum);
+            bos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lines of one block, from the "a" line to the line before the next blank or "a" line.
+     */
+    private static class RawBlock {
+
+        final byte[] data;
+        final int[] lineStarts;
+        final int[] lineEnds;
+
+        RawBlock(byte[] data, int[] lineStarts, int[] lineEnds) {
+            this.data = data;
+            this.lineStarts = lineStarts;
+            this.lineEnds = lineEnds;
+        }
+    }
+
+    /**
+     * Splits the input into raw blocks. Lines before the first block (the header) are copied straight to the output.
+     */
+    private static class RawBlockIterator implements Iterator<RawBlock> {
+
+        private final ByteLineReader reader;
+        private final ByteArrayOutputStream blockData = new ByteArrayOutputStream(1 << 16);
+        private final IntArrayList lineStarts = new IntArrayList();
+        private final IntArrayList lineEnds = new IntArrayList();
+        private RawBlock nextBlock;
+        /** true if the current line of the reader is an "a" line that has not been consumed yet */
+        private boolean pendingALine;
+
+        RawBlockIterator(ByteLineReader reader, BufferedOutputStream header) throws IOException {
+            this.reader = reader;
+            while (reader.readLine()) {
+                if (isALine()) {
+                    pendingALine = true;
+                    break;
+                }
+                header.write(reader.getBuffer(), reader.getLineStart(), reader.getLineLength());
+                header.write('\n');
+            }
+        }
+
+        private boolean isALine() {
+            return reader.getLineLength() > 0 && reader.getBuffer()[reader.getLineStart()] == 'a';
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextBlock == null) {
+                try {
+                    nextBlock = readBlock();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return nextBlock != null;
+        }
+
+        @Override
+        public RawBlock next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            RawBlock rawBlock = nextBlock;
+            nextBlock = null;
+            return rawBlock;
+        }
+
+        private RawBlock readBlock() throws IOException {
+            if (!pendingALine) {
+                while (true) {
+                    if (!reader.readLine()) return null;
+                    if (isALine()) break;
+                }
+            }
+            pendingALine = false;
+            blockData.reset();
+            lineStarts.clear();
+            lineEnds.clear();
+            do {
+                lineStarts.add(blockData.size());
+                blockData.write(reader.getBuffer(), reader.getLineStart(), reader.getLineLength());
+                lineEnds.add(blockData.size());
+                if (!reader.readLine() || reader.isBlankLine()) break;
+                if (isALine()) {
+                    pendingALine = true;
+                    break;
+                }
+            } while (true);
+            return new RawBlock(blockData.toByteArray(), lineStarts.toIntArray(), lineEnds.toIntArray());
+        }
+    }
+
+    /**
+     * Per-thread buffers for filtering blocks.
+     */
+    private class BlockFilter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        /** kept lines: line index, sequence start and end for "s" and "q" lines (-1 for others) */
+        private final IntArrayList keptLines = new IntArrayList();
+        private final IntArrayList sequenceStarts = new IntArrayList();
+        private final IntArrayList sequenceEnds = new IntArrayList();
+        private long[] gapWords = new long[0];
+        private long[] allGapMask = new long[0];
+
+        byte[] filter(RawBlock rawBlock) {
+            byte[] data = rawBlock.data;
+            keptLines.clear();
+            sequenceStarts.clear();
+            sequenceEnds.clear();
+            long presentMask = 0;
+            int alignmentSize = -1;
+            for (int l = 1; l < rawBlock.lineStarts.length; l++) {
+                int start = rawBlock.lineStarts[l];
+                int end = rawBlock.lineEnds[l];
+                byte type = data[start];
+                if (type != 's' && type != 'i' && type != 'e' && type != 'q') continue;
+                int speciesIndex = getSpeciesIndex(data, start, end);
+                if (speciesIndex < 0) continue;
+                keptLines.add(l);
+                int sequenceStart = -1, sequenceEnd = -1;
+                if (type == 's' || type == 'q') {
+                    sequenceEnd = end;
+                    while (sequenceEnd > start && isWhitespace(data[sequenceEnd - 1])) sequenceEnd--;
+                    sequenceStart = sequenceEnd;
+                    while (sequenceStart > start && !isWhitespace(data[sequenceStart - 1])) sequenceStart--;
+                    if (type == 's') {
+                        presentMask |= 1L << speciesIndex;
+                        alignmentSize = sequenceEnd - sequenceStart;
+                    }
+                }
+                sequenceStarts.add(sequenceStart);
+                sequenceEnds.add(sequenceEnd);
+            }
+            if ((presentMask & requiredMask) != requiredMask || alignmentSize < 0) return new byte[0];
+
+            // a column is dropped if it is a gap in every kept sequence
+            int wordNum = (alignmentSize + 63) >>> 6;
+            if (gapWords.length < wordNum) {
+                gapWords = new long[wordNum];
+                allGapMask = new long[wordNum];
+            }
+            Arrays.fill(allGapMask, 0, wordNum, -1L);
+            for (int k = 0; k < keptLines.size(); k++) {
+                int l = keptLines.getInt(k);
+                if (data[rawBlock.lineStarts[l]] != 's') continue;
+                Arrays.fill(gapWords, 0, wordNum, 0L);
+                GapFreeColumnKernel.markGaps(data, sequenceStarts.getInt(k), alignmentSize, gapWords);
+                for (int w = 0; w < wordNum; w++) {
+                    allGapMask[w] &= gapWords[w];
+                }
+            }
+            if ((alignmentSize & 63) != 0) allGapMask[wordNum - 1] &= (1L << (alignmentSize & 63)) - 1;
+            int droppedNum = 0;
+            for (int w = 0; w < wordNum; w++) {
+                droppedNum += Long.bitCount(allGapMask[w]);
+            }
+            if (droppedNum == alignmentSize) return new byte[0];
+
+            out.reset();
+            out.write(data, rawBlock.lineStarts[0], rawBlock.lineEnds[0] - rawBlock.lineStarts[0]);
+            out.write('\n');
+            for (int k = 0; k < keptLines.size(); k++) {
+                int l = keptLines.getInt(k);
+                int start = rawBlock.lineStarts[l];
+                int end = rawBlock.lineEnds[l];
+                int sequenceStart = sequenceStarts.getInt(k);
+                if (sequenceStart < 0 || droppedNum == 0) {
+                    out.write(data, start, end - start);
+                } else {
+                    out.write(data, start, sequenceStart - start);
+                    writeKeptColumns(data, sequenceStart, Math.min(alignmentSize, sequenceEnds.getInt(k) - sequenceStart));
+                }
+                out.write('\n');
+            }
+            out.write('\n');
+            return out.toByteArray();
+        }
+
+        /**
+         * Writes the runs of columns not in allGapMask.
+         */
+        private void writeKeptColumns(byte[] data, int sequenceStart, int length) {
+            int i = 0;
+            while (i < length) {
+                while (i < length && (allGapMask[i >>> 6] & (1L << (i & 63))) != 0) i++;
+                int runStart = i;
+                while (i < length && (allGapMask[i >>> 6] & (1L << (i & 63))) == 0) i++;
+                out.write(data, sequenceStart + runStart, i - runStart);
+            }
+        }
+
+        /**
+         * Returns the index in speciesList of the species of a line "x Species.chr ...", -1 if it is not kept.
+         */
+        private int getSpeciesIndex(byte[] data, int start, int end) {
+            int i = start + 1;
+            while (i < end && isWhitespace(data[i])) i++;
+            int idStart = i;
+            while (i < end && data[i] != '.' && !isWhitespace(data[i])) i++;
+            int len = i - idStart;
+            for (int j = 0; j < speciesIDBytes.length; j++) {
+                if (speciesIDBytes[j].length == len && Arrays.equals(data, idStart, i, speciesIDBytes[j], 0, len)) return j;
+            }
+            return -1;
+        }
+
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,160 @@
+package maf;
+
+import java.util.Arrays;
+
+/**
+ * Compact form of an aligned sequence, see {@link MAF.Record#pack()}.
+ * A, C, G and T take 2 bits per column. Gaps are kept in a bitmap, one bit per column, in the same 64-column
+ * words as the gap masks of {@link GapFreeColumnKernel}. Any other character (N, IUPAC codes) is marked in a
+ * second bitmap and stored as runs of identical characters. Both bitmaps are omitted when a sequence
+ * has no gap or no such character, so a typical sequence takes 2 to 4 bits per column instead of 8.
+ * Sequences are expected in upper case, as produced by the parsers.
+ */
+final class PackedSequence {
+
+    private static final byte[] CODE_TO_BASE = {'A', 'C', 'G', 'T'};
+    private static final byte[] BASE_TO_CODE = new byte[256];
+
+    static {
+        Arrays.fill(BASE_TO_CODE, (byte) -1);
+        for (int code = 0; code < CODE_TO_BASE.length; code++) {
+            BASE_TO_CODE[CODE_TO_BASE[code]] = (byte) code;
+        }
+    }
+
+    private final int length;
+    /** 2-bit codes, 32 columns per word, low bits first; 0 at gaps and other characters */
+    private final long[] bases;
+    /** bit i set if column i is a gap, null if there is no gap */
+    private final long[] gaps;
+    /** bit i set if column i holds a character other than A, C, G, T or a gap, null if there is none */
+    private final long[] others;
+    /** runs of other characters: columns [runStarts[k], runEnds[k]) hold runBases[k] */
+    private final int[] runStarts;
+    private final int[] runEnds;
+    private final byte[] runBases;
+
+    private PackedSequence(int length, long[] bases, long[] gaps, long[] others, int[] runStarts, int[] runEnds, byte[] runBases) {
+        this.length = length;
+        this.bases = bases;
+        this.gaps = gaps;
+        this.others = others;
+        this.runStarts = runStarts;
+        this.runEnds = runEnds;
+        this.runBases = runBases;
+    }
+
+    static PackedSequence pack(byte[] ascIIArray) {
+        int length = ascIIArray.length;
+        int wordNum = (length + 63) >>> 6;
+        long[] bases = new long[(length + 31) >>> 5];
+        long[] gaps = null;
+        long[] others = null;
+        int runNum = 0;
+        int[] runStarts = new int[0];
+        int[] runEnds = new int[0];
+        byte[] runBases = new byte[0];
+        for (int i = 0; i < length; i++) {
+            byte b = ascIIArray[i];
+            int code = BASE_TO_CODE[b & 0xFF];
+            if (code >= 0) {
+                bases[i >>> 5] |= (long) code << ((i & 31) << 1);
+            } else if (b == '-') {
+                if (gaps == null) gaps = new long[wordNum];
+                gaps[i >>> 6] |= 1L << i;
+            } else {
+                if (others == null) others = new long[wordNum];
+                others[i >>> 6] |= 1L << i;
+                if (runNum > 0 && runEnds[runNum - 1] == i && runBases[runNum - 1] == b) {
+                    runEnds[runNum - 1]++;
+                } else {
+                    if (runNum == runStarts.length) {
+                        int capacity = Math.max(4, runNum << 1);
+                        runStarts = Arrays.copyOf(runStarts, capacity);
+                        runEnds = Arrays.copyOf(runEnds, capacity);
+                        runBases = Arrays.copyOf(runBases, capacity);
+                    }
+                    runStarts[runNum] = i;
+                    runEnds[runNum] = i + 1;
+                    runBases[runNum] = b;
+                    runNum++;
+                }
+            }
+        }
+        return new PackedSequence(length, bases, gaps, others, Arrays.copyOf(runStarts, runNum),
+                Arrays.copyOf(runEnds, runNum), Arrays.copyOf(runBases, runNum));
+    }
+
+    int length() {
+        return length;
+    }
+
+    boolean isDash(int column) {
+        return gaps != null && (gaps[column >>> 6] & (1L << column)) != 0;
+    }
+
+    byte getBase(int column) {
+        if (isDash(column)) return '-';
+        if (others != null && (others[column >>> 6] & (1L << column)) != 0) {
+            return runBases[findRun(column)];
+        }
+        return CODE_TO_BASE[(int) (bases[column >>> 5] >>> ((column & 31) << 1)) & 3];
+    }
+
+    /**
+     * Index of the run of other characters containing column.
+     */
+    private int findRun(int column) {
+        int low = 0, high = runStarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (runStarts[mid] <= column) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Unpacks the sequence into dest[0, length).
+     */
+    void copyBasesTo(byte[] dest) {
+        for (int i = 0; i < length; i++) {
+            dest[i] = CODE_TO_BASE[(int) (bases[i >>> 5] >>> ((i & 31) << 1)) & 3];
+        }
+        if (gaps != null) {
+            for (int w = 0; w < gaps.length; w++) {
+                long word = gaps[w];
+                while (word != 0) {
+                    dest[(w << 6) | Long.numberOfTrailingZeros(word)] = '-';
+                    word &= word - 1;
+                }
+            }
+        }
+        for (int k = 0; k < runStarts.length; k++) {
+            Arrays.fill(dest, runStarts[k], runEnds[k], runBases[k]);
+        }
+    }
+
+    /**
+     * ORs the gap bitmap into words, bit i of word i >>> 6 for column i.
+     */
+    void markGaps(long[] words) {
+        if (gaps == null) return;
+        for (int w = 0; w < gaps.length; w++) {
+            words[w] |= gaps[w];
+        }
+    }
+
+    /**
+     * Approximate heap size of the packed arrays, in bytes.
+     */
+    long getSizeInBytes() {
+        long size = (long) bases.length * Long.BYTES;
+        if (gaps != null) size += (long) gaps.length * Long.BYTES;
+        if (others != null) size += (long) others.length * Long.BYTES;
+        return size + runStarts.length * 9L;
+    }
+}
@@ -0,0 +1,236 @@
+package maf;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import utils.BGZFUtils;
+import utils.CommandUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Parses a MAF file on several threads by splitting it into ranges that are parsed independently
+ * with {@link MAFBlockParser}, and concatenates the blocks of all ranges in file order.
+ * <p>
+ * Plain text files are split into byte ranges that start at an "a" line; each range is memory-mapped.
+ * BGZF files (bgzip) are split into groups of consecutive BGZF blocks; a MAF block belongs to the group
+ * holding the first byte of its "a" line. Each worker starts decompressing one BGZF block early and
+ * resynchronizes on the first line break, so blocks spanning a group boundary are parsed exactly once.
+ * Plain gzip files cannot be split and are parsed on the calling thread.
+ */
+public class ParallelMAFParser {
+
+    /** Ranges per thread, so that uneven ranges still keep all threads busy */
+    private static final int RANGES_PER_THREAD = 4;
+    /** Upper bound of a memory-mapped range */
+    private static final long MAX_RANGE_SIZE = 1L << 30;
+
+    /**
+     * Parses all blocks of a MAF file.
+     * @param mafFile    MAF file, plain text, BGZF or gzip
+     * @param threadsNum number of parsing threads
+     * @return blocks in file order
+     */
+    public static List<MAF.MAFBlock> parse(String mafFile, int threadsNum) {
+        return parse(mafFile, threadsNum, false);
+    }
+
+    /**
+     * Parses all blocks of a MAF file.
+     * @param mafFile    MAF file, plain text, BGZF or gzip
+     * @param threadsNum number of parsing threads
+     * @param offHeap    true to keep sequences off-heap, see {@link MAFBlockParser#MAFBlockParser(String, boolean)}
+     * @return blocks in file order
+     */
+    public static List<MAF.MAFBlock> parse(String mafFile, int threadsNum, boolean offHeap) {
+        boolean bgzf = BGZFUtils.isBGZF(mafFile);
+        if (threadsNum > 1) {
+            if (bgzf) {
+                return parseBGZF(mafFile, threadsNum, offHeap);
+            }
+            if (!mafFile.endsWith(".gz")) {
+                return parsePlain(mafFile, threadsNum, offHeap);
+            }
+        }
+        // BGZF files are recognized by content, they are not necessarily named .gz (e.g. .bgz)
+        return parseSerial(bgzf ? new MAFBlockParser(new BGZFUtils.BlockInputStream(mafFile, 0), offHeap)
+                : new MAFBlockParser(mafFile, offHeap));
+    }
+
+    private static List<MAF.MAFBlock> parseSerial(MAFBlockParser parser) {
+        List<MAF.MAFBlock> mafBlockList = new ArrayList<>();
+        try (parser) {
+            while (parser.hasNext()) {
+                mafBlockList.add(parser.next());
+            }
+        }
+        return mafBlockList;
+    }
+
+    private static List<MAF.MAFBlock> parsePlain(String mafFile, int threadsNum, boolean offHeap) {
+        long[] boundaries = getPlainRangeBoundaries(mafFile, threadsNum * RANGES_PER_THREAD);
+        List<Callable<List<MAF.MAFBlock>>> callableList = new ArrayList<>();
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            long start = boundaries[i];
+            long end = boundaries[i + 1];
+            callableList.add(() -> {
+                try (FileChannel channel = FileChannel.open(Paths.get(mafFile), StandardOpenOption.READ)) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    return parseSerial(new MAFBlockParser(new ByteBufferInputStream(buffer), offHeap));
+                }
+            });
+        }
+        return concatenate(CommandUtils.run_commands(callableList, threadsNum), callableList.size());
+    }
+
+    /**
+     * Splits a plain text MAF file into about rangeNum ranges of at most {@link #MAX_RANGE_SIZE} bytes.
+     * Every boundary but the first and the last is the first byte of an "a" line.
+     */
+    private static long[] getPlainRangeBoundaries(String mafFile, int rangeNum) {
+        LongArrayList boundaries = new LongArrayList();
+        try (FileChannel channel = FileChannel.open(Paths.get(mafFile), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            rangeNum = (int) Math.max(rangeNum, (fileSize + MAX_RANGE_SIZE - 1) / MAX_RANGE_SIZE);
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            boundaries.add(0);
+            for (int i = 1; i < rangeNum; i++) {
+                long target = Math.max(fileSize / rangeNum * i, boundaries.getLong(boundaries.size() - 1));
+                long boundary = findNextALine(channel, target, buffer);
+                if (boundary >= fileSize) break;
+                if (boundary > boundaries.getLong(boundaries.size() - 1)) {
+                    boundaries.add(boundary);
+                }
+            }
+            boundaries.add(fileSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // a single block longer than MAX_RANGE_SIZE would need a mapping larger than 2 GB
+        for (int i = 1; i < boundaries.size(); i++) {
+            if (boundaries.getLong(i) - boundaries.getLong(i - 1) > Integer.MAX_VALUE) {
+                throw new IllegalStateException("MAF block larger than 2 GB in " + mafFile);
+            }
+        }
+        return boundaries.toLongArray();
+    }
+
+    /**
+     * Returns the offset of the first "a" line starting after position from, or the file size if there is none.
+     * A line starting with 'a' is always an alignment line in MAF, so no other context is needed.
+     */
+    private static long findNextALine(FileChannel channel, long from, ByteBuffer buffer) throws IOException {
+        long position = from;
+        byte previous = 0;
+        while (true) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) return channel.size();
+            for (int i = 0; i < n; i++) {
+                byte b = buffer.get(i);
+                if (b == 'a' && previous == '\n') return position + i;
+                previous = b;
+            }
+            position += n;
+        }
+    }
+
+    private static List<MAF.MAFBlock> parseBGZF(String mafFile, int threadsNum, boolean offHeap) {
+        long[] blockAddresses = BGZFUtils.getBlockAddresses(mafFile);
+        int groupNum = Math.min(threadsNum * RANGES_PER_THREAD, blockAddresses.length);
+        List<Callable<List<MAF.MAFBlock>>> callableList = new ArrayList<>();
+        for (int i = 0; i < groupNum; i++) {
+            int firstBlock = (int) ((long) blockAddresses.length * i / groupNum);
+            int endBlock = (int) ((long) blockAddresses.length * (i + 1) / groupNum);
+            long startAddress = firstBlock == 0 ? 0 : blockAddresses[firstBlock - 1];
+            long groupStart = blockAddresses[firstBlock];
+            long groupEnd = endBlock == blockAddresses.length ? Long.MAX_VALUE : blockAddresses[endBlock];
+            callableList.add(() -> parseBlockGroup(mafFile, startAddress, groupStart, groupEnd, offHeap));
+        }
+        return concatenate(CommandUtils.run_commands(callableList, threadsNum), callableList.size());
+    }
+
+    /**
+     * Parses the MAF blocks whose "a" line starts in a BGZF block with address in [groupStart, groupEnd).
+     * @param startAddress address to start decompressing from, the block before groupStart unless groupStart is 0
+     */
+    private static List<MAF.MAFBlock> parseBlockGroup(String mafFile, long startAddress, long groupStart, long groupEnd,
+                                                      boolean offHeap) throws IOException {
+        List<MAF.MAFBlock> mafBlockList = new ArrayList<>();
+        BGZFUtils.BlockInputStream inputStream = new BGZFUtils.BlockInputStream(mafFile, startAddress);
+        long skipped = 0;
+        if (startAddress != groupStart) {
+            // the start of the previous block may be in the middle of a line
+            int b;
+            while ((b = inputStream.read()) != -1) {
+                skipped++;
+                if (b == '\n') break;
+            }
+        }
+        try (MAFBlockParser parser = new MAFBlockParser(inputStream, offHeap)) {
+            while (parser.hasNext()) {
+                MAF.MAFBlock mafBlock = parser.next();
+                long blockAddress = inputStream.getBlockAddress(skipped + parser.getBlockOffset());
+                if (blockAddress < groupStart || blockAddress >= groupEnd) {
+                    // parsed by the neighbouring group
+                    mafBlock.close();
+                    if (blockAddress < groupStart) continue;
+                    break;
+                }
+                mafBlockList.add(mafBlock);
+            }
+        }
+        return mafBlockList;
+    }
+
+    private static List<MAF.MAFBlock> concatenate(List<List<MAF.MAFBlock>> results, int rangeNum) {
+        // run_commands stops collecting at the first failed range, never return a partial alignment
+        if (results.size() != rangeNum) {
+            throw new IllegalStateException("Failed to parse " + (rangeNum - results.size()) + " of " + rangeNum + " ranges");
+        }
+        int blockNum = 0;
+        for (List<MAF.MAFBlock> result : results) {
+            blockNum += result.size();
+        }
+        List<MAF.MAFBlock> mafBlockList = new ArrayList<>(blockNum);
+        for (List<MAF.MAFBlock> result : results) {
+            mafBlockList.addAll(result);
+        }
+        return mafBlockList;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
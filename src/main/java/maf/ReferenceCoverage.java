@@ -0,0 +1,157 @@
+package maf;
+
+import utils.IOTool;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Bitmaps of the reference positions called by {@link MAF#callAncestralAllele(List, String, OverlapPolicy)},
+ * one bit per base of each reference chromosome, sized from {@link MAF.StrandRange#getChromSize()}.
+ * A position is covered once a gap-free column of some block maps to it, and duplicated once a second
+ * column maps to it, e.g. where blocks overlap on the reference. Both tests and updates are O(1).
+ */
+public class ReferenceCoverage {
+
+    /**
+     * Which row is kept where several blocks call the same reference position.
+     */
+    public enum OverlapPolicy {
+        /** the row of the first block in the file, in one pass */
+        FIRST_BLOCK,
+        /** the row of the block with the highest score, the first one on ties; needs three passes */
+        HIGHEST_SCORE,
+        /** no row at all; needs two passes */
+        DROP_CONFLICT
+    }
+
+    private final Map<String, Bitmaps> bitmapsByChr = new HashMap<>();
+
+    /**
+     * Marks a reference position as called.
+     * @param chr       reference chromosome
+     * @param chromSize size of the reference chromosome
+     * @param pos       0-based forward-strand position
+     * @return true if the position was not covered before
+     */
+    public boolean mark(String chr, int chromSize, int pos) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        if (bitmaps == null) {
+            bitmaps = new Bitmaps(chromSize);
+            bitmapsByChr.put(chr, bitmaps);
+        }
+        long bit = 1L << pos;
+        int w = pos >>> 6;
+        if ((bitmaps.covered[w] & bit) == 0) {
+            bitmaps.covered[w] |= bit;
+            return true;
+        }
+        bitmaps.duplicated[w] |= bit;
+        return false;
+    }
+
+    /**
+     * @param chr reference chromosome
+     * @param pos 0-based forward-strand position
+     */
+    public boolean isCovered(String chr, int pos) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        return bitmaps != null && (bitmaps.covered[pos >>> 6] & (1L << pos)) != 0;
+    }
+
+    /**
+     * @param chr reference chromosome
+     * @param pos 0-based forward-strand position
+     */
+    public boolean isDuplicated(String chr, int pos) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        return bitmaps != null && (bitmaps.duplicated[pos >>> 6] & (1L << pos)) != 0;
+    }
+
+    /**
+     * @return reference chromosomes with at least one covered position, sorted by name
+     */
+    public List<String> getChromosomes() {
+        List<String> chromosomes = new ArrayList<>(bitmapsByChr.keySet());
+        Collections.sort(chromosomes);
+        return chromosomes;
+    }
+
+    public int getChromSize(String chr) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        return bitmaps == null ? 0 : bitmaps.chromSize;
+    }
+
+    public long getCoveredBaseNum(String chr) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        return bitmaps == null ? 0 : bitCount(bitmaps.covered);
+    }
+
+    public long getDuplicatedBaseNum(String chr) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        return bitmaps == null ? 0 : bitCount(bitmaps.duplicated);
+    }
+
+    /**
+     * Index of a duplicated position among the duplicated positions of its chromosome, in O(1).
+     * Only valid once all positions are marked.
+     * @param chr reference chromosome
+     * @param pos 0-based forward-strand position, must be duplicated
+     */
+    int getDuplicatedRank(String chr, int pos) {
+        Bitmaps bitmaps = bitmapsByChr.get(chr);
+        if (bitmaps.duplicatedRanks == null) {
+            int[] ranks = new int[bitmaps.duplicated.length];
+            int rank = 0;
+            for (int w = 0; w < ranks.length; w++) {
+                ranks[w] = rank;
+                rank += Long.bitCount(bitmaps.duplicated[w]);
+            }
+            bitmaps.duplicatedRanks = ranks;
+        }
+        int w = pos >>> 6;
+        return bitmaps.duplicatedRanks[w] + Long.bitCount(bitmaps.duplicated[w] & ((1L << pos) - 1));
+    }
+
+    /**
+     * Writes one line per chromosome: Chr, ChromSize, Covered, Duplicated, the last two in bases.
+     * @param outputFile output TSV file
+     */
+    public void writeReport(String outputFile) {
+        try (BufferedWriter bw = IOTool.getBufferedWriter(outputFile)) {
+            bw.write("Chr\tChromSize\tCovered\tDuplicated");
+            bw.newLine();
+            for (String chr : getChromosomes()) {
+                bw.write(chr + "\t" + getChromSize(chr) + "\t" + getCoveredBaseNum(chr) + "\t" + getDuplicatedBaseNum(chr));
+                bw.newLine();
+            }
+            bw.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long bitCount(long[] words) {
+        long count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    private static class Bitmaps {
+
+        final int chromSize;
+        final long[] covered;
+        final long[] duplicated;
+        /** number of duplicated positions before each word, built on first use */
+        int[] duplicatedRanks;
+
+        Bitmaps(int chromSize) {
+            this.chromSize = chromSize;
+            this.covered = new long[(chromSize + 63) >>> 6];
+            this.duplicated = new long[covered.length];
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package maf;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Vectorized gap scan of aligned sequences with the Vector API (jdk.incubator.vector).
+ * Only loaded by {@link GapFreeColumnKernel} when the module is present at run time
+ * (java --add-modules jdk.incubator.vector), otherwise the kernel uses its scalar loop.
+ */
+final class VectorGapScanner {
+
+    /** toLong() of a mask holds at most 64 lanes, and 64 must be a multiple of the lane count */
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.length() <= 64
+            ? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_512;
+
+    private VectorGapScanner() {
+    }
+
+    /**
+     * Sets bit i of words (bit i & 63 of word i >>> 6) for every gap row[offset + i], i < length.
+     * words must be cleared by the caller.
+     */
+    static void markGaps(byte[] row, int offset, int length, long[] words) {
+        int step = SPECIES.length();
+        int upperBound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upperBound; i += step) {
+            long bits = ByteVector.fromArray(SPECIES, row, offset + i).eq((byte) '-').toLong();
+            words[i >>> 6] |= bits << (i & 63);
+        }
+        for (; i < length; i++) {
+            if (row[offset + i] == '-') words[i >>> 6] |= 1L << (i & 63);
+        }
+    }
+
+    /**
+     * Same as {@link #markGaps(byte[], int, int, long[])} for the first length bytes of an off-heap row.
+     */
+    static void markGaps(MemorySegment row, int length, long[] words) {
+        int step = SPECIES.length();
+        int upperBound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < upperBound; i += step) {
+            long bits = ByteVector.fromMemorySegment(SPECIES, row, i, ByteOrder.nativeOrder()).eq((byte) '-').toLong();
+            words[i >>> 6] |= bits << (i & 63);
+        }
+        for (; i < length; i++) {
+            if (row.get(ValueLayout.JAVA_BYTE, i) == '-') words[i >>> 6] |= 1L << (i & 63);
+        }
+    }
+}
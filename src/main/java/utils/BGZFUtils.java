@@ -0,0 +1,356 @@
+package utils;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Utilities for BGZF (blocked gzip) files, the format written by bgzip and htsjdk.
+ * A BGZF file is a series of independent gzip members of at most 64 KB each, so it can be
+ * split on block boundaries and decompressed in parallel.
+ * Block layout: 12-byte gzip header, XLEN bytes of extra fields containing the "BC" subfield
+ * with the total block size minus 1 (BSIZE), the deflate data, CRC32 and ISIZE.
+ */
+public class BGZFUtils {
+
+    /** Maximum size of a compressed or uncompressed BGZF block */
+    public static final int MAX_BLOCK_SIZE = 65536;
+
+    private static final int FIXED_HEADER_SIZE = 12;
+
+    /**
+     * Returns true if the file starts with a BGZF block header.
+     *
+     * @param file The path to the file.
+     * @return true if the file is BGZF compressed
+     */
+    public static boolean isBGZF(String file) {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MAX_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            return readBlockSize(channel, 0, header) > 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Scans the block headers of a BGZF file without decompressing it.
+     *
+     * @param file The path to the BGZF file.
+     * @return the compressed offset of every block, in file order
+     */
+    public static long[] getBlockAddresses(String file) {
+        LongArrayList blockAddresses = new LongArrayList();
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(MAX_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long address = 0;
+            while (address < fileSize) {
+                int blockSize = readBlockSize(channel, address, header);
+                if (blockSize <= 0) throw new IOException(file + " is not BGZF compressed at offset " + address);
+                blockAddresses.add(address);
+                address += blockSize;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return blockAddresses.toLongArray();
+    }
+
+    /**
+     * Reads the header of the block at address and returns the total size of the block,
+     * or -1 if there is no BGZF block header at that address.
+     */
+    private static int readBlockSize(FileChannel channel, long address, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(FIXED_HEADER_SIZE);
+        if (readFully(channel, address, buffer) < FIXED_HEADER_SIZE) return -1;
+        if ((buffer.get(0) & 0xFF) != 31 || (buffer.get(1) & 0xFF) != 139 || buffer.get(2) != 8 || (buffer.get(3) & 4) == 0) {
+            return -1;
+        }
+        int xlen = buffer.getShort(10) & 0xFFFF;
+        buffer.clear().limit(xlen);
+        if (readFully(channel, address + FIXED_HEADER_SIZE, buffer) < xlen) return -1;
+        return getBlockSize(buffer, 0, xlen);
+    }
+
+    /**
+     * Finds the "BC" subfield in the extra fields buffer[start, start + xlen) and returns BSIZE + 1.
+     */
+    private static int getBlockSize(ByteBuffer buffer, int start, int xlen) {
+        int i = start;
+        while (i + 4 <= start + xlen) {
+            int subfieldLength = buffer.getShort(i + 2) & 0xFFFF;
+            if (buffer.get(i) == 66 && buffer.get(i + 1) == 67 && subfieldLength == 2) {
+                return (buffer.getShort(i + 4) & 0xFFFF) + 1;
+            }
+            i += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    private static int readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Reads one whole compressed block into buffer.
+     *
+     * @param channel the BGZF file
+     * @param address compressed offset of the block
+     * @param buffer  destination, at least {@link #MAX_BLOCK_SIZE} bytes
+     * @return the size of the block, or -1 at the end of the file
+     * @throws IOException if the file is not BGZF or is truncated
+     */
+    public static int readBlock(FileChannel channel, long address, byte[] buffer) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.limit(FIXED_HEADER_SIZE);
+        int n = readFully(channel, address, byteBuffer);
+        if (n == 0) return -1;
+        if (n < FIXED_HEADER_SIZE) throw new EOFException("Truncated BGZF block at " + address);
+        int xlen = byteBuffer.getShort(10) & 0xFFFF;
+        byteBuffer.limit(FIXED_HEADER_SIZE + xlen);
+        readFully(channel, address + FIXED_HEADER_SIZE, byteBuffer);
+        int blockSize = getBlockSize(byteBuffer, FIXED_HEADER_SIZE, xlen);
+        if (blockSize <= 0) throw new IOException("Not a BGZF block at " + address);
+        byteBuffer.limit(blockSize);
+        if (readFully(channel, address + FIXED_HEADER_SIZE + xlen, byteBuffer) < blockSize - FIXED_HEADER_SIZE - xlen) {
+            throw new EOFException("Truncated BGZF block at " + address);
+        }
+        return blockSize;
+    }
+
+    /**
+     * Decompresses one BGZF block.
+     *
+     * @param block     the compressed block, as read by {@link #readBlock}
+     * @param blockSize size of the compressed block
+     * @param dest      destination, at least {@link #MAX_BLOCK_SIZE} bytes
+     * @param inflater  a reusable Inflater created with nowrap = true
+     * @return the number of decompressed bytes
+     */
+    public static int inflateBlock(byte[] block, int blockSize, byte[] dest, Inflater inflater) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(block, 0, blockSize).order(ByteOrder.LITTLE_ENDIAN);
+        int xlen = byteBuffer.getShort(10) & 0xFFFF;
+        int dataStart = FIXED_HEADER_SIZE + xlen;
+        int dataLength = blockSize - dataStart - 8;
+        int uncompressedSize = byteBuffer.getInt(blockSize - 4);
+        inflater.reset();
+        inflater.setInput(block, dataStart, dataLength);
+        try {
+            int n = 0;
+            while (n < uncompressedSize) {
+                int inflated = inflater.inflate(dest, n, uncompressedSize - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += inflated;
+            }
+            if (n != uncompressedSize) throw new IllegalStateException("Corrupt BGZF block, expected " + uncompressedSize + " bytes");
+            return n;
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decompresses a BGZF file sequentially, starting from any block address, and remembers
+     * which block each decompressed byte came from.
+     */
+    public static class BlockInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+        private final byte[] uncompressed = new byte[MAX_BLOCK_SIZE];
+        private final Inflater inflater = new Inflater(true);
+        private final LongArrayList blockStreamOffsets = new LongArrayList();
+        private final LongArrayList blockAddresses = new LongArrayList();
+        private long nextAddress;
+        private long streamOffset;
+        private int position;
+        private int limit;
+        private boolean eof;
+
+        /**
+         * @param file         The path to the BGZF file.
+         * @param startAddress compressed offset of the block to start from
+         */
+        public BlockInputStream(String file, long startAddress) {
+            try {
+                this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.nextAddress = startAddress;
+        }
+
+        private boolean nextBlock() throws IOException {
+            while (position == limit) {
+                if (eof) return false;
+                int blockSize = readBlock(channel, nextAddress, compressed);
+                if (blockSize < 0) {
+                    eof = true;
+                    return false;
+                }
+                streamOffset += limit;
+                blockStreamOffsets.add(streamOffset);
+                blockAddresses.add(nextAddress);
+                nextAddress += blockSize;
+                limit = inflateBlock(compressed, blockSize, uncompressed, inflater);
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextBlock()) return -1;
+            return uncompressed[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextBlock()) return -1;
+            int n = Math.min(len, limit - position);
+            System.arraycopy(uncompressed, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        /**
+         * Returns the compressed address of the block containing a byte already read from this stream.
+         *
+         * @param offset offset of the byte in the decompressed stream, counted from the start address
+         * @return the compressed offset of its block
+         */
+        public long getBlockAddress(long offset) {
+            int low = 0, high = blockStreamOffsets.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (blockStreamOffsets.getLong(mid) <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return blockAddresses.getLong(low);
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            channel.close();
+        }
+    }
+
+    /**
+     * Decompresses a whole BGZF file with read-ahead on several threads.
+     * Compressed blocks are read in order by the calling thread and inflated by a pool of threadsNum threads,
+     * at most a few blocks per thread ahead of the reader; the stream returns the data in file order.
+     */
+    public static class ParallelInputStream extends InputStream {
+
+        private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+        private final FileChannel channel;
+        private final ExecutorService executorService;
+        private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private final int maxInFlight;
+        private long nextAddress;
+        private boolean lastBlockRead;
+        private byte[] current = new byte[0];
+        private int position;
+
+        /**
+         * @param file       The path to the BGZF file.
+         * @param threadsNum number of decompressing threads
+         */
+        public ParallelInputStream(String file, int threadsNum) {
+            assert threadsNum > 0 : "threadsNum must be positive";
+            try {
+                this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.executorService = Executors.newFixedThreadPool(threadsNum);
+            this.maxInFlight = threadsNum * BLOCKS_IN_FLIGHT_PER_THREAD;
+        }
+
+        private void submitBlocks() throws IOException {
+            while (!lastBlockRead && pending.size() < maxInFlight) {
+                byte[] compressed = new byte[MAX_BLOCK_SIZE];
+                int blockSize = readBlock(channel, nextAddress, compressed);
+                if (blockSize < 0) {
+                    lastBlockRead = true;
+                    return;
+                }
+                nextAddress += blockSize;
+                pending.add(executorService.submit(() -> {
+                    byte[] uncompressed = new byte[MAX_BLOCK_SIZE];
+                    int n = inflateBlock(compressed, blockSize, uncompressed, inflater.get());
+                    return Arrays.copyOf(uncompressed, n);
+                }));
+            }
+        }
+
+        private boolean nextBlock() throws IOException {
+            while (position == current.length) {
+                submitBlocks();
+                Future<byte[]> future = pending.poll();
+                if (future == null) return false;
+                try {
+                    current = future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextBlock()) return -1;
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextBlock()) return -1;
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            executorService.shutdownNow();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads lines from an InputStream as raw bytes into a single reusable buffer.
+ * After a successful {@link #readLine()}, the current line is
+ * {@code getBuffer()[getLineStart(), getLineEnd())}, without the line terminator.
+ * The line is only valid until the next call of readLine, so nothing is allocated per line.
+ * Both "\n" and "\r\n" terminators are accepted.
+ */
+public class ByteLineReader implements Closeable {
+
+    private final InputStream inputStream;
+    private byte[] buffer;
+    /** Valid, unconsumed data is buffer[position, limit) */
+    private int position;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    /** Stream offset of buffer[0] */
+    private long bufferOffset;
+    private boolean eof;
+
+    public ByteLineReader(InputStream inputStream, int bufferSize) {
+        assert bufferSize > 0 : "bufferSize must be positive";
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    public ByteLineReader(InputStream inputStream) {
+        this(inputStream, 1 << 20);
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return false if the end of the stream has been reached
+     * @throws IOException if the underlying stream fails
+     */
+    public boolean readLine() throws IOException {
+        int searchFrom = position;
+        while (true) {
+            for (int i = searchFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    setLine(position, i);
+                    position = i + 1;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (position == limit) return false;
+                setLine(position, limit);
+                position = limit;
+                return true;
+            }
+            searchFrom = limit - position;
+            fill();
+            searchFrom += position;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') end--;
+        this.lineStart = start;
+        this.lineEnd = end;
+    }
+
+    /**
+     * Moves unconsumed bytes to the front of the buffer, grows it if it is full,
+     * and reads more data from the stream.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            bufferOffset += position;
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] newBuffer = new byte[buffer.length << 1];
+            System.arraycopy(buffer, 0, newBuffer, 0, limit);
+            buffer = newBuffer;
+        }
+        int n = inputStream.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /**
+     * Drops the unconsumed bytes, so the next line is read from the current position of the stream,
+     * e.g. after it has been repositioned. Stream offsets then count from that position.
+     */
+    public void discardBuffer() {
+        position = 0;
+        limit = 0;
+        bufferOffset = 0;
+        eof = false;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    public int getLineEnd() {
+        return lineEnd;
+    }
+
+    public int getLineLength() {
+        return lineEnd - lineStart;
+    }
+
+    /**
+     * Returns the offset of the first byte of the current line in the stream.
+     *
+     * @return the stream offset of the current line
+     */
+    public long getLineOffset() {
+        return bufferOffset + lineStart;
+    }
+
+    /**
+     * Returns the offset in the stream of the first byte that has not been returned as part of a line.
+     *
+     * @return the stream offset following the current line and its terminator
+     */
+    public long getOffset() {
+        return bufferOffset + position;
+    }
+
+    /**
+     * Returns true if the current line is empty or contains only spaces and tabs.
+     *
+     * @return true if the current line is blank
+     */
+    public boolean isBlankLine() {
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buffer[i] != ' ' && buffer[i] != '\t') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a non-negative or negative decimal integer from bytes[start, end) without allocation.
+     *
+     * @param bytes the byte array
+     * @param start start index, inclusive
+     * @param end   end index, exclusive
+     * @return the parsed integer
+     */
+    public static int parseInt(byte[] bytes, int start, int end) {
+        if (start >= end) throw new NumberFormatException("Empty integer field");
+        boolean negative = bytes[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) throw new NumberFormatException("Invalid integer field");
+        int value = 0, digit;
+        for (; i < end; i++) {
+            digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid integer field: " + new String(bytes, start, end - start));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+}
@@ -44,6 +44,25 @@ public class IOTool {
         }
     }
 
+    /**
+     * Returns an InputStream based on file extension, handling gzipped and normal files.
+     * Useful when input is parsed as raw bytes rather than characters.
+     *
+     * @param file The path to the file.
+     * @return An InputStream to read the (decompressed) file.
+     */
+    public static InputStream getInputStream(String file) {
+        try {
+            InputStream inputStream = new FileInputStream(file);
+            if (file.endsWith(".gz")) {
+                return new GZIPInputStream(inputStream, 65536);
+            }
+            return inputStream;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Returns a BufferedReader for reading a file with Chinese encoding (GB18030).
      *
@@ -145,6 +164,25 @@ public class IOTool {
         }
     }
 
+    /**
+     * Returns a BufferedOutputStream based on file extension, handling gzipped and normal files.
+     * Useful when output is produced as raw bytes rather than characters.
+     *
+     * @param file The file path.
+     * @return A BufferedOutputStream to write to the file.
+     */
+    public static BufferedOutputStream getBufferedOutputStream(String file) {
+        try {
+            OutputStream outputStream = new FileOutputStream(file);
+            if (file.endsWith(".gz")) {
+                outputStream = new GZIPOutputStream(outputStream, 65536);
+            }
+            return new BufferedOutputStream(outputStream, 65536);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Filters and returns files that start with a given prefix.
      *
@@ -0,0 +1,84 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Formats items on a pool of worker threads and writes the results from a single thread
+ * in the original item order, so the output is identical to formatting the items serially.
+ * At most a fixed number of items per thread are in flight, which bounds memory usage
+ * when the items come from a streaming source.
+ */
+public class OrderedParallelWriter {
+
+    /**
+     * Number of items queued per worker thread before the writer waits for the oldest one.
+     */
+    private static final int ITEMS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Formats every item with the formatter in parallel and writes the bytes in item order.
+     *
+     * @param items        items to format, consumed on the calling thread
+     * @param formatter    converts one item into the bytes to write, must be thread-safe
+     * @param outputStream destination, written only by the calling thread
+     * @param threadsNum   number of worker threads
+     * @param <T>          item type
+     */
+    public static <T> void write(Iterator<T> items, Function<T, byte[]> formatter, OutputStream outputStream,
+                                 int threadsNum) {
+        forEachOrdered(items, formatter, bytes -> {
+            try {
+                outputStream.write(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, threadsNum);
+    }
+
+    /**
+     * Applies the function to every item in parallel and passes the results to the consumer in item order.
+     *
+     * @param items      items to process, consumed on the calling thread
+     * @param function   converts one item into a result, must be thread-safe
+     * @param consumer   receives the results in item order, called only by the calling thread
+     * @param threadsNum number of worker threads
+     * @param <T>        item type
+     * @param <R>        result type
+     */
+    public static <T, R> void forEachOrdered(Iterator<T> items, Function<T, R> function, Consumer<R> consumer,
+                                             int threadsNum) {
+        assert threadsNum > 0 : threadsNum + " must be greater than 0";
+        ExecutorService executorService = Executors.newFixedThreadPool(threadsNum);
+        ArrayDeque<Future<R>> pending = new ArrayDeque<>();
+        int maxInFlight = threadsNum * ITEMS_IN_FLIGHT_PER_THREAD;
+        try {
+            while (items.hasNext()) {
+                if (pending.size() >= maxInFlight) {
+                    consumer.accept(pending.poll().get());
+                }
+                T item = items.next();
+                pending.add(executorService.submit(() -> function.apply(item)));
+            }
+            while (!pending.isEmpty()) {
+                consumer.accept(pending.poll().get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+}
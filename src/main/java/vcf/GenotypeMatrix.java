@@ -0,0 +1,672 @@
+package vcf;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import utils.BGZFUtils;
+import utils.ByteLineReader;
+import utils.IOTool;
+
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Diploid genotypes of a VCF as a memory-mapped 2-bit matrix, one row per site, and a site table with the chromosome,
+ * position, REF, ALT and ancestral allele of each site, the latter from an outgroup sample added by
+ * {@link OutgroupSampleAdder}. The outgroup is not a column of the matrix.
+ * <p>
+ * Genotype codes are {@link #HOM_REF}, {@link #HET}, {@link #HOM_ALT} and {@link #MISSING}, any allele other than REF
+ * counting as ALT. A row is packed into 64-bit words, 32 genotypes per word, sample j at bits [2(j % 32), 2(j % 32) + 2)
+ * of word j / 32, so counts over the samples of a site are a few popcounts per word.
+ * <p>
+ * {@link #build(String, String, String, int)} converts the VCF into a cache file that {@link #GenotypeMatrix(String)}
+ * maps as a whole, so the matrix can be larger than the heap:
+ * <pre>
+ * header     magic, version, outgroup name ("" if none), sample names, chromosome names and first sites, site count,
+ *            bytes per row
+ * sections   matrix (aligned to 8 bytes), positions, ancestral allele indices, allele ends, "REF\tALT" alleles
+ * footer     offsets of the sections
+ * </pre>
+ */
+public class GenotypeMatrix implements AutoCloseable {
+
+    public static final int HOM_REF = 0;
+    public static final int HET = 1;
+    public static final int HOM_ALT = 2;
+    public static final int MISSING = 3;
+
+    static final int MAGIC = 0x47544D32; // "GTM2"
+    static final int VERSION = 2;
+    private static final int SECTION_NUM = 5;
+    private static final long LOW_BITS = 0x5555555555555555L;
+    /** byte order of DataOutputStream */
+    private static final ValueLayout.OfInt INT_LAYOUT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LAYOUT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong WORD_LAYOUT = ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment segment;
+    private final String outgroupSampleName;
+    private final List<String> sampleNames = new ArrayList<>();
+    private final List<String> chromosomes = new ArrayList<>();
+    /** first site of each chromosome, then the site count */
+    private final long[] chrFirstSites;
+    private final long siteNum;
+    private final int bytesPerSite;
+    private final int wordsPerSite;
+    private final long matrixOffset;
+    private final long positionsOffset;
+    private final long ancestralOffset;
+    private final long alleleEndsOffset;
+    private final long allelesOffset;
+
+    /**
+     * Maps a cache file written by {@link #build(String, String, String, int)}.
+     * @param cacheFile binary cache file
+     */
+    public GenotypeMatrix(String cacheFile) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 65536));
+             FileChannel channel = FileChannel.open(Paths.get(cacheFile), StandardOpenOption.READ)) {
+            if (dis.readInt() != MAGIC) throw new IllegalArgumentException(cacheFile + " is not a genotype matrix");
+            int version = dis.readInt();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported genotype matrix version: " + version);
+            String outgroup = dis.readUTF();
+            outgroupSampleName = outgroup.isEmpty() ? null : outgroup;
+            int sampleNum = dis.readInt();
+            for (int i = 0; i < sampleNum; i++) {
+                sampleNames.add(dis.readUTF());
+            }
+            int chrNum = dis.readInt();
+            chrFirstSites = new long[chrNum + 1];
+            for (int i = 0; i < chrNum; i++) {
+                chromosomes.add(dis.readUTF());
+                chrFirstSites[i] = dis.readLong();
+            }
+            siteNum = dis.readLong();
+            chrFirstSites[chrNum] = siteNum;
+            bytesPerSite = dis.readInt();
+            wordsPerSite = bytesPerSite >>> 3;
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            long footer = segment.byteSize() - SECTION_NUM * Long.BYTES;
+            matrixOffset = segment.get(LONG_LAYOUT, footer);
+            positionsOffset = segment.get(LONG_LAYOUT, footer + 8);
+            ancestralOffset = segment.get(LONG_LAYOUT, footer + 16);
+            alleleEndsOffset = segment.get(LONG_LAYOUT, footer + 24);
+            allelesOffset = segment.get(LONG_LAYOUT, footer + 32);
+        } catch (IOException e) {
+            arena.close();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the matrix of a VCF, from the cache file if it is newer than the VCF and was built with the same outgroup,
+     * otherwise building the cache first.
+     * @param inputVcf           input VCF, see {@link #build(String, String, String, int)}
+     * @param cacheFile          binary cache file
+     * @param outgroupSampleName sample giving the ancestral allele, null if there is none
+     * @param threadsNum         number of chromosomes loaded at the same time
+     * @return the mapped matrix, to be closed
+     */
+    public static GenotypeMatrix load(String inputVcf, String cacheFile, String outgroupSampleName, int threadsNum) {
+        File cache = new File(cacheFile);
+        if (cache.exists()) {
+            if (cache.lastModified() < new File(inputVcf).lastModified()) {
+                System.out.println(cacheFile + " is older than " + inputVcf + ", rebuilding it");
+            } else if (!isBuiltWith(cacheFile, outgroupSampleName)) {
+                System.out.println(cacheFile + " was not built with outgroup " + outgroupSampleName + ", rebuilding it");
+            } else {
+                return new GenotypeMatrix(cacheFile);
+            }
+        }
+        build(inputVcf, cacheFile, outgroupSampleName, threadsNum);
+        return new GenotypeMatrix(cacheFile);
+    }
+
+    /**
+     * @return true if the cache file is of the current version and its outgroup is outgroupSampleName
+     */
+    private static boolean isBuiltWith(String cacheFile, String outgroupSampleName) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) return false;
+            return dis.readUTF().equals(outgroupSampleName == null ? "" : outgroupSampleName);
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts a VCF into a cache file. A BGZF VCF with a tabix index inputVcf + ".tbi" is loaded one chromosome per
+     * thread, each into temporary files next to the cache that are then concatenated in index order;
+     * any other VCF is read in one pass, and the lines of a chromosome must be consecutive.
+     * @param inputVcf           input VCF
+     * @param cacheFile          binary cache file
+     * @param outgroupSampleName sample giving the ancestral allele, "k/k" for allele k, null if there is none
+     * @param threadsNum         number of chromosomes loaded at the same time
+     */
+    public static void build(String inputVcf, String cacheFile, String outgroupSampleName, int threadsNum) {
+        boolean indexed = inputVcf.endsWith(".gz") && new File(inputVcf + ".tbi").exists() && BGZFUtils.isBGZF(inputVcf);
+        List<String> header;
+        try (ByteLineReader reader = new ByteLineReader(IOTool.getInputStream(inputVcf))) {
+            header = null;
+            while (reader.readLine()) {
+                String line = new String(reader.getBuffer(), reader.getLineStart(), reader.getLineLength(), StandardCharsets.UTF_8);
+                if (!line.startsWith("##")) {
+                    if (line.startsWith("#")) header = Arrays.asList(line.split("\t"));
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (header == null || header.size() < 9) throw new IllegalArgumentException("No #CHROM line in " + inputVcf);
+        int outgroupColumn = outgroupSampleName == null ? -1 : header.indexOf(outgroupSampleName);
+        if (outgroupSampleName != null && outgroupColumn < 9) {
+            throw new IllegalArgumentException("Sample " + outgroupSampleName + " is not in the header of " + inputVcf);
+        }
+        List<String> sampleNames = new ArrayList<>();
+        for (int c = 9; c < header.size(); c++) {
+            if (c != outgroupColumn) sampleNames.add(header.get(c));
+        }
+        int bytesPerSite = ((sampleNames.size() + 31) >>> 5) << 3;
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadsNum);
+        List<ChromosomeLoader> loaders = new ArrayList<>();
+        try {
+            if (indexed) {
+                TabixIndex index = new TabixIndex(new File(inputVcf + ".tbi"));
+                for (String contig : index.getSequenceNames()) {
+                    long startOffset = OutgroupSampleAdder.getStartOffset(index, contig);
+                    if (startOffset < 0) continue;
+                    loaders.add(new ChromosomeLoader(inputVcf, contig, startOffset, cacheFile + "." + loaders.size(),
+                            outgroupColumn, sampleNames.size(), bytesPerSite));
+                }
+            } else {
+                loaders.add(new ChromosomeLoader(inputVcf, null, -1, cacheFile + ".0", outgroupColumn, sampleNames.size(),
+                        bytesPerSite));
+            }
+            List<Future<ChromosomeLoader>> futures = new ArrayList<>();
+            for (ChromosomeLoader loader : loaders) {
+                futures.add(executorService.submit(loader));
+            }
+            for (Future<ChromosomeLoader> future : futures) {
+                future.get();
+            }
+            writeCache(cacheFile, outgroupSampleName, sampleNames, bytesPerSite, loaders);
+        } catch (IOException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executorService.shutdownNow();
+            for (ChromosomeLoader loader : loaders) {
+                loader.deleteTemporaryFiles();
+            }
+        }
+    }
+
+    private static void writeCache(String cacheFile, String outgroupSampleName, List<String> sampleNames, int bytesPerSite,
+                                   List<ChromosomeLoader> loaders) throws IOException {
+        List<String> chromosomes = new ArrayList<>();
+        List<Long> chrFirstSites = new ArrayList<>();
+        long siteNum = 0;
+        for (ChromosomeLoader loader : loaders) {
+            for (int i = 0; i < loader.chromosomes.size(); i++) {
+                if (chromosomes.contains(loader.chromosomes.get(i))) {
+                    throw new IllegalArgumentException("Lines of chromosome " + loader.chromosomes.get(i) + " are not consecutive");
+                }
+                chromosomes.add(loader.chromosomes.get(i));
+                chrFirstSites.add(siteNum);
+                siteNum += loader.chrSiteNums.getInt(i);
+            }
+        }
+        try (CountingOutputStream cos = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile), 1 << 20));
+             DataOutputStream dos = new DataOutputStream(cos)) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeUTF(outgroupSampleName == null ? "" : outgroupSampleName);
+            dos.writeInt(sampleNames.size());
+            for (String sampleName : sampleNames) {
+                dos.writeUTF(sampleName);
+            }
+            dos.writeInt(chromosomes.size());
+            for (int i = 0; i < chromosomes.size(); i++) {
+                dos.writeUTF(chromosomes.get(i));
+                dos.writeLong(chrFirstSites.get(i));
+            }
+            dos.writeLong(siteNum);
+            dos.writeInt(bytesPerSite);
+            while ((cos.count & 7) != 0) dos.writeByte(0);
+            long[] offsets = new long[SECTION_NUM];
+            offsets[0] = cos.count;
+            for (ChromosomeLoader loader : loaders) {
+                Files.copy(loader.matrixFile, dos);
+            }
+            offsets[1] = cos.count;
+            for (ChromosomeLoader loader : loaders) {
+                for (int i = 0; i < loader.positions.size(); i++) dos.writeInt(loader.positions.getInt(i));
+            }
+            offsets[2] = cos.count;
+            for (ChromosomeLoader loader : loaders) {
+                dos.write(loader.ancestralIndices.toByteArray());
+            }
+            offsets[3] = cos.count;
+            long alleleEnd = 0;
+            for (ChromosomeLoader loader : loaders) {
+                for (int i = 0; i < loader.alleleLengths.size(); i++) {
+                    alleleEnd += loader.alleleLengths.getInt(i);
+                    dos.writeLong(alleleEnd);
+                }
+            }
+            offsets[4] = cos.count;
+            for (ChromosomeLoader loader : loaders) {
+                Files.copy(loader.allelesFile, dos);
+            }
+            for (long offset : offsets) {
+                dos.writeLong(offset);
+            }
+        }
+    }
+
+    /**
+     * @return sample giving the ancestral alleles, null if there is none
+     */
+    public String getOutgroupSampleName() {
+        return outgroupSampleName;
+    }
+
+    public List<String> getSampleNames() {
+        return Collections.unmodifiableList(sampleNames);
+    }
+
+    public int getSampleNum() {
+        return sampleNames.size();
+    }
+
+    public long getSiteNum() {
+        return siteNum;
+    }
+
+    public List<String> getChromosomes() {
+        return Collections.unmodifiableList(chromosomes);
+    }
+
+    /**
+     * @param chrIndex index in {@link #getChromosomes()}
+     * @return sites of the chromosome, [first, last + 1)
+     */
+    public long[] getSiteRange(int chrIndex) {
+        return new long[]{chrFirstSites[chrIndex], chrFirstSites[chrIndex + 1]};
+    }
+
+    /**
+     * @param site site index
+     * @return index of the chromosome of the site in {@link #getChromosomes()}
+     */
+    public int getChromosomeIndex(long site) {
+        int low = 0, high = chromosomes.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chrFirstSites[mid] <= site) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    public int getPosition(long site) {
+        return segment.get(INT_LAYOUT, positionsOffset + site * Integer.BYTES);
+    }
+
+    public String getRef(long site) {
+        String alleles = getAlleles(site);
+        return alleles.substring(0, alleles.indexOf('\t'));
+    }
+
+    public String getAlt(long site) {
+        String alleles = getAlleles(site);
+        return alleles.substring(alleles.indexOf('\t') + 1);
+    }
+
+    private String getAlleles(long site) {
+        long start = getAllelesStart(site);
+        long end = segment.get(LONG_LAYOUT, alleleEndsOffset + site * Long.BYTES);
+        byte[] bytes = segment.asSlice(allelesOffset + start, end - start).toArray(ValueLayout.JAVA_BYTE);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long getAllelesStart(long site) {
+        return site == 0 ? 0 : segment.get(LONG_LAYOUT, alleleEndsOffset + (site - 1) * Long.BYTES);
+    }
+
+    /**
+     * @param site site index
+     * @return number of alleles of the site, REF included, 1 if ALT is "."
+     */
+    public int getAlleleNum(long site) {
+        long start = allelesOffset + getAllelesStart(site);
+        long end = allelesOffset + segment.get(LONG_LAYOUT, alleleEndsOffset + site * Long.BYTES);
+        long altStart = start;
+        while (segment.get(ValueLayout.JAVA_BYTE, altStart) != '\t') altStart++;
+        altStart++;
+        if (end - altStart == 1 && segment.get(ValueLayout.JAVA_BYTE, altStart) == '.') return 1;
+        int alleleNum = 2;
+        for (long i = altStart; i < end; i++) {
+            if (segment.get(ValueLayout.JAVA_BYTE, i) == ',') alleleNum++;
+        }
+        return alleleNum;
+    }
+
+    /**
+     * @param site site index
+     * @return index of the ancestral allele, 0 for REF, -1 if the outgroup is missing or heterozygous
+     */
+    public int getAncestralIndex(long site) {
+        return segment.get(ValueLayout.JAVA_BYTE, ancestralOffset + site);
+    }
+
+    /**
+     * @param site   site index
+     * @param sample sample index in {@link #getSampleNames()}
+     * @return genotype code
+     */
+    public int getGenotype(long site, int sample) {
+        return (int) (getWord(site, sample >>> 5) >>> ((sample & 31) << 1)) & 3;
+    }
+
+    /**
+     * @param site site index
+     * @param word word index, [0, (sampleNum + 31) / 32)
+     * @return 32 genotypes of the row, padded with {@link #HOM_REF}
+     */
+    public long getWord(long site, int word) {
+        return segment.get(WORD_LAYOUT, matrixOffset + site * bytesPerSite + ((long) word << 3));
+    }
+
+    public int getHetNum(long site) {
+        int count = 0;
+        for (int w = 0; w < wordsPerSite; w++) {
+            long word = getWord(site, w);
+            count += Long.bitCount(word & ~(word >>> 1) & LOW_BITS);
+        }
+        return count;
+    }
+
+    public int getHomAltNum(long site) {
+        int count = 0;
+        for (int w = 0; w < wordsPerSite; w++) {
+            long word = getWord(site, w);
+            count += Long.bitCount(~word & (word >>> 1) & LOW_BITS);
+        }
+        return count;
+    }
+
+    public int getMissingNum(long site) {
+        int count = 0;
+        for (int w = 0; w < wordsPerSite; w++) {
+            long word = getWord(site, w);
+            count += Long.bitCount(word & (word >>> 1) & LOW_BITS);
+        }
+        return count;
+    }
+
+    /**
+     * @return number of ALT alleles among the called genotypes of a site
+     */
+    public int getAltAlleleCount(long site) {
+        int count = 0;
+        for (int w = 0; w < wordsPerSite; w++) {
+            long word = getWord(site, w);
+            long low = word & LOW_BITS, high = (word >>> 1) & LOW_BITS;
+            count += Long.bitCount(low & ~high) + (Long.bitCount(high & ~low) << 1);
+        }
+        return count;
+    }
+
+    /**
+     * @return number of alleles among the called genotypes of a site, AN
+     */
+    public int getCalledAlleleCount(long site) {
+        return (getSampleNum() - getMissingNum(site)) << 1;
+    }
+
+    /**
+     * @return number of derived alleles of a site, -1 if its ancestral allele is neither REF nor, at a biallelic site,
+     * ALT; at a multi-allelic site the derived allele of an ALT ancestor cannot be told from the 2-bit codes
+     */
+    public int getDerivedAlleleCount(long site) {
+        int ancestralIndex = getAncestralIndex(site);
+        if (ancestralIndex == 0) return getAltAlleleCount(site);
+        if (ancestralIndex == 1 && getAlleleNum(site) == 2) return getCalledAlleleCount(site) - getAltAlleleCount(site);
+        return -1;
+    }
+
+    /**
+     * Unfolded site frequency spectrum of the sites with a derived allele count and no missing genotype.
+     * @return number of sites by derived allele count, [0, 2 * sampleNum]
+     */
+    public long[] getUnfoldedSFS() {
+        long[] sfs = new long[(getSampleNum() << 1) + 1];
+        for (long site = 0; site < siteNum; site++) {
+            if (getMissingNum(site) > 0) continue;
+            int derivedAlleleCount = getDerivedAlleleCount(site);
+            if (derivedAlleleCount >= 0) sfs[derivedAlleleCount]++;
+        }
+        return sfs;
+    }
+
+    /**
+     * Unmaps the cache file; accessors fail afterwards.
+     */
+    @Override
+    public void close() {
+        if (arena.scope().isAlive()) arena.close();
+    }
+
+    /**
+     * Encodes the lines of one chromosome, or of the whole VCF if it is not indexed: matrix rows and alleles go to
+     * temporary files, positions and ancestral alleles stay in memory until the cache is written.
+     */
+    private static class ChromosomeLoader implements Callable<ChromosomeLoader> {
+
+        private final String inputVcf;
+        private final String contig;
+        private final long startOffset;
+        private final int outgroupColumn;
+        private final int sampleNum;
+        private final int bytesPerSite;
+        final Path matrixFile;
+        final Path allelesFile;
+        final List<String> chromosomes = new ArrayList<>();
+        final IntArrayList chrSiteNums = new IntArrayList();
+        final IntArrayList positions = new IntArrayList();
+        final ByteArrayOutputStream ancestralIndices = new ByteArrayOutputStream();
+        final IntArrayList alleleLengths = new IntArrayList();
+
+        /**
+         * @param contig      chromosome read from startOffset until the next one, null to read the whole VCF
+         * @param startOffset virtual offset of the first line of contig
+         * @param sampleNum   number of samples of the header, the outgroup excluded
+         */
+        ChromosomeLoader(String inputVcf, String contig, long startOffset, String tmpPrefix, int outgroupColumn, int sampleNum,
+                         int bytesPerSite) {
+            this.inputVcf = inputVcf;
+            this.contig = contig;
+            this.startOffset = startOffset;
+            this.outgroupColumn = outgroupColumn;
+            this.sampleNum = sampleNum;
+            this.bytesPerSite = bytesPerSite;
+            this.matrixFile = Paths.get(tmpPrefix + ".gt.tmp");
+            this.allelesFile = Paths.get(tmpPrefix + ".alleles.tmp");
+        }
+
+        @Override
+        public ChromosomeLoader call() throws IOException {
+            InputStream inputStream;
+            if (contig == null) {
+                inputStream = IOTool.getInputStream(inputVcf);
+            } else {
+                BlockCompressedInputStream bcis = new BlockCompressedInputStream(new File(inputVcf));
+                bcis.seek(startOffset);
+                inputStream = bcis;
+            }
+            byte[] row = new byte[bytesPerSite];
+            byte[] chrBytes = new byte[0];
+            try (ByteLineReader reader = new ByteLineReader(inputStream);
+                 OutputStream matrixStream = new BufferedOutputStream(new FileOutputStream(matrixFile.toFile()), 1 << 20);
+                 OutputStream allelesStream = new BufferedOutputStream(new FileOutputStream(allelesFile.toFile()), 1 << 16)) {
+                while (reader.readLine()) {
+                    byte[] data = reader.getBuffer();
+                    int start = reader.getLineStart(), end = reader.getLineEnd();
+                    if (contig == null && (start == end || data[start] == '#')) continue;
+                    int chrEnd = indexOf(data, start, end, '\t');
+                    if (!Arrays.equals(data, start, chrEnd, chrBytes, 0, chrBytes.length)) {
+                        if (contig != null && !chromosomes.isEmpty()) break;
+                        chrBytes = Arrays.copyOfRange(data, start, chrEnd);
+                        String chr = new String(chrBytes, StandardCharsets.UTF_8);
+                        if (contig != null && !chr.equals(contig)) break;
+                        if (chromosomes.contains(chr)) {
+                            throw new IllegalArgumentException("Lines of chromosome " + chr + " are not consecutive in " + inputVcf);
+                        }
+                        chromosomes.add(chr);
+                        chrSiteNums.add(0);
+                    }
+                    encodeLine(data, chrEnd + 1, end, row, allelesStream);
+                    matrixStream.write(row);
+                    chrSiteNums.set(chrSiteNums.size() - 1, chrSiteNums.getInt(chrSiteNums.size() - 1) + 1);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Encodes the fields after CHROM into the site table and a matrix row. Samples of the header missing from a short
+         * line are {@link #MISSING}, columns beyond the header are ignored, and the padding of the row stays {@link #HOM_REF}.
+         */
+        private void encodeLine(byte[] data, int from, int end, byte[] row, OutputStream allelesStream) throws IOException {
+            int posEnd = indexOf(data, from, end, '\t');
+            positions.add(ByteLineReader.parseInt(data, from, posEnd));
+            int refStart = indexOf(data, posEnd + 1, end, '\t') + 1;
+            int altEnd = indexOf(data, indexOf(data, refStart, end, '\t') + 1, end, '\t');
+            allelesStream.write(data, refStart, altEnd - refStart);
+            alleleLengths.add(altEnd - refStart);
+            int formatStart = indexOf(data, indexOf(data, indexOf(data, altEnd + 1, end, '\t') + 1, end, '\t') + 1, end, '\t') + 1;
+            int i = indexOf(data, formatStart, end, '\t');
+            Arrays.fill(row, (byte) 0);
+            int ancestralIndex = -1;
+            int sample = 0;
+            for (int column = 9; i < end; column++) {
+                int fieldStart = i + 1;
+                int fieldEnd = indexOf(data, fieldStart, end, '\t');
+                if (column == outgroupColumn) {
+                    ancestralIndex = getHomozygousIndex(data, fieldStart, fieldEnd);
+                } else if (sample < sampleNum) {
+                    row[sample >>> 2] |= (byte) (encodeGenotype(data, fieldStart, fieldEnd) << ((sample & 3) << 1));
+                    sample++;
+                }
+                i = fieldEnd;
+            }
+            for (; sample < sampleNum; sample++) {
+                row[sample >>> 2] |= (byte) (MISSING << ((sample & 3) << 1));
+            }
+            ancestralIndices.write(ancestralIndex);
+        }
+
+        void deleteTemporaryFiles() {
+            try {
+                Files.deleteIfExists(matrixFile);
+                Files.deleteIfExists(allelesFile);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the genotype code of the GT at the start of a sample field
+     */
+    private static int encodeGenotype(byte[] data, int start, int end) {
+        int altNum = 0, alleleNum = 0;
+        for (int i = start; i < end && data[i] != ':'; i++) {
+            byte b = data[i];
+            if (b == '.') return MISSING;
+            if (b == '/' || b == '|') continue;
+            // the first digit of an allele index tells REF from ALT
+            if (i == start || data[i - 1] == '/' || data[i - 1] == '|') {
+                alleleNum++;
+                if (b != '0') altNum++;
+            }
+        }
+        if (alleleNum == 0) return MISSING;
+        if (altNum == 0) return HOM_REF;
+        return altNum == alleleNum ? HOM_ALT : HET;
+    }
+
+    /**
+     * @return k if the GT at the start of a sample field is "k/k" or "k|k", -1 otherwise
+     */
+    private static int getHomozygousIndex(byte[] data, int start, int end) {
+        int separator = start;
+        while (separator < end && data[separator] != '/' && data[separator] != '|') separator++;
+        int gtEnd = separator;
+        while (gtEnd < end && data[gtEnd] != ':') gtEnd++;
+        if (separator == start || separator == gtEnd - 1 || separator == gtEnd) return -1;
+        if (!Arrays.equals(data, start, separator, data, separator + 1, gtEnd)) return -1;
+        int k = 0;
+        for (int i = start; i < separator; i++) {
+            if (data[i] < '0' || data[i] > '9') return -1;
+            k = k * 10 + data[i] - '0';
+        }
+        return k > Byte.MAX_VALUE ? -1 : k;
+    }
+
+    private static int indexOf(byte[] data, int from, int end, char c) {
+        int i = from;
+        while (i < end && data[i] != c) i++;
+        return i;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -1,14 +1,78 @@
 package vcf;
 
+import maf.AncestralAlleleLookup;
+import maf.AncestralAlleleStore;
+import maf.AncestralAlleleTable;
+import maf.MAF;
+import htsjdk.samtools.GenomicIndexUtil;
+import htsjdk.samtools.BinningIndexContent;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.index.tabix.TabixIndexMerger;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.lang3.StringUtils;
+import utils.BGZFUtils;
+import utils.ByteLineReader;
 import utils.IOTool;
+import utils.OrderedParallelWriter;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
 
 public class OutgroupSampleAdder {
 
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    /** "k/k" for allele index k */
+    private static final byte[][] HOM_GENOTYPES = new byte[256][];
+    private static final byte[] MISSING = "./.".getBytes(StandardCharsets.US_ASCII);
+    /** single-byte arrays of every byte value, for table lookups */
+    private static final byte[][] SINGLE_BYTES = new byte[256][];
+
+    static {
+        for (int i = 0; i < SINGLE_BYTES.length; i++) {
+            SINGLE_BYTES[i] = new byte[]{(byte) i};
+        }
+        for (int k = 0; k < HOM_GENOTYPES.length; k++) {
+            HOM_GENOTYPES[k] = (k + "/" + k).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Adds the ancestral allele of each VCF site as the genotype of a new sample: "0/0" if it is REF, "1/1" if it is
+     * the whole ALT field, "./." otherwise or if it has no ancestral allele.
+     * The whole ancestral allele file is scanned; for VCFs with few sites, convert it once with
+     * {@link AncestralAlleleStore#build(String, String)} and use {@link #addOutgroupSample(String, String, AncestralAlleleLookup, String)}.
+     * {@link #addOutgroupSampleMultiAllelic(String, String, String, String)} is a byte-level version that also
+     * matches the alleles of multi-allelic ALT lists.
+     * @param inputVcf           input VCF, sorted like the ancestral allele file
+     * @param outputVcf          output VCF
+     * @param ancFilePath        ancestral allele file, sorted by chromosome name (String order) and position
+     * @param outgroupSampleName name of the added sample
+     */
     public static void addOutgroupSample(String inputVcf, String outputVcf, String ancFilePath, String outgroupSampleName) {
         try (BufferedReader br = IOTool.getBufferedReader(inputVcf);
              BufferedReader brAnc = IOTool.getBufferedReader(ancFilePath);
@@ -79,13 +143,655 @@ public class OutgroupSampleAdder {
                 bw.newLine();
             }
 
-            System.out.println("Ref count: " + countRef);
-            System.out.println("Alt count: " + countAlt);
+            printCounts(countRef, countAlt, outputVcf);
+
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing wheat genomic data", e);
+        }
+    }
+
+    /**
+     * Byte-level version of {@link #addOutgroupSample(String, String, String, String)} for wide VCFs, which also
+     * matches the alleles of multi-allelic ALT lists: the genotype is "k/k" where k is the index of the ancestral
+     * allele among REF and the ALT list, "./." if it is neither or has no ancestral allele; "." is never an allele.
+     * Lines are handled as bytes: only CHROM, POS, REF and ALT are located, and the original line is written as is.
+     * @param inputVcf           input VCF, sorted like the ancestral allele file
+     * @param outputVcf          output VCF
+     * @param ancFilePath        ancestral allele file, sorted by chromosome name (String order) and position
+     * @param outgroupSampleName name of the added sample
+     */
+    public static void addOutgroupSampleMultiAllelic(String inputVcf, String outputVcf, String ancFilePath,
+                                                     String outgroupSampleName) {
+        try (BufferedReader brAnc = IOTool.getBufferedReader(ancFilePath)) {
+            int[][] counts = addOutgroupSamples(inputVcf, outputVcf, List.of(outgroupSampleName),
+                    new AncestralLookup[]{new AncestralFileMatcher(brAnc)}, true);
+            printCounts(counts[0][0], counts[0][1], outputVcf);
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing wheat genomic data", e);
+        }
+    }
+
+    /**
+     * Adds one sample per ancestral allele source in a single pass over the VCF, see
+     * {@link #addOutgroupSample(String, String, String, String)}. Each source is an ancestral allele file, merged with
+     * its own cursor, or a file written by {@link AncestralAlleleStore}, looked up by position. The numbers of REF, ALT
+     * and missing genotypes of each sample are printed.
+     * @param inputVcf            input VCF, sorted like the ancestral allele files
+     * @param outputVcf           output VCF
+     * @param ancFilePaths        ancestral allele files, sorted by chromosome name (String order) and position, or stores
+     * @param outgroupSampleNames names of the added samples, one per source
+     */
+    public static void addOutgroupSamples(String inputVcf, String outputVcf, List<String> ancFilePaths,
+                                          List<String> outgroupSampleNames) {
+        assert ancFilePaths.size() == outgroupSampleNames.size() : "one sample name per ancestral allele source";
+        List<AutoCloseable> sources = new ArrayList<>();
+        try {
+            AncestralLookup[] lookups = new AncestralLookup[ancFilePaths.size()];
+            for (int i = 0; i < lookups.length; i++) {
+                String ancFilePath = ancFilePaths.get(i);
+                if (AncestralAlleleStore.isStore(ancFilePath)) {
+                    AncestralAlleleStore store = new AncestralAlleleStore(ancFilePath);
+                    sources.add(store);
+                    lookups[i] = getTableLookup(store);
+                } else {
+                    BufferedReader brAnc = IOTool.getBufferedReader(ancFilePath);
+                    sources.add(brAnc);
+                    lookups[i] = new AncestralFileMatcher(brAnc);
+                }
+            }
+            printCounts(outgroupSampleNames, addOutgroupSamples(inputVcf, outputVcf, outgroupSampleNames, lookups, false));
             System.out.println("Processing complete: " + outputVcf);
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing wheat genomic data", e);
+        } finally {
+            for (AutoCloseable source : sources) {
+                try {
+                    source.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #addOutgroupSamples(String, String, List, List)}, with ancestral alleles looked up by position.
+     * @param inputVcf            input VCF
+     * @param outputVcf           output VCF
+     * @param tables              ancestral alleles by reference position, one per added sample
+     * @param outgroupSampleNames names of the added samples
+     */
+    public static void addOutgroupSamplesFromLookups(String inputVcf, String outputVcf, List<? extends AncestralAlleleLookup> tables,
+                                                     List<String> outgroupSampleNames) {
+        assert tables.size() == outgroupSampleNames.size() : "one sample name per ancestral allele source";
+        AncestralLookup[] lookups = new AncestralLookup[tables.size()];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = getTableLookup(tables.get(i));
+        }
+        printCounts(outgroupSampleNames, addOutgroupSamples(inputVcf, outputVcf, outgroupSampleNames, lookups, false));
+        System.out.println("Processing complete: " + outputVcf);
+    }
+
+    /**
+     * Prints the summary of the single-sample methods.
+     */
+    private static void printCounts(int countRef, int countAlt, String outputVcf) {
+        System.out.println("Ref count: " + countRef);
+        System.out.println("Alt count: " + countAlt);
+        System.out.println("Processing complete: " + outputVcf);
+    }
 
+    private static void printCounts(List<String> outgroupSampleNames, int[][] counts) {
+        System.out.println("Sample\tRef\tAlt\tMissing");
+        for (int i = 0; i < counts.length; i++) {
+            System.out.println(outgroupSampleNames.get(i) + "\t" + counts[i][0] + "\t" + counts[i][1] + "\t" + counts[i][2]);
+        }
+    }
+
+    /**
+     * Builds the ancestral alleles from a MAF file in memory and adds them to the VCF in one pass,
+     * without writing, sorting and re-reading an intermediate ancestral allele file.
+     * @param inputVcf           input VCF, chromosome names as in the MAF records (e.g. "1A")
+     * @param outputVcf          output VCF
+     * @param mafFile            MAF file, optionally gzipped
+     * @param reference          species of the VCF coordinates
+     * @param outgroup           species providing the ancestral allele
+     * @param outgroupSampleName name of the added sample
+     */
+    public static void addOutgroupSampleFromMAF(String inputVcf, String outputVcf, String mafFile,
+                                                MAF.Species reference, MAF.Species outgroup, String outgroupSampleName) {
+        addOutgroupSample(inputVcf, outputVcf, AncestralAlleleTable.build(mafFile, reference, outgroup), outgroupSampleName);
+    }
+
+    /**
+     * Same as {@link #addOutgroupSample(String, String, String, String)}, but looks the ancestral allele up by position,
+     * e.g. in an {@link AncestralAlleleTable} or an {@link AncestralAlleleStore}, so the VCF does not need to be sorted
+     * in the order of an ancestral allele file and the ancestral alleles outside the VCF are never read.
+     * A position without ancestral allele is "./.", even where the ALT field is ".".
+     * @param inputVcf           input VCF
+     * @param outputVcf          output VCF
+     * @param table              ancestral alleles by reference position
+     * @param outgroupSampleName name of the added sample
+     */
+    public static void addOutgroupSample(String inputVcf, String outputVcf, AncestralAlleleLookup table, String outgroupSampleName) {
+        int[][] counts = addOutgroupSamples(inputVcf, outputVcf, List.of(outgroupSampleName),
+                new AncestralLookup[]{getTableLookup(table)}, false);
+        printCounts(counts[0][0], counts[0][1], outputVcf);
+    }
+
+    /**
+     * Serial loop of the methods above: one reusable line buffer, no String per line.
+     * @param multiAllelic match the ancestral alleles against each allele of the ALT list, not the whole ALT field
+     * @return numbers of REF, ALT and missing genotypes of each added sample
+     */
+    private static int[][] addOutgroupSamples(String inputVcf, String outputVcf, List<String> outgroupSampleNames,
+                                              AncestralLookup[] lookups, boolean multiAllelic) {
+        try (ByteLineReader reader = new ByteLineReader(IOTool.getInputStream(inputVcf));
+             BufferedOutputStream bos = IOTool.getBufferedOutputStream(outputVcf)) {
+            writeHeader(reader, bos, String.join("\t", outgroupSampleNames));
+            VcfLineScanner scanner = new VcfLineScanner(multiAllelic);
+            int[][] counts = new int[lookups.length][3];
+            while (reader.readLine()) {
+                byte[] buffer = reader.getBuffer();
+                scanner.scan(buffer, reader.getLineStart(), reader.getLineEnd());
+                String chr = scanner.getChr();
+                int pos = scanner.getPosition();
+                bos.write(buffer, reader.getLineStart(), reader.getLineLength());
+                for (int i = 0; i < lookups.length; i++) {
+                    bos.write('\t');
+                    bos.write(scanner.getGenotype(lookups[i].lookup(chr, pos), counts[i]));
+                }
+                bos.write(LINE_SEPARATOR);
+            }
+            bos.flush();
+            return counts;
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing wheat genomic data", e);
+        }
+    }
+
+    /**
+     * Copies the "##" lines, then the "#CHROM" line with the new sample names appended.
+     * As in the original implementation, the first line after the "##" lines is consumed even if it is not "#CHROM".
+     */
+    private static void writeHeader(ByteLineReader reader, OutputStream bos, String outgroupSampleName) throws IOException {
+        boolean hasLine;
+        while ((hasLine = reader.readLine()) && startsWith(reader, "##")) {
+            bos.write(reader.getBuffer(), reader.getLineStart(), reader.getLineLength());
+            bos.write(LINE_SEPARATOR);
+        }
+        if (hasLine && startsWith(reader, "#")) {
+            bos.write(reader.getBuffer(), reader.getLineStart(), reader.getLineLength());
+            bos.write(('\t' + outgroupSampleName).getBytes(StandardCharsets.UTF_8));
+            bos.write(LINE_SEPARATOR);
+        }
+    }
+
+    /**
+     * Wraps a lookup by position; positions without ancestral allele are null, so they are never matched against
+     * a "." ALT field.
+     */
+    private static AncestralLookup getTableLookup(AncestralAlleleLookup table) {
+        return (chr, pos) -> {
+            byte base = table.ancestralAt(chr, pos);
+            return base == '.' ? null : SINGLE_BYTES[base & 0xFF];
+        };
+    }
+
+    /**
+     * Pipelined version of {@link #addOutgroupSample(String, String, String, String)}, with the same output.
+     * The calling thread reads batches of VCF lines and matches them against the ancestral allele file;
+     * threadsNum workers build the output lines, which are written in input order. A BGZF input VCF named .gz
+     * is also decompressed on threadsNum threads.
+     * @param inputVcf           input VCF, sorted like the ancestral allele file
+     * @param outputVcf          output VCF
+     * @param ancFilePath        ancestral allele file, sorted by chromosome name (String order) and position
+     * @param outgroupSampleName name of the added sample
+     * @param threadsNum         number of worker threads
+     */
+    public static void addOutgroupSample(String inputVcf, String outputVcf, String ancFilePath, String outgroupSampleName,
+                                         int threadsNum) {
+        try (BufferedReader brAnc = IOTool.getBufferedReader(ancFilePath)) {
+            addOutgroupSample(inputVcf, outputVcf, outgroupSampleName, threadsNum, new AncestralFileMatcher(brAnc), null);
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing wheat genomic data", e);
+        }
+    }
+
+    /**
+     * Pipelined version of {@link #addOutgroupSample(String, String, AncestralAlleleLookup, String)}, with the same output.
+     * The calling thread reads batches of VCF lines; threadsNum workers look the ancestral alleles up and build
+     * the output lines, which are written in input order. A BGZF input VCF named .gz is also decompressed on
+     * threadsNum threads.
+     * @param inputVcf           input VCF
+     * @param outputVcf          output VCF
+     * @param table              ancestral alleles by reference position
+     * @param outgroupSampleName name of the added sample
+     * @param threadsNum         number of worker threads
+     */
+    public static void addOutgroupSample(String inputVcf, String outputVcf, AncestralAlleleLookup table, String outgroupSampleName,
+                                         int threadsNum) {
+        addOutgroupSample(inputVcf, outputVcf, outgroupSampleName, threadsNum, null, getTableLookup(table));
+    }
+
+    /**
+     * Pipelined version of {@link #addOutgroupSampleFromMAF(String, String, String, MAF.Species, MAF.Species, String)}.
+     * @param inputVcf           input VCF, chromosome names as in the MAF records (e.g. "1A")
+     * @param outputVcf          output VCF
+     * @param mafFile            MAF file, optionally gzipped
+     * @param reference          species of the VCF coordinates
+     * @param outgroup           species providing the ancestral allele
+     * @param outgroupSampleName name of the added sample
+     * @param threadsNum         number of worker threads
+     */
+    public static void addOutgroupSampleFromMAF(String inputVcf, String outputVcf, String mafFile, MAF.Species reference,
+                                                MAF.Species outgroup, String outgroupSampleName, int threadsNum) {
+        addOutgroupSample(inputVcf, outputVcf, AncestralAlleleTable.build(mafFile, reference, outgroup), outgroupSampleName,
+                threadsNum);
+    }
+
+    /**
+     * Per-contig version of {@link #addOutgroupSample(String, String, AncestralAlleleLookup, String)} for a BGZF VCF
+     * indexed with tabix. Each contig of the index is read from its first offset and annotated on its own thread into
+     * a temporary BGZF file next to the output, together with its own tabix index; the files are concatenated in index
+     * order, so the output is the same as the serial one, compressed, and the shifted indexes are merged into
+     * outputVcf + ".tbi". As in {@link OrderedParallelWriter}, only a few contigs per thread are annotated ahead of
+     * the one being written.
+     * The tabix format, and so this method, only supports positions below 2^29; CSI indexes are not read by htsjdk.
+     * @param inputVcf           input VCF, BGZF-compressed, with a tabix index inputVcf + ".tbi"
+     * @param outputVcf          output VCF, BGZF-compressed
+     * @param table              ancestral alleles by reference position
+     * @param outgroupSampleName name of the added sample
+     * @param threadsNum         number of contigs annotated at the same time
+     */
+    public static void addOutgroupSampleByContig(String inputVcf, String outputVcf, AncestralAlleleLookup table,
+                                                 String outgroupSampleName, int threadsNum) {
+        AncestralLookup lookup = getTableLookup(table);
+        List<Path> chunkFiles = new ArrayList<>();
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outputVcf), 1 << 20);
+             OutputStream indexStream = new BufferedOutputStream(new FileOutputStream(outputVcf + ".tbi"))) {
+            TabixIndex inputIndex = new TabixIndex(new File(inputVcf + ".tbi"));
+            List<String> contigs = new ArrayList<>();
+            LongArrayList startOffsets = new LongArrayList();
+            for (String contig : inputIndex.getSequenceNames()) {
+                long startOffset = getStartOffset(inputIndex, contig);
+                if (startOffset < 0) continue;
+                contigs.add(contig);
+                startOffsets.add(startOffset);
+                chunkFiles.add(Paths.get(outputVcf + "." + chunkFiles.size() + ".tmp"));
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try (ByteLineReader reader = new ByteLineReader(new BlockCompressedInputStream(new File(inputVcf)))) {
+                BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(header, (Path) null);
+                writeHeader(reader, bcos, outgroupSampleName);
+                bcos.close(false);
+            }
+            os.write(header.toByteArray());
+            long[] fileLength = {header.size()};
+
+            // part offsets are shifted by the header and the previous parts
+            TabixIndexMerger indexMerger = new TabixIndexMerger(indexStream, header.size());
+            int[] counts = new int[2];
+            Iterator<Integer> contigIndices = IntStream.range(0, contigs.size()).iterator();
+            OrderedParallelWriter.forEachOrdered(contigIndices, i -> {
+                try {
+                    return annotateContig(inputVcf, contigs, i, startOffsets.getLong(i), chunkFiles.get(i), lookup);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, chunk -> {
+                try {
+                    Files.copy(chunk.file, os);
+                    long chunkLength = Files.size(chunk.file);
+                    Files.delete(chunk.file);
+                    indexMerger.processIndex(chunk.index, chunkLength);
+                    fileLength[0] += chunkLength;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                counts[0] += chunk.counts[0];
+                counts[1] += chunk.counts[1];
+            }, threadsNum);
+            os.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            os.flush();
+            if (contigs.isEmpty()) {
+                // the merger refuses to merge no index
+                TabixIndex index = (TabixIndex) new TabixIndexCreator(TabixFormat.VCF).finalizeIndex(fileLength[0] << 16);
+                try (LittleEndianOutputStream los = new LittleEndianOutputStream(new BlockCompressedOutputStream(indexStream, (Path) null))) {
+                    index.write(los);
+                }
+            } else {
+                indexMerger.finish(fileLength[0]);
+            }
+
+            printCounts(counts[0], counts[1], outputVcf);
         } catch (IOException e) {
             throw new RuntimeException("Error processing wheat genomic data", e);
+        } finally {
+            for (Path chunkFile : chunkFiles) {
+                try {
+                    Files.deleteIfExists(chunkFile);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return virtual offset of the first line of a contig, -1 if the index has no data for it
+     */
+    static long getStartOffset(TabixIndex index, String contig) {
+        long startOffset = -1;
+        for (Block block : index.getBlocks(contig, 1, GenomicIndexUtil.BIN_GENOMIC_SPAN)) {
+            if (startOffset < 0 || block.getStartPosition() < startOffset) startOffset = block.getStartPosition();
+        }
+        return startOffset;
+    }
+
+    /**
+     * Annotates the lines of one contig, from its first line until the next contig, into a BGZF file without
+     * terminator block, indexing the lines with virtual offsets from the start of the file.
+     * @param contigs     all the contigs of the output
+     * @param contigIndex index of the annotated contig
+     */
+    private static ContigChunk annotateContig(String inputVcf, List<String> contigs, int contigIndex, long startOffset,
+                                              Path chunkFile, AncestralLookup lookup) throws IOException {
+        String contig = contigs.get(contigIndex);
+        ContigChunk chunk = new ContigChunk(chunkFile);
+        TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+        BlockCompressedInputStream bcis = new BlockCompressedInputStream(new File(inputVcf));
+        bcis.seek(startOffset);
+        try (ByteLineReader reader = new ByteLineReader(bcis);
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(chunkFile.toFile()), 1 << 20)) {
+            BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(os, (Path) null);
+            VcfLineScanner scanner = new VcfLineScanner(false);
+            while (reader.readLine()) {
+                byte[] buffer = reader.getBuffer();
+                scanner.scan(buffer, reader.getLineStart(), reader.getLineEnd());
+                if (!scanner.getChr().equals(contig)) break;
+                int pos = scanner.getPosition();
+                indexCreator.addFeature(new SimpleFeature(contig, pos, pos + scanner.getRefLength() - 1), bcos.getFilePointer());
+                byte[] genotype = scanner.getGenotype(lookup.lookup(contig, pos), chunk.counts);
+                bcos.write(buffer, reader.getLineStart(), reader.getLineLength());
+                bcos.write('\t');
+                bcos.write(genotype);
+                bcos.write(LINE_SEPARATOR);
+            }
+            bcos.flush();
+            long endOffset = bcos.getFilePointer();
+            // no terminator block, the chunk is followed by the next ones
+            bcos.close(false);
+            // the merged indexes must all list the same contigs
+            BinningIndexContent[] indices = new BinningIndexContent[contigs.size()];
+            BinningIndexContent[] contigIndices = ((TabixIndex) indexCreator.finalizeIndex(endOffset)).getIndices();
+            if (contigIndices.length > 0) indices[contigIndex] = contigIndices[0];
+            chunk.index = new TabixIndex(TabixFormat.VCF, contigs, indices);
+        }
+        return chunk;
+    }
+
+    /**
+     * Reader, workers and ordered writer of the pipelined methods.
+     * One of the lookups is null.
+     * @param readerLookup looks the ancestral alleles up on the reading thread, for lookups that depend on order
+     * @param workerLookup looks the ancestral alleles up on the worker threads
+     */
+    private static void addOutgroupSample(String inputVcf, String outputVcf, String outgroupSampleName, int threadsNum,
+                                          AncestralLookup readerLookup, AncestralLookup workerLookup) {
+        InputStream inputStream = inputVcf.endsWith(".gz") && BGZFUtils.isBGZF(inputVcf)
+                ? new BGZFUtils.ParallelInputStream(inputVcf, threadsNum) : IOTool.getInputStream(inputVcf);
+        try (ByteLineReader reader = new ByteLineReader(inputStream);
+             BufferedOutputStream bos = IOTool.getBufferedOutputStream(outputVcf)) {
+            writeHeader(reader, bos, outgroupSampleName);
+            int[] counts = new int[2];
+            Iterator<VcfBatch> batches = new VcfLineBatch.Reader<>(reader, (data, lineStarts, lineEnds) -> {
+                VcfBatch batch = new VcfBatch(data, lineStarts, lineEnds);
+                if (readerLookup != null) batch.lookUp(readerLookup);
+                return batch;
+            });
+            OrderedParallelWriter.forEachOrdered(batches, batch -> batch.format(workerLookup), result -> {
+                try {
+                    bos.write(result.bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                counts[0] += result.countRef;
+                counts[1] += result.countAlt;
+            }, threadsNum);
+            bos.flush();
+            printCounts(counts[0], counts[1], outputVcf);
+        } catch (IOException e) {
+            throw new RuntimeException("Error processing wheat genomic data", e);
+        }
+    }
+
+    private static boolean startsWith(ByteLineReader reader, String prefix) {
+        if (reader.getLineLength() < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (reader.getBuffer()[reader.getLineStart() + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Batch of VCF lines and their ancestral alleles.
+     */
+    private static class VcfBatch extends VcfLineBatch {
+
+        /** ancestral allele of each line, null to leave the sample missing without comparing */
+        final byte[][] ancestralAlleles;
+
+        VcfBatch(byte[] data, int[] lineStarts, int[] lineEnds) {
+            super(data, lineStarts, lineEnds);
+            this.ancestralAlleles = new byte[lineNum][];
+        }
+
+        /**
+         * Fills the ancestral alleles of all lines.
+         */
+        void lookUp(AncestralLookup lookup) {
+            VcfLineScanner scanner = new VcfLineScanner(false);
+            for (int l = 0; l < lineNum; l++) {
+                scanner.scan(data, lineStarts[l], lineEnds[l]);
+                ancestralAlleles[l] = lookup.lookup(scanner.getChr(), scanner.getPosition());
+            }
+        }
+
+        /**
+         * Appends the genotype of the outgroup sample to every line.
+         * @param lookup looks the ancestral alleles up, null if they are already filled
+         */
+        BatchResult format(AncestralLookup lookup) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + lineNum * (4 + LINE_SEPARATOR.length));
+            VcfLineScanner scanner = new VcfLineScanner(false);
+            int[] counts = new int[3];
+            for (int l = 0; l < lineNum; l++) {
+                scanner.scan(data, lineStarts[l], lineEnds[l]);
+                byte[] ancestralAllele = lookup == null ? ancestralAlleles[l] : lookup.lookup(scanner.getChr(), scanner.getPosition());
+                byte[] genotype = scanner.getGenotype(ancestralAllele, counts);
+                out.write(data, lineStarts[l], lineEnds[l] - lineStarts[l]);
+                out.write('\t');
+                out.write(genotype, 0, genotype.length);
+                out.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+            }
+            return new BatchResult(out.toByteArray(), counts[0], counts[1]);
+        }
+    }
+
+    /**
+     * Temporary BGZF file of one contig and its tabix index.
+     */
+    private static class ContigChunk {
+
+        final Path file;
+        /** index of the lines, virtual offsets from the start of the file */
+        TabixIndex index;
+        final int[] counts = new int[3];
+
+        ContigChunk(Path file) {
+            this.file = file;
+        }
+    }
+
+    private static class BatchResult {
+
+        final byte[] bytes;
+        final int countRef;
+        final int countAlt;
+
+        BatchResult(byte[] bytes, int countRef, int countAlt) {
+            this.bytes = bytes;
+            this.countRef = countRef;
+            this.countAlt = countAlt;
+        }
+    }
+
+    /**
+     * Ancestral allele of a reference position, null or "." if there is none.
+     */
+    private interface AncestralLookup {
+
+        byte[] lookup(String chr, int pos);
+    }
+
+    /**
+     * Two-pointer merge of VCF lines with a sorted ancestral allele file; positions must be looked up in VCF order.
+     * Each line of the ancestral allele file is split once, however many VCF lines are compared with it.
+     */
+    private static class AncestralFileMatcher implements AncestralLookup {
+
+        private final BufferedReader brAnc;
+        private String ancChr;
+        private int ancPos;
+        private byte[] ancAllele;
+
+        AncestralFileMatcher(BufferedReader brAnc) throws IOException {
+            this.brAnc = brAnc;
+            readAncLine();
+        }
+
+        private void readAncLine() throws IOException {
+            String ancLine = brAnc.readLine();
+            if (ancLine == null) {
+                ancChr = null;
+                return;
+            }
+            String[] ancTemp = StringUtils.split(ancLine, "\t");
+            ancChr = ancTemp[0];
+            ancPos = Integer.parseInt(ancTemp[1]);
+            ancAllele = ancTemp[3].getBytes(StandardCharsets.UTF_8); // README 提到的第 4 列
+        }
+
+        @Override
+        public byte[] lookup(String vcfChr, int vcfPos) {
+            try {
+                // 祖先文件坐标落后，继续读下一行
+                while (ancChr != null && (ancChr.compareTo(vcfChr) < 0 || (ancChr.equals(vcfChr) && ancPos < vcfPos))) {
+                    readAncLine();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return ancChr != null && ancChr.equals(vcfChr) && ancPos == vcfPos ? ancAllele : null;
+        }
+    }
+
+    /**
+     * Locates the first five tab-separated fields of a VCF line (CHROM, POS, ID, REF, ALT) without touching the rest,
+     * so the cost of a line does not grow with the number of samples. Reused from line to line, not thread-safe.
+     */
+    private static class VcfLineScanner {
+
+        private static final int FIELD_NUM = 5;
+
+        /** whether an allele is looked for in the ALT list, or compared with the whole ALT field */
+        private final boolean multiAllelic;
+        private final int[] fieldStarts = new int[FIELD_NUM];
+        private final int[] fieldEnds = new int[FIELD_NUM];
+        private byte[] data;
+        /** CHROM of the last line, reused while it does not change */
+        private byte[] chrBytes = new byte[0];
+        private String chr = "";
+
+        VcfLineScanner(boolean multiAllelic) {
+            this.multiAllelic = multiAllelic;
+        }
+
+        /**
+         * @param data  bytes holding the line
+         * @param start start of the line
+         * @param end   end of the line, without terminator
+         */
+        void scan(byte[] data, int start, int end) {
+            this.data = data;
+            int i = start;
+            for (int f = 0; f < FIELD_NUM; f++) {
+                // consecutive tabs count as one, as in StringUtils.split
+                while (i < end && data[i] == '\t') i++;
+                if (i == end) {
+                    throw new IllegalArgumentException("VCF line with fewer than " + FIELD_NUM + " fields: "
+                            + new String(data, start, end - start, StandardCharsets.UTF_8));
+                }
+                fieldStarts[f] = i;
+                while (i < end && data[i] != '\t') i++;
+                fieldEnds[f] = i;
+            }
+        }
+
+        String getChr() {
+            if (!Arrays.equals(data, fieldStarts[0], fieldEnds[0], chrBytes, 0, chrBytes.length)) {
+                chrBytes = Arrays.copyOfRange(data, fieldStarts[0], fieldEnds[0]);
+                chr = new String(chrBytes, StandardCharsets.UTF_8);
+            }
+            return chr;
+        }
+
+        int getPosition() {
+            return ByteLineReader.parseInt(data, fieldStarts[1], fieldEnds[1]);
+        }
+
+        int getRefLength() {
+            return fieldEnds[3] - fieldStarts[3];
+        }
+
+        /**
+         * @param allele allele bytes
+         * @return 0 if the allele is REF; then, in multi-allelic mode, k if it is the k-th allele of the comma-separated
+         * ALT list, "." never being an allele, otherwise 1 if it is the whole ALT field, as in the String version;
+         * -1 otherwise
+         */
+        int getAlleleIndex(byte[] allele) {
+            if (!multiAllelic) {
+                if (Arrays.equals(data, fieldStarts[3], fieldEnds[3], allele, 0, allele.length)) return 0;
+                return Arrays.equals(data, fieldStarts[4], fieldEnds[4], allele, 0, allele.length) ? 1 : -1;
+            }
+            if (allele.length == 1 && allele[0] == '.') return -1;
+            if (Arrays.equals(data, fieldStarts[3], fieldEnds[3], allele, 0, allele.length)) return 0;
+            int altEnd = fieldEnds[4];
+            int index = 1;
+            for (int i = fieldStarts[4]; i < altEnd; index++) {
+                int j = i;
+                while (j < altEnd && data[j] != ',') j++;
+                if (Arrays.equals(data, i, j, allele, 0, allele.length)) return index;
+                i = j + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * @param ancestralAllele ancestral allele of the line, null if there is none
+         * @param counts          numbers of REF, ALT and missing genotypes, incremented
+         * @return genotype of the outgroup sample
+         */
+        byte[] getGenotype(byte[] ancestralAllele, int[] counts) {
+            int index = ancestralAllele == null ? -1 : getAlleleIndex(ancestralAllele);
+            if (index < 0 || index >= HOM_GENOTYPES.length) {
+                counts[2]++;
+                return MISSING;
+            }
+            counts[index == 0 ? 0 : 1]++;
+            return HOM_GENOTYPES[index];
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+package vcf;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import utils.ByteLineReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Copy of consecutive data lines of a VCF, without line terminators, read on one thread and processed on another.
+ */
+class VcfLineBatch {
+
+    /** Upper bounds of a batch */
+    static final int BATCH_LINES = 1024;
+    static final int BATCH_BYTES = 4 << 20;
+
+    final byte[] data;
+    final int[] lineStarts;
+    final int[] lineEnds;
+    final int lineNum;
+
+    VcfLineBatch(byte[] data, int[] lineStarts, int[] lineEnds) {
+        this.data = data;
+        this.lineStarts = lineStarts;
+        this.lineEnds = lineEnds;
+        this.lineNum = lineStarts.length;
+    }
+
+    interface Factory<T extends VcfLineBatch> {
+
+        T create(byte[] data, int[] lineStarts, int[] lineEnds);
+    }
+
+    /**
+     * Cuts the remaining lines of a reader into batches, on the calling thread.
+     */
+    static class Reader<T extends VcfLineBatch> implements Iterator<T> {
+
+        private final ByteLineReader reader;
+        private final Factory<T> factory;
+        private final ByteArrayOutputStream batchData = new ByteArrayOutputStream(1 << 16);
+        private final IntArrayList lineStarts = new IntArrayList();
+        private final IntArrayList lineEnds = new IntArrayList();
+        private T nextBatch;
+
+        Reader(ByteLineReader reader, Factory<T> factory) {
+            this.reader = reader;
+            this.factory = factory;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextBatch == null) {
+                try {
+                    nextBatch = readBatch();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return nextBatch != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            T batch = nextBatch;
+            nextBatch = null;
+            return batch;
+        }
+
+        private T readBatch() throws IOException {
+            batchData.reset();
+            lineStarts.clear();
+            lineEnds.clear();
+            while (lineStarts.size() < BATCH_LINES && batchData.size() < BATCH_BYTES && reader.readLine()) {
+                lineStarts.add(batchData.size());
+                batchData.write(reader.getBuffer(), reader.getLineStart(), reader.getLineLength());
+                lineEnds.add(batchData.size());
+            }
+            if (lineStarts.isEmpty()) return null;
+            return factory.create(batchData.toByteArray(), lineStarts.toIntArray(), lineEnds.toIntArray());
+        }
+    }
+}
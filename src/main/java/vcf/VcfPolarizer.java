@@ -0,0 +1,557 @@
+package vcf;
+
+import org.apache.commons.lang3.StringUtils;
+import utils.BGZFUtils;
+import utils.ByteLineReader;
+import utils.IOTool;
+import utils.OrderedParallelWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Re-encodes a VCF so that the ancestral allele is allele 0, the ancestral allele of a site being the homozygous
+ * genotype "k/k" of an outgroup sample, e.g. the one added by
+ * {@link OutgroupSampleAdder#addOutgroupSampleMultiAllelic(String, String, String, String)}.
+ * Where k > 0, REF and the k-th ALT allele are swapped, allele indices 0 and k are swapped in the GT of every sample,
+ * the outgroup included, and the k-th values of the INFO fields AC and AF become AN - sum(AC) and 1 - sum(AF).
+ * AN is taken from INFO, or counted from the called alleles of all samples but the outgroup if it is absent.
+ * <p>
+ * The other per-allele INFO and FORMAT fields are reordered through the Number of their header declaration:
+ * the values of Number=R fields (e.g. AD) have entries 0 and k swapped, and the values of Number=G fields
+ * (e.g. PL, GL) are permuted to the genotype order of the new allele indices, for haploid and diploid values.
+ * Values of Number=A fields other than AC and AF, which do not hold the old REF, are set to missing ("."),
+ * and so are R and G values whose length does not match the number of alleles.
+ * Fields not declared in the header are copied as they are.
+ * Sites with an ancestral REF are written as they are, and so are sites that cannot be polarized: outgroup missing
+ * or heterozygous, more than 10 alleles, or GT not the first FORMAT key.
+ * <p>
+ * Lines are handled as bytes: GTs are recoded through a byte lookup table while the sample columns are copied,
+ * so nothing is allocated per sample. Batches of lines are polarized on worker threads and written in input order.
+ */
+public class VcfPolarizer {
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    /** Indices of the site counts */
+    private static final int POLARIZED = 0;
+    private static final int ANCESTRAL_REF = 1;
+    private static final int UNPOLARIZED = 2;
+    /** With single-digit allele indices, GT bytes can be recoded one by one */
+    private static final int MAX_ALLELE_NUM = 10;
+    /** byte map of GT characters swapping allele indices 0 and k, for k in [1, MAX_ALLELE_NUM) */
+    private static final byte[][] SWAP_TABLES = new byte[MAX_ALLELE_NUM][256];
+    private static final Pattern ID_PATTERN = Pattern.compile("[<,]ID=([^,>]+)");
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("[<,]Number=([^,>]+)");
+
+    static {
+        for (int k = 1; k < MAX_ALLELE_NUM; k++) {
+            for (int b = 0; b < 256; b++) {
+                SWAP_TABLES[k][b] = (byte) b;
+            }
+            SWAP_TABLES[k]['0'] = (byte) ('0' + k);
+            SWAP_TABLES[k]['0' + k] = (byte) '0';
+        }
+    }
+
+    /**
+     * Polarizes a VCF.
+     * A BGZF input VCF named .gz is also decompressed on threadsNum threads.
+     * @param inputVcf           input VCF
+     * @param outputVcf          output VCF
+     * @param outgroupSampleName sample whose homozygous genotype gives the ancestral allele
+     * @param threadsNum         number of worker threads
+     */
+    public static void polarize(String inputVcf, String outputVcf, String outgroupSampleName, int threadsNum) {
+        InputStream inputStream = inputVcf.endsWith(".gz") && BGZFUtils.isBGZF(inputVcf)
+                ? new BGZFUtils.ParallelInputStream(inputVcf, threadsNum) : IOTool.getInputStream(inputVcf);
+        try (ByteLineReader reader = new ByteLineReader(inputStream);
+             BufferedOutputStream bos = IOTool.getBufferedOutputStream(outputVcf)) {
+            int outgroupColumn = -1;
+            Map<String, Character> infoNumbers = new HashMap<>();
+            Map<String, Character> formatNumbers = new HashMap<>();
+            while (reader.readLine()) {
+                bos.write(reader.getBuffer(), reader.getLineStart(), reader.getLineLength());
+                bos.write(LINE_SEPARATOR);
+                String line = new String(reader.getBuffer(), reader.getLineStart(), reader.getLineLength(), StandardCharsets.UTF_8);
+                if (line.startsWith("##INFO=<")) {
+                    putNumber(line, infoNumbers);
+                } else if (line.startsWith("##FORMAT=<")) {
+                    putNumber(line, formatNumbers);
+                } else if (!line.startsWith("##")) {
+                    if (line.startsWith("#")) outgroupColumn = Arrays.asList(line.split("\t")).indexOf(outgroupSampleName);
+                    break;
+                }
+            }
+            if (outgroupColumn < 9) {
+                throw new IllegalArgumentException("Sample " + outgroupSampleName + " is not in the header of " + inputVcf);
+            }
+            int column = outgroupColumn;
+            long[] counts = new long[3];
+            Iterator<VcfLineBatch> batches = new VcfLineBatch.Reader<>(reader, VcfLineBatch::new);
+            OrderedParallelWriter.forEachOrdered(batches, batch -> new BatchPolarizer(column, infoNumbers, formatNumbers).polarize(batch), result -> {
+                try {
+                    bos.write(result.bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += result.counts[i];
+                }
+            }, threadsNum);
+            bos.flush();
+            System.out.println("Polarized sites: " + counts[POLARIZED]);
+            System.out.println("Ancestral REF sites: " + counts[ANCESTRAL_REF]);
+            System.out.println("Unpolarized sites: " + counts[UNPOLARIZED]);
+            System.out.println("Processing complete: " + outputVcf);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Records the Number of an INFO or FORMAT header line if it is A, R or G.
+     */
+    private static void putNumber(String line, Map<String, Character> numbers) {
+        Matcher id = ID_PATTERN.matcher(line);
+        Matcher number = NUMBER_PATTERN.matcher(line);
+        if (!id.find() || !number.find()) return;
+        String value = number.group(1);
+        if (value.equals("A") || value.equals("R") || value.equals("G")) {
+            numbers.put(id.group(1), value.charAt(0));
+        }
+    }
+
+    private static class BatchResult {
+
+        final byte[] bytes;
+        final int[] counts;
+
+        BatchResult(byte[] bytes, int[] counts) {
+            this.bytes = bytes;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Polarizes the lines of one batch, on a worker thread.
+     */
+    private static class BatchPolarizer {
+
+        /** CHROM to FORMAT, then the first sample */
+        private static final int FIXED_FIELD_NUM = 10;
+
+        private final int outgroupColumn;
+        /** Number of the INFO and FORMAT keys declared A, R or G */
+        private final Map<String, Character> infoNumbers;
+        private final Map<String, Character> formatNumbers;
+        private final int[] fieldStarts = new int[FIXED_FIELD_NUM];
+        private final int[] fieldEnds = new int[FIXED_FIELD_NUM];
+        private final int[] counts = new int[3];
+        private byte[] data;
+        private int outgroupStart;
+        private int outgroupEnd;
+        /** recoded sample columns of the current line */
+        private byte[] samples = new byte[1 << 16];
+        private int samplesLength;
+        /** FORMAT of the previous polarized line, and the Number of its keys, null if none is A, R or G */
+        private byte[] lastFormat = new byte[0];
+        private char[] lastKeyNumbers;
+        /** old index of every new allele, and old index of every new diploid genotype, for the current allele number and k */
+        private int[] alleleOrder = new int[0];
+        private int[] genotypeOrder;
+        private int orderK;
+        /** bounds of the comma-separated entries of the value being reordered */
+        private int[] entryStarts = new int[64];
+        private int[] entryEnds = new int[64];
+
+        BatchPolarizer(int outgroupColumn, Map<String, Character> infoNumbers, Map<String, Character> formatNumbers) {
+            this.outgroupColumn = outgroupColumn;
+            this.infoNumbers = infoNumbers;
+            this.formatNumbers = formatNumbers;
+        }
+
+        BatchResult polarize(VcfLineBatch batch) {
+            data = batch.data;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + batch.lineNum * LINE_SEPARATOR.length);
+            for (int l = 0; l < batch.lineNum; l++) {
+                int start = batch.lineStarts[l];
+                int end = batch.lineEnds[l];
+                int k = scan(start, end) ? getAncestralIndex() : -1;
+                if (k > 0) {
+                    writeSwapped(start, end, k, out);
+                    counts[POLARIZED]++;
+                } else {
+                    out.write(data, start, end - start);
+                    counts[k == 0 ? ANCESTRAL_REF : UNPOLARIZED]++;
+                }
+                out.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+            }
+            return new BatchResult(out.toByteArray(), counts);
+        }
+
+        /**
+         * Locates the fixed fields, the first sample and the outgroup sample.
+         * @return false if the line has too few columns
+         */
+        private boolean scan(int start, int end) {
+            int i = start;
+            for (int f = 0; f <= outgroupColumn; f++) {
+                if (i > end) return false;
+                int fieldStart = i;
+                while (i < end && data[i] != '\t') i++;
+                if (f < FIXED_FIELD_NUM) {
+                    fieldStarts[f] = fieldStart;
+                    fieldEnds[f] = i;
+                }
+                if (f == outgroupColumn) {
+                    outgroupStart = fieldStart;
+                    outgroupEnd = i;
+                }
+                i++;
+            }
+            return true;
+        }
+
+        /**
+         * @return k if the outgroup is "k/k" or "k|k" with k a valid allele index, the site has at most
+         * {@link #MAX_ALLELE_NUM} alleles and GT is the first FORMAT key, -1 otherwise
+         */
+        private int getAncestralIndex() {
+            int formatStart = fieldStarts[8], formatEnd = fieldEnds[8];
+            if (formatEnd - formatStart < 2 || data[formatStart] != 'G' || data[formatStart + 1] != 'T'
+                    || (formatEnd - formatStart > 2 && data[formatStart + 2] != ':')) return -1;
+            int gtEnd = outgroupStart;
+            while (gtEnd < outgroupEnd && data[gtEnd] != ':') gtEnd++;
+            if (gtEnd - outgroupStart != 3 || (data[outgroupStart + 1] != '/' && data[outgroupStart + 1] != '|')) return -1;
+            byte first = data[outgroupStart], second = data[outgroupStart + 2];
+            if (first != second || first < '0' || first > '9') return -1;
+            int k = first - '0';
+            int alleleNum = getAlleleNum();
+            if (alleleNum > MAX_ALLELE_NUM) return -1;
+            return k < alleleNum ? k : -1;
+        }
+
+        private int getAlleleNum() {
+            int altStart = fieldStarts[4], altEnd = fieldEnds[4];
+            if (altEnd - altStart == 1 && data[altStart] == '.') return 1;
+            int alleleNum = 2;
+            for (int i = altStart; i < altEnd; i++) {
+                if (data[i] == ',') alleleNum++;
+            }
+            return alleleNum;
+        }
+
+        private void writeSwapped(int start, int end, int k, ByteArrayOutputStream out) {
+            setOrders(getAlleleNum(), k);
+            char[] keyNumbers = getKeyNumbers();
+            if (keyNumbers == null) {
+                recodeSamples(fieldEnds[8], end, SWAP_TABLES[k]);
+            } else {
+                reorderSamples(fieldEnds[8], end, SWAP_TABLES[k], keyNumbers);
+            }
+            // CHROM, POS, ID
+            out.write(data, start, fieldStarts[3] - start);
+            // REF and ALT with alleles 0 and k swapped
+            int altStart = fieldStarts[4], altEnd = fieldEnds[4];
+            int kStart = altStart;
+            for (int index = 1; index < k; index++) {
+                while (data[kStart] != ',') kStart++;
+                kStart++;
+            }
+            int kEnd = kStart;
+            while (kEnd < altEnd && data[kEnd] != ',') kEnd++;
+            out.write(data, kStart, kEnd - kStart);
+            out.write('\t');
+            out.write(data, altStart, kStart - altStart);
+            out.write(data, fieldStarts[3], fieldEnds[3] - fieldStarts[3]);
+            out.write(data, kEnd, altEnd - kEnd);
+            // QUAL, FILTER
+            out.write(data, altEnd, fieldStarts[7] - altEnd);
+            writeInfo(k, out);
+            // FORMAT, then the recoded samples starting with their tab
+            out.write(data, fieldEnds[7], fieldEnds[8] - fieldEnds[7]);
+            out.write(samples, 0, samplesLength);
+        }
+
+        private void setOrders(int alleleNum, int k) {
+            if (alleleOrder.length == alleleNum && orderK == k) return;
+            alleleOrder = new int[alleleNum];
+            for (int i = 0; i < alleleNum; i++) {
+                alleleOrder[i] = i;
+            }
+            alleleOrder[0] = k;
+            alleleOrder[k] = 0;
+            genotypeOrder = new int[alleleNum * (alleleNum + 1) / 2];
+            for (int b = 0; b < alleleNum; b++) {
+                for (int a = 0; a <= b; a++) {
+                    int oldA = alleleOrder[a], oldB = alleleOrder[b];
+                    genotypeOrder[getGenotypeIndex(a, b)] = getGenotypeIndex(Math.min(oldA, oldB), Math.max(oldA, oldB));
+                }
+            }
+            orderK = k;
+        }
+
+        /**
+         * @return index of the diploid genotype a/b, a <= b, in the VCF order of Number=G values
+         */
+        private static int getGenotypeIndex(int a, int b) {
+            return b * (b + 1) / 2 + a;
+        }
+
+        /**
+         * @return Number of every FORMAT key of the current line, 0 if not A, R or G, null if none is
+         */
+        private char[] getKeyNumbers() {
+            int formatStart = fieldStarts[8], formatEnd = fieldEnds[8];
+            if (Arrays.equals(data, formatStart, formatEnd, lastFormat, 0, lastFormat.length)) return lastKeyNumbers;
+            lastFormat = Arrays.copyOfRange(data, formatStart, formatEnd);
+            String[] keys = new String(lastFormat, StandardCharsets.US_ASCII).split(":", -1);
+            char[] keyNumbers = new char[keys.length];
+            boolean reordered = false;
+            for (int i = 1; i < keys.length; i++) {
+                Character number = formatNumbers.get(keys[i]);
+                if (number != null) {
+                    keyNumbers[i] = number;
+                    reordered = true;
+                }
+            }
+            lastKeyNumbers = reordered ? keyNumbers : null;
+            return lastKeyNumbers;
+        }
+
+        /**
+         * Copies the sample columns, starting with the tab before the first one, recoding their GT.
+         */
+        private void recodeSamples(int from, int end, byte[] swapTable) {
+            int length = end - from;
+            if (samples.length < length) samples = new byte[Math.max(length, samples.length << 1)];
+            boolean inGT = false;
+            for (int i = 0; i < length; i++) {
+                byte b = data[from + i];
+                if (b == '\t') {
+                    inGT = true;
+                } else if (b == ':') {
+                    inGT = false;
+                } else if (inGT) {
+                    b = swapTable[b & 0xFF];
+                }
+                samples[i] = b;
+            }
+            samplesLength = length;
+        }
+
+        /**
+         * Copies the sample columns like {@link #recodeSamples}, also reordering the values of the A, R and G keys.
+         * @param keyNumbers Number of every FORMAT key
+         */
+        private void reorderSamples(int from, int end, byte[] swapTable, char[] keyNumbers) {
+            samplesLength = 0;
+            int i = from;
+            while (i < end) {
+                // the tab before the sample
+                put(data[i++]);
+                for (int f = 0; ; f++) {
+                    int valueEnd = i;
+                    while (valueEnd < end && data[valueEnd] != ':' && data[valueEnd] != '\t') valueEnd++;
+                    char number = f < keyNumbers.length ? keyNumbers[f] : 0;
+                    if (f == 0) {
+                        for (int j = i; j < valueEnd; j++) {
+                            put(swapTable[data[j] & 0xFF]);
+                        }
+                    } else if (number == 'R') {
+                        putReordered(i, valueEnd, alleleOrder, alleleOrder);
+                    } else if (number == 'G') {
+                        putReordered(i, valueEnd, alleleOrder, genotypeOrder);
+                    } else if (number == 'A') {
+                        put((byte) '.');
+                    } else {
+                        put(i, valueEnd);
+                    }
+                    i = valueEnd;
+                    if (i == end || data[i] == '\t') break;
+                    put(data[i++]);
+                }
+            }
+        }
+
+        /**
+         * Copies a per-allele or per-genotype value with its entries in the given order, the order being chosen by
+         * the number of entries, or "." if neither order has that length.
+         */
+        private void putReordered(int start, int end, int[] haploidOrder, int[] diploidOrder) {
+            int entryNum = 0;
+            int entryStart = start;
+            for (int i = start; i <= end; i++) {
+                if (i < end && data[i] != ',') continue;
+                if (entryNum == entryStarts.length) {
+                    entryStarts = Arrays.copyOf(entryStarts, entryNum << 1);
+                    entryEnds = Arrays.copyOf(entryEnds, entryNum << 1);
+                }
+                entryStarts[entryNum] = entryStart;
+                entryEnds[entryNum++] = i;
+                entryStart = i + 1;
+            }
+            int[] order = entryNum == haploidOrder.length ? haploidOrder : entryNum == diploidOrder.length ? diploidOrder : null;
+            if (order == null) {
+                put((byte) '.');
+                return;
+            }
+            for (int e = 0; e < order.length; e++) {
+                if (e > 0) put((byte) ',');
+                put(entryStarts[order[e]], entryEnds[order[e]]);
+            }
+        }
+
+        private void put(byte b) {
+            if (samplesLength == samples.length) samples = Arrays.copyOf(samples, samplesLength << 1);
+            samples[samplesLength++] = b;
+        }
+
+        private void put(int start, int end) {
+            int length = end - start;
+            if (samplesLength + length > samples.length) {
+                samples = Arrays.copyOf(samples, Math.max(samplesLength + length, samples.length << 1));
+            }
+            System.arraycopy(data, start, samples, samplesLength, length);
+            samplesLength += length;
+        }
+
+        /**
+         * @return number of called alleles in the GT of the recoded samples other than the outgroup, i.e. AN
+         */
+        private int countAlleleCalls() {
+            int alleleCalls = 0;
+            // FORMAT
+            int column = FIXED_FIELD_NUM - 2;
+            boolean inGT = false;
+            for (int i = 0; i < samplesLength; i++) {
+                byte b = samples[i];
+                if (b == '\t') {
+                    column++;
+                    inGT = column != outgroupColumn;
+                } else if (b == ':') {
+                    inGT = false;
+                } else if (inGT && b >= '0' && b <= '9') {
+                    alleleCalls++;
+                }
+            }
+            return alleleCalls;
+        }
+
+        /**
+         * Writes INFO with AC and AF flipped for allele k and the other A, R and G keys reordered.
+         * AN is counted from the recoded samples if INFO has none.
+         */
+        private void writeInfo(int k, ByteArrayOutputStream out) {
+            int infoStart = fieldStarts[7], infoEnd = fieldEnds[7];
+            String info = new String(data, infoStart, infoEnd - infoStart, StandardCharsets.US_ASCII);
+            if (info.equals(".")) {
+                out.write(data, infoStart, infoEnd - infoStart);
+                return;
+            }
+            String[] entries = StringUtils.split(info, ';');
+            int an = -1;
+            for (String entry : entries) {
+                if (entry.startsWith("AN=")) {
+                    try {
+                        an = Integer.parseInt(entry.substring(3));
+                    } catch (NumberFormatException e) {
+                        // counted below
+                    }
+                }
+            }
+            int altNum = alleleOrder.length - 1;
+            boolean changed = false;
+            for (int i = 0; i < entries.length; i++) {
+                int equals = entries[i].indexOf('=');
+                if (equals < 0) continue;
+                String key = entries[i].substring(0, equals);
+                String value = entries[i].substring(equals + 1);
+                if (key.equals("AC")) {
+                    if (an < 0) an = countAlleleCalls();
+                    value = flipCounts(value, k, altNum, an);
+                } else if (key.equals("AF")) {
+                    value = flipFrequencies(value, k, altNum);
+                } else {
+                    Character number = infoNumbers.get(key);
+                    if (number == null) continue;
+                    if (number == 'A') {
+                        value = ".";
+                    } else {
+                        value = reorder(value, alleleOrder, number == 'R' ? alleleOrder : genotypeOrder);
+                    }
+                }
+                entries[i] = key + "=" + value;
+                changed = true;
+            }
+            if (changed) {
+                out.writeBytes(String.join(";", entries).getBytes(StandardCharsets.US_ASCII));
+            } else {
+                out.write(data, infoStart, infoEnd - infoStart);
+            }
+        }
+
+        /**
+         * @return the comma-separated entries of value in the order of the same length, "." if there is none
+         */
+        private static String reorder(String value, int[] haploidOrder, int[] diploidOrder) {
+            String[] entries = value.split(",", -1);
+            int[] order = entries.length == haploidOrder.length ? haploidOrder
+                    : entries.length == diploidOrder.length ? diploidOrder : null;
+            if (order == null) return ".";
+            String[] reordered = new String[order.length];
+            for (int e = 0; e < order.length; e++) {
+                reordered[e] = entries[order[e]];
+            }
+            return String.join(",", reordered);
+        }
+
+        /**
+         * @return the per-ALT counts with the k-th one replaced by the count of the old REF, unchanged if malformed
+         */
+        private static String flipCounts(String value, int k, int altNum, int an) {
+            String[] counts = StringUtils.split(value, ',');
+            if (counts.length != altNum) return value;
+            long sum = 0;
+            try {
+                for (String count : counts) {
+                    sum += Long.parseLong(count);
+                }
+            } catch (NumberFormatException e) {
+                return value;
+            }
+            counts[k - 1] = String.valueOf(Math.max(0, an - sum));
+            return String.join(",", counts);
+        }
+
+        /**
+         * @return the per-ALT frequencies with the k-th one replaced by the frequency of the old REF, unchanged if malformed
+         */
+        private static String flipFrequencies(String value, int k, int altNum) {
+            String[] frequencies = StringUtils.split(value, ',');
+            if (frequencies.length != altNum) return value;
+            BigDecimal sum = BigDecimal.ZERO;
+            try {
+                for (String frequency : frequencies) {
+                    sum = sum.add(new BigDecimal(frequency));
+                }
+            } catch (NumberFormatException e) {
+                return value;
+            }
+            BigDecimal flipped = BigDecimal.ONE.subtract(sum).max(BigDecimal.ZERO);
+            frequencies[k - 1] = flipped.signum() == 0 ? "0" : flipped.stripTrailingZeros().toPlainString();
+            return String.join(",", frequencies);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package maf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Ancestral allele calling on the first 60 blocks of a three-species alignment, plus and minus strands.
+ */
+class MAFTest {
+
+    private static final List<MAF.Species> SPECIES_LIST = List.of(MAF.Species.TAV1, MAF.Species.AT, MAF.Species.HV);
+
+    @TempDir
+    Path tmpDir;
+
+    private static String getMafFile() throws URISyntaxException {
+        return Paths.get(MAFTest.class.getResource("blocks.maf").toURI()).toString();
+    }
+
+    private static void assertSameBytes(Path expected, Path actual) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual), actual + " differs from " + expected);
+    }
+
+    @Test
+    void multiThreadedOutputIsSerialOutput() throws Exception {
+        Path serial = tmpDir.resolve("serial.tsv");
+        MAF.callAncestralAllele(getMafFile(), SPECIES_LIST, serial.toString());
+        for (int threadsNum : new int[]{1, 3}) {
+            Path streamed = tmpDir.resolve("streamed." + threadsNum + ".tsv");
+            MAF.callAncestralAllele(getMafFile(), SPECIES_LIST, streamed.toString(), threadsNum);
+            assertSameBytes(serial, streamed);
+
+            Path loaded = tmpDir.resolve("loaded." + threadsNum + ".tsv");
+            new MAF(getMafFile()).callAncestralAllele(SPECIES_LIST, loaded.toString(), threadsNum);
+            assertSameBytes(serial, loaded);
+        }
+    }
+
+    /**
+     * The At record of the first block, "s At.chr1D 74047 100 - 200000", is on the minus strand: its first base is at
+     * 1-based forward position 200000 - 74047 = 125953 and the following bases run backwards. Its 10th column is a gap,
+     * so the columns on either side of it hold consecutive bases, at 125945 and 125944.
+     */
+    @Test
+    void minusStrandPositionsSkipGaps() throws Exception {
+        Path output = tmpDir.resolve("minus.tsv");
+        MAF.callAncestralAllele(getMafFile(), List.of(MAF.Species.TAV1, MAF.Species.AT), output.toString());
+        List<String> lines = Files.readAllLines(output);
+        assertEquals("1A\t50291\tC\t1D\t125952\tG", lines.get(1));
+        // Tav1 50298 faces the At gap and is not written
+        assertEquals("1A\t50297\tG\t1D\t125945\tC", lines.get(7));
+        assertEquals("1A\t50299\tC\t1D\t125944\tN", lines.get(8));
+    }
+}
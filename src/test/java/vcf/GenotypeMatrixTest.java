@@ -0,0 +1,62 @@
+package vcf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Counters and unfolded SFS of the matrix of a small VCF whose outgroup is between two samples: sites with a REF
+ * ancestor, with an ALT ancestor at a biallelic and at a multi-allelic site, with a heterozygous outgroup, a missing
+ * genotype, a line without its last sample and a line with a column beyond the header.
+ */
+class GenotypeMatrixTest {
+
+    /** per site: ancestral index, HET, HOM_ALT, MISSING, ALT alleles, called alleles, derived alleles */
+    private static final int[][] EXPECTED_COUNTS = {
+            {0, 1, 1, 0, 3, 6, 3},
+            {1, 2, 1, 0, 4, 6, 2},
+            {2, 1, 2, 0, 5, 6, -1},
+            {0, 1, 0, 1, 1, 4, 1},
+            {-1, 2, 0, 0, 2, 6, -1},
+            {0, 1, 1, 1, 3, 4, 3},
+            {0, 0, 3, 0, 6, 6, 6},
+            {1, 1, 0, 0, 1, 6, 5},
+    };
+
+    @TempDir
+    Path tmpDir;
+
+    private static Path getResource(String name) throws URISyntaxException {
+        return Paths.get(GenotypeMatrixTest.class.getResource(name).toURI());
+    }
+
+    @Test
+    void countsAndSFSAreExpected() throws Exception {
+        String cacheFile = tmpDir.resolve("genotypes.gtm").toString();
+        GenotypeMatrix.build(getResource("genotypes.vcf").toString(), cacheFile, "OUT", 1);
+        try (GenotypeMatrix matrix = new GenotypeMatrix(cacheFile)) {
+            assertEquals(List.of("S1", "S2", "S3"), matrix.getSampleNames());
+            assertEquals(List.of("1A", "1B"), matrix.getChromosomes());
+            assertEquals(EXPECTED_COUNTS.length, matrix.getSiteNum());
+            for (int site = 0; site < EXPECTED_COUNTS.length; site++) {
+                int[] actual = {matrix.getAncestralIndex(site), matrix.getHetNum(site), matrix.getHomAltNum(site),
+                        matrix.getMissingNum(site), matrix.getAltAlleleCount(site), matrix.getCalledAlleleCount(site),
+                        matrix.getDerivedAlleleCount(site)};
+                assertArrayEquals(EXPECTED_COUNTS[site], actual, "site " + site);
+                // the padding of the row after the last sample
+                assertEquals(0, matrix.getWord(site, 0) >>> 6, "site " + site);
+            }
+            assertEquals(GenotypeMatrix.HET, matrix.getGenotype(5, 0));
+            assertEquals(GenotypeMatrix.HOM_ALT, matrix.getGenotype(5, 1));
+            assertEquals(GenotypeMatrix.MISSING, matrix.getGenotype(5, 2));
+            assertArrayEquals(new long[]{0, 0, 1, 1, 0, 1, 1}, matrix.getUnfoldedSFS());
+        }
+    }
+}
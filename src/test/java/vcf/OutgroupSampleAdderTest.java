@@ -0,0 +1,282 @@
+package vcf;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import maf.AncestralAlleleLookup;
+import maf.AncestralAlleleStore;
+import maf.AncestralAlleleTable;
+import maf.MAF;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Output of the outgroup sample methods on a fixture VCF of two chromosomes, three batches of lines and
+ * multi-allelic, "." ALT and missing ancestral sites.
+ * outgroup.expected.vcf was written by the original String implementation of
+ * {@link OutgroupSampleAdder#addOutgroupSample(String, String, String, String)}, which matches a "." ancestral allele
+ * against a "." ALT field; outgroup.lookup.expected.vcf is the same with "./." wherever there is no ancestral allele,
+ * as written by the methods looking the ancestral alleles up by position.
+ */
+class OutgroupSampleAdderTest {
+
+    @TempDir
+    Path tmpDir;
+
+    private static Path getResource(String name) throws URISyntaxException {
+        return Paths.get(OutgroupSampleAdderTest.class.getResource(name).toURI());
+    }
+
+    /**
+     * Ancestral alleles of outgroup.anc in a map, the first line of a position winning.
+     */
+    private static AncestralAlleleLookup readLookup() throws Exception {
+        Map<String, Byte> alleles = new HashMap<>();
+        for (String line : Files.readAllLines(getResource("outgroup.anc"))) {
+            String[] fields = line.split("\t");
+            alleles.putIfAbsent(fields[0] + ":" + fields[1], (byte) fields[3].charAt(0));
+        }
+        return (chr, pos) -> alleles.getOrDefault(chr + ":" + pos, (byte) '.');
+    }
+
+    private static void assertSameBytes(Path expected, Path actual) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual), actual + " differs from " + expected);
+    }
+
+    @Test
+    void serialOutputIsUnchanged() throws Exception {
+        Path output = tmpDir.resolve("serial.vcf");
+        OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), output.toString(),
+                getResource("outgroup.anc").toString(), "OUT");
+        assertSameBytes(getResource("outgroup.expected.vcf"), output);
+    }
+
+    @Test
+    void pipelinedOutputIsSerialOutput() throws Exception {
+        for (int threadsNum : new int[]{1, 3}) {
+            Path output = tmpDir.resolve("pipelined." + threadsNum + ".vcf");
+            OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), output.toString(),
+                    getResource("outgroup.anc").toString(), "OUT", threadsNum);
+            assertSameBytes(getResource("outgroup.expected.vcf"), output);
+        }
+    }
+
+    @Test
+    void pipelinedOutputOfBGZFInputIsSerialOutput() throws Exception {
+        Path inputVcf = tmpDir.resolve("outgroup.vcf.gz");
+        try (OutputStream os = new BlockCompressedOutputStream(inputVcf.toFile())) {
+            Files.copy(getResource("outgroup.vcf"), os);
+        }
+        Path output = tmpDir.resolve("pipelined.bgzf.vcf");
+        OutgroupSampleAdder.addOutgroupSample(inputVcf.toString(), output.toString(),
+                getResource("outgroup.anc").toString(), "OUT", 3);
+        assertSameBytes(getResource("outgroup.expected.vcf"), output);
+    }
+
+    @Test
+    void multiAllelicOutputMatchesAlleleList() throws Exception {
+        Path output = tmpDir.resolve("multiallelic.vcf");
+        OutgroupSampleAdder.addOutgroupSampleMultiAllelic(getResource("outgroup.vcf").toString(), output.toString(),
+                getResource("outgroup.anc").toString(), "OUT");
+        assertSameBytes(getResource("outgroup.multiallelic.expected.vcf"), output);
+    }
+
+    @Test
+    void lookupOutputHasNoAncestralAlleleWhereTableHasNone() throws Exception {
+        AncestralAlleleLookup table = readLookup();
+        Path output = tmpDir.resolve("lookup.vcf");
+        OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), output.toString(), table, "OUT");
+        assertSameBytes(getResource("outgroup.lookup.expected.vcf"), output);
+        for (int threadsNum : new int[]{1, 3}) {
+            Path pipelined = tmpDir.resolve("lookup." + threadsNum + ".vcf");
+            OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), pipelined.toString(), table,
+                    "OUT", threadsNum);
+            assertSameBytes(getResource("outgroup.lookup.expected.vcf"), pipelined);
+        }
+    }
+
+    @Test
+    void storeOutputIsLookupOutput() throws Exception {
+        Path storeFile = tmpDir.resolve("outgroup.aas");
+        AncestralAlleleStore.build(getResource("outgroup.anc").toString(), storeFile.toString());
+        try (AncestralAlleleStore store = new AncestralAlleleStore(storeFile.toString())) {
+            Path output = tmpDir.resolve("store.vcf");
+            OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), output.toString(), store, "OUT");
+            assertSameBytes(getResource("outgroup.lookup.expected.vcf"), output);
+
+            Path pipelined = tmpDir.resolve("store.3.vcf");
+            OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), pipelined.toString(), store,
+                    "OUT", 3);
+            assertSameBytes(getResource("outgroup.lookup.expected.vcf"), pipelined);
+        }
+    }
+
+    /**
+     * Compresses outgroup.vcf with BGZF and indexes its lines with tabix.
+     */
+    private Path writeIndexedVcf() throws Exception {
+        Path inputVcf = tmpDir.resolve("indexed.vcf.gz");
+        TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+        BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(inputVcf.toFile());
+        for (String line : Files.readAllLines(getResource("outgroup.vcf"))) {
+            if (!line.startsWith("#")) {
+                String[] fields = line.split("\t");
+                int pos = Integer.parseInt(fields[1]);
+                indexCreator.addFeature(new SimpleFeature(fields[0], pos, pos + fields[3].length() - 1), bcos.getFilePointer());
+            }
+            bcos.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
+        bcos.flush();
+        indexCreator.finalizeIndex(bcos.getFilePointer()).write(Paths.get(inputVcf + ".tbi"));
+        bcos.close();
+        return inputVcf;
+    }
+
+    /**
+     * @return the first line of the indexed BGZF file at a position, found through the blocks of the index
+     */
+    private static String query(Path vcf, TabixIndex index, String chr, int pos) throws IOException {
+        List<Block> blocks = index.getBlocks(chr, pos, pos);
+        assertFalse(blocks.isEmpty(), "no block for " + chr + ":" + pos);
+        try (BlockCompressedInputStream bcis = new BlockCompressedInputStream(vcf.toFile())) {
+            bcis.seek(blocks.get(0).getStartPosition());
+            String line;
+            while ((line = bcis.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields[0].equals(chr) && Integer.parseInt(fields[1]) == pos) return line;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void byContigOutputIsSerialOutputAndIndexed() throws Exception {
+        Path inputVcf = writeIndexedVcf();
+        Path storeFile = tmpDir.resolve("outgroup.aas");
+        AncestralAlleleStore.build(getResource("outgroup.anc").toString(), storeFile.toString());
+        Path output = tmpDir.resolve("contig.vcf.gz");
+        try (AncestralAlleleStore store = new AncestralAlleleStore(storeFile.toString())) {
+            OutgroupSampleAdder.addOutgroupSampleByContig(inputVcf.toString(), output.toString(), store, "OUT", 2);
+        }
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                BlockCompressedInputStream.checkTermination(output.toFile()));
+        try (BlockCompressedInputStream bcis = new BlockCompressedInputStream(output.toFile())) {
+            assertArrayEquals(Files.readAllBytes(getResource("outgroup.lookup.expected.vcf")), bcis.readAllBytes());
+        }
+
+        TabixIndex index = new TabixIndex(new File(output + ".tbi"));
+        assertEquals(List.of("1A", "1B"), index.getSequenceNames());
+        List<String> expectedLines = Files.readAllLines(getResource("outgroup.lookup.expected.vcf"));
+        for (String expectedLine : List.of(expectedLines.get(2), expectedLines.get(6), expectedLines.get(1502),
+                expectedLines.get(1503), expectedLines.get(expectedLines.size() - 1))) {
+            String[] fields = expectedLine.split("\t", 3);
+            assertEquals(expectedLine, query(output, index, fields[0], Integer.parseInt(fields[1])));
+        }
+    }
+
+    @Test
+    void samplesOfSeveralSourcesAreSingleSampleOutputs() throws Exception {
+        Path storeFile = tmpDir.resolve("outgroup.aas");
+        AncestralAlleleStore.build(getResource("outgroup.anc").toString(), storeFile.toString());
+        Path output = tmpDir.resolve("samples.vcf");
+        OutgroupSampleAdder.addOutgroupSamples(getResource("outgroup.vcf").toString(), output.toString(),
+                List.of(storeFile.toString(), getResource("outgroup.anc").toString()), List.of("OUT", "FILE"));
+
+        // lines of the store sample, with the genotype of the file sample appended
+        List<String> storeLines = Files.readAllLines(getResource("outgroup.lookup.expected.vcf"));
+        List<String> fileLines = Files.readAllLines(getResource("outgroup.expected.vcf"));
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < storeLines.size(); i++) {
+            expected.append(storeLines.get(i));
+            if (storeLines.get(i).startsWith("#CHROM")) {
+                expected.append("\tFILE");
+            } else if (!storeLines.get(i).startsWith("##")) {
+                String fileLine = fileLines.get(i);
+                expected.append(fileLine, fileLine.lastIndexOf('\t'), fileLine.length());
+            }
+            expected.append(System.lineSeparator());
+        }
+        assertEquals(expected.toString(), Files.readString(output));
+
+        Path lookupOutput = tmpDir.resolve("lookups.vcf");
+        try (AncestralAlleleStore store = new AncestralAlleleStore(storeFile.toString())) {
+            OutgroupSampleAdder.addOutgroupSamplesFromLookups(getResource("outgroup.vcf").toString(), lookupOutput.toString(),
+                    List.of(store, readLookup()), List.of("OUT", "TABLE"));
+        }
+        StringBuilder expectedLookups = new StringBuilder();
+        for (String storeLine : storeLines) {
+            expectedLookups.append(storeLine);
+            if (storeLine.startsWith("#CHROM")) {
+                expectedLookups.append("\tTABLE");
+            } else if (!storeLine.startsWith("##")) {
+                expectedLookups.append(storeLine, storeLine.lastIndexOf('\t'), storeLine.length());
+            }
+            expectedLookups.append(System.lineSeparator());
+        }
+        assertEquals(expectedLookups.toString(), Files.readString(lookupOutput));
+    }
+
+    @Test
+    void mafTableOutputMatchesAncestralAlleleCalls() throws Exception {
+        String mafFile = getResource("/maf/blocks.maf").toString();
+        Path calls = tmpDir.resolve("calls.tsv");
+        MAF.callAncestralAllele(mafFile, List.of(MAF.Species.TAV1, MAF.Species.AT), calls.toString());
+        // Tav1 chromosome, position and allele, At allele; the first block of a position wins
+        Map<String, String> alleles = new HashMap<>();
+        List<String> callLines = Files.readAllLines(calls);
+        for (String line : callLines.subList(1, callLines.size())) {
+            String[] fields = line.split("\t");
+            alleles.putIfAbsent(fields[0] + ":" + fields[1], fields[5].toUpperCase());
+        }
+        StringBuilder expected = new StringBuilder();
+        for (String line : Files.readAllLines(getResource("outgroup.vcf"))) {
+            expected.append(line);
+            if (line.startsWith("#CHROM")) {
+                expected.append("\tOUT");
+            } else if (!line.startsWith("##")) {
+                String[] fields = line.split("\t");
+                String allele = alleles.get(fields[0] + ":" + fields[1]);
+                expected.append(fields[3].equals(allele) ? "\t0/0" : fields[4].equals(allele) ? "\t1/1" : "\t./.");
+            }
+            expected.append(System.lineSeparator());
+        }
+
+        AncestralAlleleTable table = AncestralAlleleTable.build(mafFile, MAF.Species.TAV1, MAF.Species.AT);
+        Path output = tmpDir.resolve("table.vcf");
+        OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), output.toString(), table, "OUT");
+        assertEquals(expected.toString(), Files.readString(output));
+
+        Path storeFile = tmpDir.resolve("table.aas");
+        AncestralAlleleStore.write(table, storeFile.toString());
+        try (AncestralAlleleStore store = new AncestralAlleleStore(storeFile.toString())) {
+            Path storeOutput = tmpDir.resolve("table.store.vcf");
+            OutgroupSampleAdder.addOutgroupSample(getResource("outgroup.vcf").toString(), storeOutput.toString(), store, "OUT");
+            assertSameBytes(output, storeOutput);
+        }
+
+        Path mafOutput = tmpDir.resolve("maf.vcf");
+        OutgroupSampleAdder.addOutgroupSampleFromMAF(getResource("outgroup.vcf").toString(), mafOutput.toString(), mafFile,
+                MAF.Species.TAV1, MAF.Species.AT, "OUT", 3);
+        assertSameBytes(output, mafOutput);
+    }
+}
@@ -0,0 +1,41 @@
+package vcf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Polarization of a fixture VCF whose expected lines were written by hand: a biallelic site with AN counted from
+ * the samples but the outgroup, a multi-allelic site whose ancestor is the second ALT allele, with Number=A and R
+ * INFO keys, a phased site, a haploid multi-allelic site, an ancestral REF site and a site with a heterozygous
+ * outgroup, which cannot be polarized.
+ */
+class VcfPolarizerTest {
+
+    @TempDir
+    Path tmpDir;
+
+    private static Path getResource(String name) throws URISyntaxException {
+        return Paths.get(VcfPolarizerTest.class.getResource(name).toURI());
+    }
+
+    private static void assertSameBytes(Path expected, Path actual) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual), actual + " differs from " + expected);
+    }
+
+    @Test
+    void polarizedOutputIsExpected() throws Exception {
+        for (int threadsNum : new int[]{1, 2}) {
+            Path output = tmpDir.resolve("polarized." + threadsNum + ".vcf");
+            VcfPolarizer.polarize(getResource("polarize.vcf").toString(), output.toString(), "OUT", threadsNum);
+            assertSameBytes(getResource("polarize.expected.vcf"), output);
+        }
+    }
+}